@@ -0,0 +1,313 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread safe cache, which is bounded by the summed up weight of its entries. Every entry may have its own time to
+ * live; expired entries are never returned. If a new entry exceeds the maximum weight, the least recently used
+ * entries are evicted. By default every entry has a weight of 1, so that the maximum weight is the maximum number of
+ * entries.
+ * The entries are kept inside a {@link ConcurrentHashMap}, so that reading and writing threads don't block each other.
+ * Each entry remembers the time of its last access instead of being moved inside an ordered list, which makes the LRU
+ * order approximate: the eviction is done by one thread at a time, which sorts a snapshot of the entries and removes
+ * about a tenth of the maximum weight at once, so that the sorting isn't repeated for every new entry. While one
+ * thread is evicting, the weight may exceed the maximum shortly.
+ *
+ * @author Michael Remme
+ *
+ * @param <K>
+ *          the type of the keys
+ * @param <V>
+ *          the type of the cached values
+ */
+public class ExpiringLruCache<K, V> {
+  private final ConcurrentHashMap<K, CacheEntry<V>> entries = new ConcurrentHashMap<>();
+  private final long maxWeight;
+  private final long evictionTarget;
+  private final ToLongFunction<? super V> weigher;
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final AtomicLong weight = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates a cache for the given number of entries
+   *
+   * @param maxEntries
+   *          the maximum number of entries
+   */
+  public ExpiringLruCache(final long maxEntries) {
+    this(maxEntries, value -> 1);
+  }
+
+  /**
+   * Creates a cache, where the weight of every entry is computed by the given function
+   *
+   * @param maxWeight
+   *          the maximum summed up weight of all entries
+   * @param weigher
+   *          the function to compute the weight of a value, like its size in bytes
+   */
+  public ExpiringLruCache(final long maxWeight, final ToLongFunction<? super V> weigher) {
+    this.maxWeight = maxWeight;
+    this.evictionTarget = maxWeight - maxWeight / 10;
+    this.weigher = weigher;
+  }
+
+  /**
+   * Get the value stored under the given key
+   *
+   * @param key
+   *          the key
+   * @return the value or null, if none is stored or it is expired
+   */
+  public V get(final K key) {
+    CacheEntry<V> entry = entries.get(key);
+    if (entry != null) {
+      long now = System.currentTimeMillis();
+      if (entry.isExpired(now)) {
+        removeEntry(key, entry);
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    entry.lastAccess = System.nanoTime();
+    hits.increment();
+    return entry.value;
+  }
+
+  /**
+   * Stores a value, which never expires
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value
+   */
+  public void put(final K key, final V value) {
+    put(key, value, 0);
+  }
+
+  /**
+   * Stores a value for the given time. If the weight of the value exceeds the maximum weight of the cache, it is not
+   * stored at all
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the value
+   * @param ttl
+   *          the time to live in milliseconds, 0 or less if the entry shall not expire
+   */
+  public void put(final K key, final V value, final long ttl) {
+    long entryWeight = weigher.applyAsLong(value);
+    if (entryWeight > maxWeight) {
+      remove(key);
+      return;
+    }
+    long expires = ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+    CacheEntry<V> old = entries.put(key, new CacheEntry<>(value, entryWeight, expires));
+    long newWeight = weight.addAndGet(old == null ? entryWeight : entryWeight - old.weight);
+    if (newWeight > maxWeight) {
+      evict();
+    }
+  }
+
+  /**
+   * Removes the entry with the given key
+   *
+   * @param key
+   *          the key
+   * @return the removed value or null
+   */
+  public V remove(final K key) {
+    CacheEntry<V> entry = entries.remove(key);
+    if (entry == null) {
+      return null;
+    }
+    weight.addAndGet(-entry.weight);
+    return entry.value;
+  }
+
+  /**
+   * Removes all entries, where the key matches the given predicate
+   *
+   * @param predicate
+   *          the predicate to test the keys
+   * @return the number of removed entries
+   */
+  public int removeIf(final Predicate<? super K> predicate) {
+    int count = 0;
+    for (Map.Entry<K, CacheEntry<V>> entry : entries.entrySet()) {
+      if (predicate.test(entry.getKey()) && removeEntry(entry.getKey(), entry.getValue())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Removes all entries
+   */
+  public void clear() {
+    removeIf(key -> true);
+  }
+
+  /**
+   * Get the number of stored entries, including expired ones, which weren't requested since they expired
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Get the summed up weight of all stored entries
+   *
+   * @return the weight
+   */
+  public long getWeight() {
+    return weight.get();
+  }
+
+  /**
+   * Get the maximum weight of this cache
+   *
+   * @return the maxWeight
+   */
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  /**
+   * Get the number of requests, which were answered with a value
+   *
+   * @return the hits
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Get the number of requests, where no valid entry existed
+   *
+   * @return the misses
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Get the number of entries, which were removed to keep the maximum weight
+   *
+   * @return the evictions
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * Removes the given entry, if it is still stored under the given key
+   */
+  private boolean removeEntry(final K key, final CacheEntry<V> entry) {
+    if (entries.remove(key, entry)) {
+      weight.addAndGet(-entry.weight);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes expired entries first and then the least recently used ones, until the weight is reduced to the eviction
+   * target. If another thread is evicting already, this call returns directly
+   */
+  private void evict() {
+    if (!evictionLock.tryLock()) {
+      return;
+    }
+    try {
+      if (weight.get() <= maxWeight) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      List<Candidate<K, V>> candidates = new ArrayList<>(entries.size());
+      for (Map.Entry<K, CacheEntry<V>> entry : entries.entrySet()) {
+        if (entry.getValue().isExpired(now)) {
+          removeEntry(entry.getKey(), entry.getValue());
+        } else {
+          candidates.add(new Candidate<>(entry.getKey(), entry.getValue()));
+        }
+      }
+      if (weight.get() <= maxWeight) {
+        return;
+      }
+      candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+      for (int i = 0; i < candidates.size() && weight.get() > evictionTarget; i++) {
+        if (removeEntry(candidates.get(i).key, candidates.get(i).entry)) {
+          evictions.increment();
+        }
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  private static class CacheEntry<V> {
+    private final V value;
+    private final long weight;
+    private final long expires;
+    private volatile long lastAccess = System.nanoTime();
+
+    CacheEntry(final V value, final long weight, final long expires) {
+      this.value = value;
+      this.weight = weight;
+      this.expires = expires;
+    }
+
+    boolean isExpired(final long now) {
+      return now >= expires;
+    }
+  }
+
+  /**
+   * An entry together with the time of its last access, which is fixed while the candidates are sorted
+   */
+  private static class Candidate<K, V> {
+    private final K key;
+    private final CacheEntry<V> entry;
+    private final long lastAccess;
+
+    Candidate(final K key, final CacheEntry<V> entry) {
+      this.key = key;
+      this.entry = entry;
+      this.lastAccess = entry.lastAccess;
+    }
+  }
+
+}
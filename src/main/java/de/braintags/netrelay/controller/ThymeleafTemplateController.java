@@ -12,17 +12,36 @@
  */
 package de.braintags.netrelay.controller;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.CRC32;
 
 import org.thymeleaf.dialect.IDialect;
 import org.thymeleaf.templatemode.TemplateMode;
 
+import de.braintags.netrelay.MemberUtil;
+import de.braintags.netrelay.cache.ExpiringLruCache;
 import de.braintags.netrelay.routing.RouterDefinition;
+import de.braintags.netrelay.templateengine.thymeleaf.FragmentCacheDialect;
+import de.braintags.netrelay.templateengine.thymeleaf.ResourceTemplateResolver;
 import de.braintags.netrelay.templateengine.thymeleaf.ThymeleafTemplateEngineImplBt;
 import de.braintags.vertx.util.exception.InitException;
+import de.braintags.vertx.util.exception.NoSuchFileException;
+import de.braintags.vertx.util.file.FileSystemUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.TemplateHandler;
+import io.vertx.ext.web.impl.Utils;
 import io.vertx.ext.web.templ.ThymeleafTemplateEngine;
 
 /**
@@ -37,6 +56,17 @@ import io.vertx.ext.web.templ.ThymeleafTemplateEngine;
  * <LI>{@value #CACHE_ENABLED_PROPERTY}<br/>
  * <LI>{@value #DIALECTS_PROPERTY}
  * <LI>{@value #MULTIPATH_PROPERTY}
+ * <LI>{@value #STREAMING_PROPERTY}
+ * <LI>{@value #WORKER_POOL_SIZE_PROPERTY}
+ * <LI>{@value #STREAMING_POOL_SIZE_PROPERTY}
+ * <LI>{@value #WARMUP_PROPERTY}
+ * <LI>{@value #WARMUP_RENDERS_PROPERTY}
+ * <LI>{@value #FRAGMENT_CACHE_SIZE_PROPERTY}
+ * <LI>{@value #SOURCE_CACHE_SIZE_PROPERTY}
+ * <LI>{@value #PAGE_CACHE_PROPERTY}
+ * <LI>{@value #PAGE_CACHE_PATHS_PROPERTY}
+ * <LI>{@value #PAGE_CACHE_SIZE_PROPERTY}
+ * <LI>{@value #PAGE_CACHE_TTL_PROPERTY}
  * </UL>
  * <br>
  * Request-Parameter:<br/>
@@ -111,7 +141,105 @@ public class ThymeleafTemplateController extends AbstractController {
    */
   public static final String MULTIPATH_PROPERTY = "multiPath";
 
+  /**
+   * If this property is set to true, then the rendered page is not collected completely in memory, but it is sent to
+   * the client in chunks, while it is rendered. Useful for large pages; by default the complete page is rendered before
+   * it is sent
+   */
+  public static final String STREAMING_PROPERTY = "streaming";
+
+  /**
+   * By this property the number of threads of a worker pool is defined, where templates are processed. By default
+   * templates are processed on the event loop, after their sources were loaded asynchronously
+   */
+  public static final String WORKER_POOL_SIZE_PROPERTY = "workerPoolSize";
+
+  /**
+   * The number of threads, which render templates in the mode {@value #STREAMING_PROPERTY}. These threads wait for
+   * slow clients, so they use an own pool. By default this is
+   * {@value ThymeleafTemplateEngineImplBt#DEFAULT_STREAMING_POOL_SIZE}
+   */
+  public static final String STREAMING_POOL_SIZE_PROPERTY = "streamingPoolSize";
+
+  /**
+   * If this property is set to true, then all templates inside the template directory are parsed and rendered with an
+   * empty context after the initialization of the controller, so that the first requests don't have to pay for
+   * parsing and warm up. The warm up runs on a worker thread; requests, which arrive at the route meanwhile, are held
+   * back and handled after the warm up finished, so that no request is rendered by a cold engine. The time needed for
+   * each template is logged. Templates, which can't be rendered without the data of a request, are skipped
+   */
+  public static final String WARMUP_PROPERTY = "warmup";
+
+  /**
+   * The number of dry renders of each template during the warm up, after the first rendering. By default this is
+   * {@value #DEFAULT_WARMUP_RENDERS}
+   */
+  public static final String WARMUP_RENDERS_PROPERTY = "warmupRenders";
+
+  /**
+   * The default number of dry renders of each template during the warm up
+   */
+  public static final int DEFAULT_WARMUP_RENDERS = 10;
+
+  /**
+   * The maximum size in bytes of all fragments, which are cached by the {@link FragmentCacheDialect}. The dialect must
+   * be added by the property {@value #DIALECTS_PROPERTY}
+   */
+  public static final String FRAGMENT_CACHE_SIZE_PROPERTY = "fragmentCacheSize";
+
+  /**
+   * The maximum size in bytes of all template sources, which are cached by the template resolver. By default this is
+   * {@link ResourceTemplateResolver#DEFAULT_SOURCE_CACHE_SIZE}
+   */
+  public static final String SOURCE_CACHE_SIZE_PROPERTY = "sourceCacheSize";
+
+  /**
+   * If this property is set to true, then rendered pages are cached for requests without a logged in user and without
+   * session data. Only the pages defined by {@value #PAGE_CACHE_PATHS_PROPERTY} are cached. The key of a page is built
+   * from the path, the query and the preferred language of the request. The page must not depend on anything else,
+   * like data which was added to the context by previous controllers. Cached pages are sent with an ETag and are
+   * answered with status 304, if the client already has the current version. Cached pages are never streamed
+   */
+  public static final String PAGE_CACHE_PROPERTY = "pageCache";
+
+  /**
+   * The csv list of paths, whose pages are cached, if {@value #PAGE_CACHE_PROPERTY} is enabled. An entry ending with
+   * "*" defines all paths starting with the entry. Without this property no page is cached
+   */
+  public static final String PAGE_CACHE_PATHS_PROPERTY = "pageCachePaths";
+
+  /**
+   * The maximum size in bytes of all pages in the page cache. By default this is {@value #DEFAULT_PAGE_CACHE_SIZE}
+   */
+  public static final String PAGE_CACHE_SIZE_PROPERTY = "pageCacheSize";
+
+  /**
+   * The default maximum size of the page cache in bytes
+   */
+  public static final long DEFAULT_PAGE_CACHE_SIZE = 50 * 1024 * 1024;
+
+  /**
+   * The time in seconds, a page is kept in the page cache. By default this is {@value #DEFAULT_PAGE_CACHE_TTL}
+   */
+  public static final String PAGE_CACHE_TTL_PROPERTY = "pageCacheTtl";
+
+  /**
+   * The default time in seconds, a page is kept in the page cache
+   */
+  public static final long DEFAULT_PAGE_CACHE_TTL = 60;
+
+  private static final String[] TEMPLATE_SUFFIXES = { ".html", ".htm", ".xhtml", ".xml" };
+
   private TemplateHandler templateHandler;
+  private ThymeleafTemplateEngineImplBt templateEngine;
+  private String templateDirectory;
+  private String contentType;
+  private boolean streaming;
+  private ExpiringLruCache<String, CachedPage> pageCache;
+  private long pageCacheTtl;
+  private List<String> pageCachePaths;
+  private Future<Integer> warmUpFuture;
+  private final List<WaitingRequest> waitingRequests = new ArrayList<>();
 
   /*
    * (non-Javadoc)
@@ -120,6 +248,9 @@ public class ThymeleafTemplateController extends AbstractController {
    */
   @Override
   public void handleController(final RoutingContext context) {
+    if (holdDuringWarmUp(context)) {
+      return;
+    }
     String path = context.request().path();
     addNetRelayToContext(context);
     if (LOGGER.isDebugEnabled())
@@ -128,17 +259,241 @@ public class ThymeleafTemplateController extends AbstractController {
       LOGGER.info("REROUTING TO: " + path);
       path += "index.html";
       context.reroute(path);
+    } else if (pageCache != null && isPageCacheable(context)) {
+      handleCachedPage(context);
+    } else if (streaming) {
+      renderChunked(context);
     } else {
       templateHandler.handle(context);
     }
   }
 
+  /**
+   * Renders the template and streams the result into the response
+   *
+   * @param context
+   */
+  private void renderChunked(final RoutingContext context) {
+    String file = Utils.pathOffset(context.normalisedPath(), context);
+    templateEngine.renderChunked(context, templateDirectory, file, contentType, res -> {
+      if (res.failed()) {
+        if (context.response().headWritten()) {
+          // the page is partially sent already, so no error page can be sent anymore
+          LOGGER.error("error while streaming template " + file, res.cause());
+          context.response().close();
+        } else {
+          context.fail(res.cause());
+        }
+      }
+    });
+  }
+
+  /**
+   * Pages are cached only for the defined paths and for anonymous GET and HEAD requests without session data
+   *
+   * @param context
+   * @return true, if the page of the request can be served from the page cache
+   */
+  private boolean isPageCacheable(final RoutingContext context) {
+    HttpMethod method = context.request().method();
+    return (method == HttpMethod.GET || method == HttpMethod.HEAD) && isPageCachePath(context.normalisedPath())
+        && context.user() == null && isSessionUnused(context);
+  }
+
+  private boolean isPageCachePath(final String path) {
+    for (String cachePath : pageCachePaths) {
+      if (cachePath.endsWith("*") ? path.startsWith(cachePath.substring(0, cachePath.length() - 1))
+          : path.equals(cachePath)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A page may only be shared between clients, if the session doesn't contain anything, which could be displayed
+   */
+  private static boolean isSessionUnused(final RoutingContext context) {
+    return context.session() == null
+        || (context.session().data().isEmpty() && !MemberUtil.getContextUser(context).isPresent());
+  }
+
+  /**
+   * Sends the page of the request from the page cache or renders it and stores it there
+   *
+   * @param context
+   */
+  private void handleCachedPage(final RoutingContext context) {
+    String key = createPageKey(context);
+    CachedPage page = pageCache.get(key);
+    if (page != null) {
+      sendPage(context, page);
+      return;
+    }
+    String file = Utils.pathOffset(context.normalisedPath(), context);
+    templateEngine.render(context, templateDirectory, file, res -> {
+      if (res.failed()) {
+        context.fail(res.cause());
+      } else {
+        CachedPage rendered = new CachedPage(res.result(), contentType);
+        // the rendering may have stored something in the session, then the page belongs to this client only
+        if (isSessionUnused(context)) {
+          pageCache.put(key, rendered, pageCacheTtl);
+        }
+        sendPage(context, rendered);
+      }
+    });
+  }
+
+  private String createPageKey(final RoutingContext context) {
+    String query = context.request().query();
+    String language = context.acceptableLanguages().isEmpty() ? "" : context.acceptableLanguages().get(0).value();
+    return context.normalisedPath() + (query == null ? "" : "?" + query) + "|" + language;
+  }
+
+  private void sendPage(final RoutingContext context, final CachedPage page) {
+    HttpServerResponse response = context.response();
+    response.putHeader(HttpHeaders.ETAG, page.etag);
+    if (page.matches(context.request().getHeader(HttpHeaders.IF_NONE_MATCH))) {
+      response.setStatusCode(304).end();
+    } else {
+      response.putHeader(HttpHeaders.CONTENT_TYPE, page.contentType);
+      response.end(Buffer.buffer(page.content.duplicate()));
+    }
+  }
+
   @Override
   public void initProperties(final Properties properties) {
     if (LOGGER.isDebugEnabled())
       LOGGER.debug("init " + getName());
-    ThymeleafTemplateEngine thEngine = createTemplateEngine(getNetRelay().getVertx(), properties);
-    templateHandler = TemplateHandler.create(thEngine, getTemplateDirectory(properties), getContentType(properties));
+    replaceTemplateEngine(createTemplateEngine(getNetRelay().getVertx(), properties));
+    templateDirectory = getTemplateDirectory(properties);
+    contentType = getContentType(properties);
+    streaming = Boolean.valueOf((String) properties.getOrDefault(STREAMING_PROPERTY, "false"));
+    templateHandler = TemplateHandler.create(templateEngine, templateDirectory, contentType);
+    if (Boolean.valueOf((String) properties.getOrDefault(PAGE_CACHE_PROPERTY, "false"))) {
+      pageCache = new ExpiringLruCache<>(Long.parseLong((String) properties.getOrDefault(PAGE_CACHE_SIZE_PROPERTY,
+          String.valueOf(DEFAULT_PAGE_CACHE_SIZE))), page -> page.content.capacity());
+      pageCacheTtl = Long.parseLong((String) properties.getOrDefault(PAGE_CACHE_TTL_PROPERTY,
+          String.valueOf(DEFAULT_PAGE_CACHE_TTL))) * 1000;
+      pageCachePaths = new ArrayList<>();
+      for (String path : ((String) properties.getOrDefault(PAGE_CACHE_PATHS_PROPERTY, "")).split(",")) {
+        if (!path.trim().isEmpty()) {
+          pageCachePaths.add(path.trim());
+        }
+      }
+      if (pageCachePaths.isEmpty()) {
+        LOGGER.warn("page cache of " + getName() + " is enabled, but no page is defined by "
+            + PAGE_CACHE_PATHS_PROPERTY);
+      }
+    } else {
+      pageCache = null;
+    }
+    if (Boolean.valueOf((String) properties.getOrDefault(WARMUP_PROPERTY, "false"))) {
+      warmUp(Integer.parseInt(
+          (String) properties.getOrDefault(WARMUP_RENDERS_PROPERTY, String.valueOf(DEFAULT_WARMUP_RENDERS))));
+    }
+  }
+
+  /**
+   * Sets the engine of this controller and closes the engine of a previous initialization and the engine of the
+   * controller with the same name, which is replaced by this one, when the routes are reset
+   */
+  private void replaceTemplateEngine(final ThymeleafTemplateEngineImplBt engine) {
+    Context vertxContext = getNetRelay().getVertx().getOrCreateContext();
+    String key = ThymeleafTemplateController.class.getName() + "." + getName();
+    ThymeleafTemplateController previous = vertxContext.get(key);
+    vertxContext.put(key, this);
+    if (previous != null && previous != this && previous.templateEngine != null) {
+      previous.templateEngine.close();
+    }
+    if (templateEngine != null) {
+      templateEngine.close();
+    }
+    templateEngine = engine;
+  }
+
+  /**
+   * Parses all templates inside the template directory and renders each of them the given number of times with an
+   * empty context. The rendering is blocking, so it is executed on a worker thread. Requests arriving before the warm
+   * up finished are handled afterwards
+   *
+   * @param renders
+   *          the number of dry renders after the first rendering of a template
+   */
+  private void warmUp(final int renders) {
+    Future<Integer> future = Future.future();
+    synchronized (waitingRequests) {
+      warmUpFuture = future;
+    }
+    getNetRelay().getVertx().<Integer> executeBlocking(f -> {
+      try {
+        f.complete(warmUpTemplates(renders));
+      } catch (Exception e) {
+        f.fail(e);
+      }
+    }, false, res -> {
+      if (res.failed()) {
+        LOGGER.error("warm up of templates in " + templateDirectory + " failed", res.cause());
+      }
+      List<WaitingRequest> requests;
+      synchronized (waitingRequests) {
+        future.complete();
+        requests = new ArrayList<>(waitingRequests);
+        waitingRequests.clear();
+      }
+      requests.forEach(WaitingRequest::resume);
+    });
+  }
+
+  /**
+   * Holds back the given request, if the warm up is running
+   *
+   * @return true, if the request is handled after the warm up
+   */
+  private boolean holdDuringWarmUp(final RoutingContext context) {
+    synchronized (waitingRequests) {
+      if (warmUpFuture == null || warmUpFuture.isComplete()) {
+        return false;
+      }
+      waitingRequests.add(new WaitingRequest(context, Vertx.currentContext()));
+      return true;
+    }
+  }
+
+  private int warmUpTemplates(final int renders) throws NoSuchFileException {
+    List<String> files = FileSystemUtil.getChildren(getNetRelay().getVertx(), templateDirectory, true, null);
+    long start = System.currentTimeMillis();
+    int count = 0;
+    for (String file : files) {
+      if (!isTemplate(file)) {
+        continue;
+      }
+      try {
+        long firstRender = templateEngine.warmUp(file);
+        long dryRenders = 0;
+        for (int i = 0; i < renders; i++) {
+          dryRenders += templateEngine.warmUp(file);
+        }
+        count++;
+        LOGGER.info(String.format("warm up of %s: parsed and rendered in %.1f ms, %d renders in %.1f ms", file,
+            firstRender / 1_000_000d, renders, dryRenders / 1_000_000d));
+      } catch (Exception e) {
+        LOGGER.warn("template " + file + " can't be rendered without request data, skipped in warm up: "
+            + e.getMessage());
+      }
+    }
+    LOGGER.info("warm up of " + count + " templates finished in " + (System.currentTimeMillis() - start) + " ms");
+    return count;
+  }
+
+  private static boolean isTemplate(final String file) {
+    for (String suffix : TEMPLATE_SUFFIXES) {
+      if (file.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -147,20 +502,27 @@ public class ThymeleafTemplateController extends AbstractController {
    * @param properties
    * @return
    */
-  public static ThymeleafTemplateEngine createTemplateEngine(final Vertx vertx, final Properties properties) {
+  public static ThymeleafTemplateEngineImplBt createTemplateEngine(final Vertx vertx, final Properties properties) {
     boolean multiPath = Boolean.valueOf((String) properties.getOrDefault(MULTIPATH_PROPERTY, "false"));
     boolean cacheEnabled = Boolean.valueOf((String) properties.getOrDefault(CACHE_ENABLED_PROPERTY, "false"));
-    ThymeleafTemplateEngine thEngine = new ThymeleafTemplateEngineImplBt(vertx, multiPath,
+    ThymeleafTemplateEngineImplBt thEngine = new ThymeleafTemplateEngineImplBt(vertx, multiPath,
         getTemplateDirectory(properties), cacheEnabled);
     String tms = properties.getProperty(TEMPLATE_MODE_PROPERTY, ThymeleafTemplateEngine.DEFAULT_TEMPLATE_MODE.name());
     TemplateMode tm = TemplateMode.valueOf(tms);
     thEngine.setMode(tm);
+    thEngine.setWorkerPoolSize(Integer.parseInt((String) properties.getOrDefault(WORKER_POOL_SIZE_PROPERTY, "0")));
+    thEngine.setStreamingPoolSize(Integer.parseInt((String) properties.getOrDefault(STREAMING_POOL_SIZE_PROPERTY,
+        String.valueOf(ThymeleafTemplateEngineImplBt.DEFAULT_STREAMING_POOL_SIZE))));
+    thEngine.setFragmentCacheSize(Long.parseLong((String) properties.getOrDefault(FRAGMENT_CACHE_SIZE_PROPERTY,
+        String.valueOf(ThymeleafTemplateEngineImplBt.DEFAULT_FRAGMENT_CACHE_SIZE))));
+    thEngine.getTemplateResolver().setSourceCacheSize(Long.parseLong((String) properties.getOrDefault(
+        SOURCE_CACHE_SIZE_PROPERTY, String.valueOf(ResourceTemplateResolver.DEFAULT_SOURCE_CACHE_SIZE))));
     addDialects(thEngine, properties);
     return thEngine;
   }
 
   @SuppressWarnings("unchecked")
-  private static void addDialects(final ThymeleafTemplateEngine thEngine, final Properties properties) {
+  private static void addDialects(final ThymeleafTemplateEngineImplBt thEngine, final Properties properties) {
     try {
       String dP = (String) properties.getOrDefault(DIALECTS_PROPERTY, null);
       if (dP != null && dP.hashCode() != 0) {
@@ -169,10 +531,10 @@ public class ThymeleafTemplateController extends AbstractController {
           if (dialect.contains(":")) {
             String[] d = dialect.split(":");
             Class<? extends IDialect> dc = (Class<? extends IDialect>) Class.forName(d[1]);
-            thEngine.getThymeleafTemplateEngine().addDialect(d[0], dc.newInstance());
+            addDialect(thEngine, d[0], dc.newInstance());
           } else {
             Class<? extends IDialect> dc = (Class<? extends IDialect>) Class.forName(dialect);
-            thEngine.getThymeleafTemplateEngine().addDialect(dc.newInstance());
+            addDialect(thEngine, null, dc.newInstance());
           }
         }
       }
@@ -181,6 +543,17 @@ public class ThymeleafTemplateController extends AbstractController {
     }
   }
 
+  private static void addDialect(final ThymeleafTemplateEngineImplBt thEngine, final String prefix,
+      final IDialect dialect) {
+    if (dialect instanceof FragmentCacheDialect) {
+      thEngine.addFragmentCacheDialect(prefix, (FragmentCacheDialect) dialect);
+    } else if (prefix == null) {
+      thEngine.getThymeleafTemplateEngine().addDialect(dialect);
+    } else {
+      thEngine.getThymeleafTemplateEngine().addDialect(prefix, dialect);
+    }
+  }
+
   /**
    * Get the info about the defined template directory in the properties
    *
@@ -224,4 +597,62 @@ public class ThymeleafTemplateController extends AbstractController {
     return json;
   }
 
+  /**
+   * A rendered page inside the page cache. The content is kept in direct memory outside the heap, so that a big page
+   * cache doesn't stress the garbage collector; the memory is freed, when the page was evicted and collected
+   */
+  private static class CachedPage {
+    private final ByteBuf content;
+    private final String contentType;
+    private final String etag;
+
+    CachedPage(final Buffer rendered, final String contentType) {
+      byte[] bytes = rendered.getBytes();
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes).flip();
+      this.content = Unpooled.wrappedBuffer(direct);
+      this.contentType = contentType;
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length) + "\"";
+    }
+
+    /**
+     * Checks, whether the value of the header If-None-Match contains the ETag of this page
+     */
+    boolean matches(final String ifNoneMatch) {
+      if (ifNoneMatch == null) {
+        return false;
+      }
+      for (String tag : ifNoneMatch.split(",")) {
+        String trimmed = tag.trim();
+        if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A request, which arrived during the warm up, together with the context of its event loop
+   */
+  private class WaitingRequest {
+    private final RoutingContext routingContext;
+    private final Context vertxContext;
+
+    WaitingRequest(final RoutingContext routingContext, final Context vertxContext) {
+      this.routingContext = routingContext;
+      this.vertxContext = vertxContext;
+    }
+
+    void resume() {
+      if (vertxContext == null) {
+        handleController(routingContext);
+      } else {
+        vertxContext.runOnContext(v -> handleController(routingContext));
+      }
+    }
+  }
+
 }
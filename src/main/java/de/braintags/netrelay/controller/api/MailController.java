@@ -23,6 +23,7 @@ import de.braintags.netrelay.NetRelay;
 import de.braintags.netrelay.controller.AbstractController;
 import de.braintags.netrelay.controller.ThymeleafTemplateController;
 import de.braintags.netrelay.routing.RouterDefinition;
+import de.braintags.netrelay.templateengine.thymeleaf.ThymeleafTemplateEngineImplBt;
 import de.braintags.vertx.util.HttpContentType;
 import de.braintags.vertx.util.exception.InitException;
 import io.vertx.core.AsyncResult;
@@ -488,6 +489,9 @@ public class MailController extends AbstractController {
    */
   @Override
   public void initProperties(Properties properties) {
+    if (prefs != null) {
+      prefs.close();
+    }
     prefs = createMailPreferences(getVertx(), properties);
   }
 
@@ -566,6 +570,15 @@ public class MailController extends AbstractController {
       scheme = readProperty(props, SCHEME_PROP, null, false);
     }
 
+    /**
+     * Releases the template engine of these preferences
+     */
+    public void close() {
+      if (templateEngine instanceof ThymeleafTemplateEngineImplBt) {
+        ((ThymeleafTemplateEngineImplBt) templateEngine).close();
+      }
+    }
+
     /**
      * Get the defined recipient
      *
@@ -21,7 +21,9 @@ import de.braintags.vertx.jomnigate.dataaccess.write.IWrite;
 import de.braintags.vertx.jomnigate.dataaccess.write.IWriteResult;
 import de.braintags.vertx.jomnigate.mapping.IMapper;
 import de.braintags.vertx.jomnigate.mapping.IMapperFactory;
+import de.braintags.vertx.jomnigate.mapping.IProperty;
 import de.braintags.vertx.jomnigate.util.QueryHelper;
+import de.braintags.vertx.util.exception.ParameterRequiredException;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
@@ -78,6 +80,7 @@ public abstract class AbstractAction {
       if (result.failed()) {
         handler.handle(Future.failedFuture(result.cause()));
       } else {
+        publishRecordsChanged(mapper);
         String entityName = mapper.getMapperClass().getSimpleName();
         LOGGER.info("adding new entity to context with key " + entityName);
         addToContext(context, entityName, ob);
@@ -86,6 +89,91 @@ public abstract class AbstractAction {
     });
   }
 
+  /**
+   * Increases the version of the given record, if the property {@link PersistenceController#VERSION_FIELD_PROP} is set
+   * and the mapper contains this field
+   * 
+   * @param mapper
+   *          the mapper of the record
+   * @param record
+   *          the record to be saved
+   */
+  protected void increaseVersion(IMapper<?> mapper, Object record) {
+    IProperty versionField = getVersionField(mapper);
+    if (versionField != null) {
+      Object current = versionField.getPropertyAccessor().readData(record);
+      String value = current == null ? "" : String.valueOf(current).trim();
+      long version = value.isEmpty() ? 1 : Long.parseLong(value) + 1;
+      Class<?> type = versionField.getType();
+      Object newVersion;
+      if (type == Integer.class || type == int.class) {
+        newVersion = Integer.valueOf((int) version);
+      } else if (type == String.class) {
+        newVersion = String.valueOf(version);
+      } else {
+        newVersion = Long.valueOf(version);
+      }
+      versionField.getPropertyAccessor().writeData(record, newVersion);
+    }
+  }
+
+  /**
+   * Compares the version of a record, which was sent by the request, with the version of the stored record, if the
+   * property {@link PersistenceController#VERSION_FIELD_PROP} is set and the mapper contains this field
+   * 
+   * @param mapper
+   *          the mapper of the record
+   * @param record
+   *          the stored record
+   * @param expected
+   *          the version sent by the request or null
+   * @param key
+   *          the name of the parameter of the version for the error message
+   * @throws ParameterRequiredException
+   *           if the request doesn't contain the version
+   * @throws VersionConflictException
+   *           if the versions differ
+   */
+  protected void checkVersion(IMapper<?> mapper, Object record, String expected, String key) {
+    IProperty versionField = getVersionField(mapper);
+    if (versionField == null) {
+      return;
+    }
+    if (expected == null || expected.trim().isEmpty()) {
+      throw new ParameterRequiredException("The update action needs the version of the record as " + key);
+    }
+    Object current = versionField.getPropertyAccessor().readData(record);
+    String stored = current == null ? "" : String.valueOf(current).trim();
+    if (!expected.trim().equals(stored)) {
+      throw new VersionConflictException(String.format("%s was modified: expected version %s, but found %s",
+          mapper.getMapperClass().getSimpleName(), expected, current));
+    }
+  }
+
+  /**
+   * Get the field of the given mapper, which contains the version of a record
+   * 
+   * @param mapper
+   *          the mapper to be checked
+   * @return the version field or null, if no version field is defined or the mapper doesn't contain it
+   */
+  protected IProperty getVersionField(IMapper<?> mapper) {
+    String fieldName = getPersistenceController().getVersionField();
+    return fieldName == null ? null : mapper.getField(fieldName);
+  }
+
+  /**
+   * Informs about changed records of the given mapper by publishing the name of the mapper class to the address
+   * {@link PersistenceController#RECORDS_CHANGED_ADDRESS}
+   * 
+   * @param mapper
+   *          the mapper, which records were changed
+   */
+  protected void publishRecordsChanged(IMapper<?> mapper) {
+    getPersistenceController().getNetRelay().getVertx().eventBus().publish(PersistenceController.RECORDS_CHANGED_ADDRESS,
+        mapper.getMapperClass().getName());
+  }
+
   /**
    * Add the object(s) into the {@link RoutingContext} by using the entityName as reference
    * 
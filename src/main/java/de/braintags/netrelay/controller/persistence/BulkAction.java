@@ -0,0 +1,532 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import de.braintags.netrelay.controller.AbstractCaptureController.CaptureMap;
+import de.braintags.netrelay.controller.Action;
+import de.braintags.netrelay.mapping.NetRelayStoreObjectFactory;
+import de.braintags.vertx.jomnigate.IDataStore;
+import de.braintags.vertx.jomnigate.dataaccess.delete.IDelete;
+import de.braintags.vertx.jomnigate.dataaccess.query.IQuery;
+import de.braintags.vertx.jomnigate.dataaccess.query.IQueryResult;
+import de.braintags.vertx.jomnigate.dataaccess.query.ISearchCondition;
+import de.braintags.vertx.jomnigate.dataaccess.query.ISearchConditionContainer;
+import de.braintags.vertx.jomnigate.dataaccess.write.IWrite;
+import de.braintags.vertx.jomnigate.exception.NoSuchRecordException;
+import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IStoreObject;
+import de.braintags.vertx.jomnigate.mapping.IStoreObjectFactory;
+import de.braintags.vertx.util.exception.ParameterRequiredException;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Executes the actions INSERT, UPDATE and DELETE for a batch of records of one mapper. The action is used, when the
+ * capture {@link PersistenceController#BULK_CAPTURE_KEY} is "true".
+ * The records are read from a JSON array in the body of the request, if the content type is "application/json", or
+ * from form fields in the form "entityName.index.fieldName" otherwise. For UPDATE and DELETE each record must contain
+ * the id field. File uploads are not handled in a bulk request. A request with more records than
+ * {@link PersistenceController#BULK_MAX_RECORDS_PROP} fails without handling any record.
+ *
+ * The records are processed in chunks of {@link PersistenceController#BULK_CHUNK_SIZE_PROP}: all records of a chunk are
+ * created in parallel and persisted by one {@link IWrite} or {@link IDelete}. The result of each record is stored as
+ * {@link JsonObject} with the fields {@value #INDEX}, {@value #SUCCESS} and {@value #ID} or {@value #ERROR} inside a
+ * {@link JsonArray}, which is added to the context by the key {@link PersistenceController#BULK_RESULTS_KEY}. The
+ * saved records are added as list by the simple name of the mapper class. For DELETE the existing records of a chunk
+ * are searched first, so that an id, which matches no record, is reported as failure. If
+ * {@link PersistenceController#VERSION_FIELD_PROP} is set, UPDATE loads the stored records of a chunk with one query,
+ * checks the version sent with each record like {@link UpdateAction} and fills the loaded record; each saved record
+ * gets an increased version.
+ *
+ * @author Michael Remme
+ *
+ */
+public class BulkAction extends AbstractAction {
+  private static final io.vertx.core.logging.Logger LOGGER = io.vertx.core.logging.LoggerFactory
+      .getLogger(BulkAction.class);
+
+  /**
+   * The field of a result, which contains the position of the record inside the request
+   */
+  public static final String INDEX = "index";
+  /**
+   * The field of a result, which contains true, if the record was handled successfully
+   */
+  public static final String SUCCESS = "success";
+  /**
+   * The field of a result, which contains the id of a saved or deleted record
+   */
+  public static final String ID = "id";
+  /**
+   * The field of a result, which contains the error message of a failed record
+   */
+  public static final String ERROR = "error";
+
+  private static final String JSON_CONTENT_TYPE = "application/json";
+
+  private final int chunkSize;
+  private final int maxRecords;
+
+  /**
+   * @param persitenceController
+   * @param chunkSize
+   *          the maximum number of records, which are persisted together
+   * @param maxRecords
+   *          the maximum number of records of one request
+   */
+  public BulkAction(PersistenceController persitenceController, int chunkSize, int maxRecords) {
+    super(persitenceController);
+    this.chunkSize = chunkSize;
+    this.maxRecords = maxRecords;
+  }
+
+  @Override
+  protected void handleRegularEntityDefinition(String entityName, RoutingContext context, CaptureMap captureMap,
+      IMapper<?> mapper, Handler<AsyncResult<Void>> handler) {
+    String actionKey = captureMap.get(PersistenceController.ACTION_CAPTURE_KEY);
+    Action action;
+    try {
+      action = actionKey == null ? Action.DISPLAY : Action.valueOf(actionKey);
+    } catch (IllegalArgumentException e) {
+      handler.handle(Future.failedFuture(new UnsupportedOperationException("unknown action: " + actionKey, e)));
+      return;
+    }
+    if (action != Action.INSERT && action != Action.UPDATE && action != Action.DELETE) {
+      handler.handle(Future.failedFuture(new UnsupportedOperationException("no bulk mode for action " + action)));
+      return;
+    }
+    List<Map<String, String>> records;
+    try {
+      records = extractRecords(entityName, context);
+    } catch (Exception e) {
+      handler.handle(Future.failedFuture(e));
+      return;
+    }
+    LOGGER.info(String.format("handling bulk action %s for %d records", action, records.size()));
+    JsonObject[] results = new JsonObject[records.size()];
+    List<Object> saved = new ArrayList<>();
+    handleChunk(action, 0, records, mapper, results, saved, res -> {
+      if (res.failed()) {
+        handler.handle(Future.failedFuture(res.cause()));
+      } else {
+        for (JsonObject result : results) {
+          if (result.getBoolean(SUCCESS)) {
+            publishRecordsChanged(mapper);
+            break;
+          }
+        }
+        addToContext(context, PersistenceController.BULK_RESULTS_KEY, new JsonArray(Arrays.asList(results)));
+        addToContext(context, mapper.getMapperClass().getSimpleName(), saved);
+        handler.handle(Future.succeededFuture());
+      }
+    });
+  }
+
+  @Override
+  protected void handleSubobjectEntityDefinition(RoutingContext context, String entityName, CaptureMap captureMap,
+      IMapper<?> mapper, Handler<AsyncResult<Void>> handler) {
+    handler.handle(Future.failedFuture(new UnsupportedOperationException("no bulk mode for subobjects")));
+  }
+
+  /**
+   * Handles the chunk, which starts at the given position, and continues with the next chunk after it was persisted
+   */
+  private void handleChunk(Action action, int start, List<Map<String, String>> records, IMapper<?> mapper,
+      JsonObject[] results, List<Object> saved, Handler<AsyncResult<Void>> handler) {
+    if (start >= records.size()) {
+      handler.handle(Future.succeededFuture());
+      return;
+    }
+    int end = Math.min(start + chunkSize, records.size());
+    Handler<AsyncResult<Void>> next = res -> {
+      if (res.failed()) {
+        handler.handle(Future.failedFuture(res.cause()));
+      } else {
+        handleChunk(action, end, records, mapper, results, saved, handler);
+      }
+    };
+    if (action == Action.DELETE) {
+      deleteChunk(start, end, records, mapper, results, next);
+    } else {
+      saveChunk(action, start, end, records, mapper, results, saved, next);
+    }
+  }
+
+  /**
+   * Saves the records of a chunk. If the versions of updated records are checked, the stored records of the chunk are
+   * loaded before
+   */
+  private void saveChunk(Action action, int start, int end, List<Map<String, String>> records, IMapper<?> mapper,
+      JsonObject[] results, List<Object> saved, Handler<AsyncResult<Void>> handler) {
+    if (action != Action.UPDATE || getVersionField(mapper) == null) {
+      createChunk(action, start, end, records, mapper, null, results, saved, handler);
+      return;
+    }
+    loadStoredRecords(start, end, records, mapper, lr -> {
+      if (lr.failed()) {
+        for (int i = start; i < end; i++) {
+          results[i] = createFailure(i, lr.cause());
+        }
+        handler.handle(Future.succeededFuture());
+      } else {
+        createChunk(action, start, end, records, mapper, lr.result(), results, saved, handler);
+      }
+    });
+  }
+
+  /**
+   * Loads the stored records of a chunk with one query
+   * 
+   * @param handler
+   *          receives the loaded records by the value of their id
+   */
+  private void loadStoredRecords(int start, int end, List<Map<String, String>> records, IMapper<?> mapper,
+      Handler<AsyncResult<Map<String, Object>>> handler) {
+    String idField = mapper.getIdInfo().getIndexedField().getFieldName();
+    List<String> ids = new ArrayList<>();
+    for (int i = start; i < end; i++) {
+      String id = records.get(i).get(idField.toLowerCase());
+      if (id != null) {
+        ids.add(id);
+      }
+    }
+    Map<String, Object> stored = new HashMap<>();
+    if (ids.isEmpty()) {
+      handler.handle(Future.succeededFuture(stored));
+      return;
+    }
+    IQuery<?> query = getPersistenceController().getNetRelay().getDatastore().createQuery(mapper.getMapperClass());
+    query.setSearchCondition(createIdCondition(idField, ids));
+    query.execute(null, ids.size(), 0, qr -> {
+      if (qr.failed()) {
+        handler.handle(Future.failedFuture(qr.cause()));
+        return;
+      }
+      qr.result().toArray(ar -> {
+        if (ar.failed()) {
+          handler.handle(Future.failedFuture(ar.cause()));
+          return;
+        }
+        for (Object record : ar.result()) {
+          stored.put(String.valueOf(mapper.getIdInfo().getField().getPropertyAccessor().readData(record)), record);
+        }
+        handler.handle(Future.succeededFuture(stored));
+      });
+    });
+  }
+
+  /**
+   * Creates the records of a chunk in parallel and saves all created records with one {@link IWrite}. The records are
+   * created one by one by {@link IStoreObjectFactory#createStoreObject(Object, IMapper, Handler)}, because
+   * createStoreObjects converts existing entities into store objects and has no variant, which creates entities from
+   * the fields of a request; besides, each record keeps its own result, if its fields can't be converted
+   * 
+   * @param stored
+   *          the stored records by their ids, which are checked and filled, or null, if the store object factory
+   *          creates the records
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private void createChunk(Action action, int start, int end, List<Map<String, String>> records, IMapper mapper,
+      Map<String, Object> stored, JsonObject[] results, List<Object> saved, Handler<AsyncResult<Void>> handler) {
+    NetRelayStoreObjectFactory sf = getPersistenceController().getNetRelay().getStoreObjectFactory();
+    String idField = mapper.getIdInfo().getIndexedField().getFieldName().toLowerCase();
+    List<Future> fl = new ArrayList<>();
+    for (int i = start; i < end; i++) {
+      Map<String, String> record = records.get(i);
+      Future<IStoreObject> f = Future.future();
+      if (action == Action.UPDATE && record.get(idField) == null) {
+        f.fail(new ParameterRequiredException("The update action needs the id field in each record"));
+      } else if (stored == null) {
+        sf.createStoreObject(record, mapper, (Handler) f.completer());
+      } else {
+        createStoredObject(sf, record, stored.get(record.get(idField)), mapper, f);
+      }
+      fl.add(f);
+    }
+    CompositeFuture.join(fl).setHandler(cfr -> {
+      List<Object> entities = new ArrayList<>();
+      List<Integer> indexes = new ArrayList<>();
+      for (int i = 0; i < fl.size(); i++) {
+        Future<IStoreObject> f = fl.get(i);
+        if (f.failed()) {
+          results[start + i] = createFailure(start + i, f.cause());
+        } else if (action != Action.UPDATE || increaseVersion(start + i, mapper, f.result().getEntity(), results)) {
+          entities.add(f.result().getEntity());
+          indexes.add(start + i);
+        }
+      }
+      if (entities.isEmpty()) {
+        handler.handle(Future.succeededFuture());
+        return;
+      }
+      IWrite write = getPersistenceController().getNetRelay().getDatastore().createWrite(mapper.getMapperClass());
+      write.addAll(entities);
+      write.save(wr -> {
+        for (int i = 0; i < indexes.size(); i++) {
+          int index = indexes.get(i);
+          if (wr.failed()) {
+            results[index] = createFailure(index, wr.cause());
+          } else {
+            Object id = mapper.getIdInfo().getField().getPropertyAccessor().readData(entities.get(i));
+            results[index] = createSuccess(index, id);
+          }
+        }
+        if (wr.succeeded()) {
+          saved.addAll(entities);
+        }
+        handler.handle(Future.succeededFuture());
+      });
+    });
+  }
+
+  /**
+   * Checks the version of a record against the stored record and fills the stored record with the fields of the
+   * request
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private void createStoredObject(NetRelayStoreObjectFactory sf, Map<String, String> record, Object storedRecord,
+      IMapper mapper, Future<IStoreObject> future) {
+    if (storedRecord == null) {
+      future.fail(new NoSuchRecordException(String.format(ERRORMESSAGE_RECNOTFOUND,
+          record.get(mapper.getIdInfo().getIndexedField().getFieldName().toLowerCase()))));
+      return;
+    }
+    String versionField = getVersionField(mapper).getName();
+    try {
+      checkVersion(mapper, storedRecord, record.get(versionField.toLowerCase()), versionField);
+    } catch (RuntimeException e) {
+      future.fail(e);
+      return;
+    }
+    sf.createStoreObject(record, storedRecord, mapper, (Handler) future.completer());
+  }
+
+  /**
+   * Increases the version of an updated record and stores a failure into the results, if the version can't be increased
+   * 
+   * @return true, if the record can be saved
+   */
+  private boolean increaseVersion(int index, IMapper<?> mapper, Object record, JsonObject[] results) {
+    try {
+      increaseVersion(mapper, record);
+      return true;
+    } catch (NumberFormatException e) {
+      results[index] = createFailure(index, e);
+      return false;
+    }
+  }
+
+  /**
+   * Deletes the records of a chunk with one {@link IDelete}. The existing records are searched before, so that the
+   * result of every id tells, whether a record was deleted
+   */
+  private void deleteChunk(int start, int end, List<Map<String, String>> records, IMapper<?> mapper,
+      JsonObject[] results, Handler<AsyncResult<Void>> handler) {
+    String idField = mapper.getIdInfo().getIndexedField().getFieldName();
+    List<String> ids = new ArrayList<>();
+    List<Integer> indexes = new ArrayList<>();
+    for (int i = start; i < end; i++) {
+      String id = records.get(i).get(idField.toLowerCase());
+      if (id == null) {
+        results[i] = createFailure(i,
+            new ParameterRequiredException("The delete action needs the id field in each record"));
+      } else {
+        ids.add(id);
+        indexes.add(i);
+      }
+    }
+    if (indexes.isEmpty()) {
+      handler.handle(Future.succeededFuture());
+      return;
+    }
+    IQuery<?> query = getPersistenceController().getNetRelay().getDatastore().createQuery(mapper.getMapperClass());
+    query.setSearchCondition(createIdCondition(idField, ids));
+    query.execute(null, ids.size(), 0, qr -> {
+      if (qr.failed()) {
+        handleDeleteFailure(indexes, results, qr.cause(), handler);
+        return;
+      }
+      IQueryResult<?> result = qr.result();
+      result.toArray(ar -> {
+        if (ar.failed()) {
+          handleDeleteFailure(indexes, results, ar.cause(), handler);
+          return;
+        }
+        Set<String> existing = new HashSet<>();
+        for (Object record : ar.result()) {
+          existing.add(String.valueOf(mapper.getIdInfo().getField().getPropertyAccessor().readData(record)));
+        }
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < indexes.size(); i++) {
+          int index = indexes.get(i);
+          if (existing.contains(ids.get(i))) {
+            found.add(index);
+          } else {
+            results[index] = createFailure(index,
+                new NoSuchRecordException("No record found with " + idField + " " + ids.get(i)));
+          }
+        }
+        deleteFound(found, records, idField, mapper, results, handler);
+      });
+    });
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private void deleteFound(List<Integer> found, List<Map<String, String>> records, String idField, IMapper<?> mapper,
+      JsonObject[] results, Handler<AsyncResult<Void>> handler) {
+    if (found.isEmpty()) {
+      handler.handle(Future.succeededFuture());
+      return;
+    }
+    List<String> ids = new ArrayList<>();
+    for (int index : found) {
+      ids.add(records.get(index).get(idField.toLowerCase()));
+    }
+    IDataStore datastore = getPersistenceController().getNetRelay().getDatastore();
+    IQuery query = datastore.createQuery(mapper.getMapperClass());
+    query.setSearchCondition(createIdCondition(idField, ids));
+    IDelete<?> delete = datastore.createDelete(mapper.getMapperClass());
+    delete.setQuery(query);
+    delete.delete(dr -> {
+      if (dr.failed()) {
+        handleDeleteFailure(found, results, dr.cause(), handler);
+        return;
+      }
+      for (int i = 0; i < found.size(); i++) {
+        results[found.get(i)] = createSuccess(found.get(i), ids.get(i));
+      }
+      handler.handle(Future.succeededFuture());
+    });
+  }
+
+  private ISearchCondition createIdCondition(String idField, List<String> ids) {
+    ISearchConditionContainer or = ISearchCondition.or();
+    for (String id : ids) {
+      or.getConditions().add(ISearchCondition.isEqual(idField, id));
+    }
+    return or;
+  }
+
+  private void handleDeleteFailure(List<Integer> indexes, JsonObject[] results, Throwable cause,
+      Handler<AsyncResult<Void>> handler) {
+    for (int index : indexes) {
+      results[index] = createFailure(index, cause);
+    }
+    handler.handle(Future.succeededFuture());
+  }
+
+  private JsonObject createSuccess(int index, Object id) {
+    return new JsonObject().put(INDEX, index).put(SUCCESS, true).put(ID, id == null ? null : String.valueOf(id));
+  }
+
+  private JsonObject createFailure(int index, Throwable cause) {
+    LOGGER.warn("record " + index + " of bulk request failed", cause);
+    return new JsonObject().put(INDEX, index).put(SUCCESS, false).put(ERROR, String.valueOf(cause.getMessage()));
+  }
+
+  /**
+   * Extract the records of the request, either from a JSON array in the body or from form fields in the form
+   * "entityName.index.fieldName". The keys of the records are reduced to the lower case name of the field, like in
+   * {@link InsertAction#extractProperties(String, CaptureMap, RoutingContext, IMapper)}
+   *
+   * @param entityName
+   *          the name, like it was specified by the parameter {@link PersistenceController#MAPPER_CAPTURE_KEY}
+   * @param context
+   *          the {@link RoutingContext} of the request
+   * @return the records in the order of the request
+   * @throws IllegalArgumentException
+   *           if the request contains more records than allowed; this is checked before the records are converted
+   */
+  protected List<Map<String, String>> extractRecords(String entityName, RoutingContext context) {
+    String contentType = context.request().getHeader(HttpHeaders.CONTENT_TYPE);
+    if (contentType != null && contentType.startsWith(JSON_CONTENT_TYPE)) {
+      JsonArray array = context.getBodyAsJsonArray();
+      if (array != null && array.size() > maxRecords) {
+        throw createMaxRecordsException(String.valueOf(array.size()));
+      }
+      return extractJsonRecords(array);
+    }
+    String startKey = entityName.toLowerCase() + ".";
+    TreeMap<Integer, Map<String, String>> records = new TreeMap<>();
+    extractRecordsFromMap(startKey, records, context.request().formAttributes());
+    extractRecordsFromMap(startKey, records, context.request().params());
+    return new ArrayList<>(records.values());
+  }
+
+  private List<Map<String, String>> extractJsonRecords(JsonArray array) {
+    List<Map<String, String>> records = new ArrayList<>();
+    if (array == null) {
+      return records;
+    }
+    for (Object entry : array) {
+      if (!(entry instanceof JsonObject)) {
+        throw new IllegalArgumentException("A bulk request expects an array of objects");
+      }
+      Map<String, String> record = new HashMap<>();
+      for (Entry<String, Object> field : (JsonObject) entry) {
+        Object value = field.getValue();
+        if (value != null) {
+          record.put(field.getKey().toLowerCase(), value.toString());
+        }
+      }
+      records.add(record);
+    }
+    return records;
+  }
+
+  private void extractRecordsFromMap(String startKey, TreeMap<Integer, Map<String, String>> records, MultiMap attrs) {
+    Iterator<Entry<String, String>> it = attrs.iterator();
+    while (it.hasNext()) {
+      Entry<String, String> entry = it.next();
+      String key = entry.getKey().toLowerCase();
+      int dot = key.indexOf('.', startKey.length());
+      if (key.startsWith(startKey) && dot > startKey.length()) {
+        Integer index;
+        try {
+          index = Integer.valueOf(key.substring(startKey.length(), dot));
+        } catch (NumberFormatException e) {
+          LOGGER.debug("not a field of a bulk record: " + key);
+          continue;
+        }
+        if (records.size() >= maxRecords && !records.containsKey(index)) {
+          throw createMaxRecordsException("more than " + maxRecords);
+        }
+        records.computeIfAbsent(index, i -> new HashMap<>()).put(key.substring(dot + 1), entry.getValue());
+      }
+    }
+  }
+
+  private IllegalArgumentException createMaxRecordsException(String count) {
+    return new IllegalArgumentException(
+        String.format("The bulk request contains %s records, the maximum is %d", count, maxRecords));
+  }
+
+}
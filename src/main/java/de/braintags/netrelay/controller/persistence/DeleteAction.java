@@ -50,6 +50,7 @@ public class DeleteAction extends AbstractAction {
       if (result.failed()) {
         handler.handle(Future.failedFuture(result.cause()));
       } else {
+        publishRecordsChanged(mapper);
         handler.handle(Future.succeededFuture());
       }
     });
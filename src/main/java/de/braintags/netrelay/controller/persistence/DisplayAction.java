@@ -12,12 +12,18 @@
  */
 package de.braintags.netrelay.controller.persistence;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import de.braintags.netrelay.cache.ExpiringLruCache;
 import de.braintags.netrelay.controller.AbstractCaptureController.CaptureMap;
+import de.braintags.vertx.jomnigate.IDataStore;
 import de.braintags.vertx.jomnigate.dataaccess.query.IQuery;
 import de.braintags.vertx.jomnigate.dataaccess.query.IQueryResult;
+import de.braintags.vertx.jomnigate.dataaccess.query.ISearchCondition;
+import de.braintags.vertx.jomnigate.dataaccess.query.ISearchConditionContainer;
 import de.braintags.vertx.jomnigate.exception.NoSuchRecordException;
 import de.braintags.vertx.jomnigate.mapping.IMapper;
 import io.vertx.core.AsyncResult;
@@ -36,22 +42,66 @@ public class DisplayAction extends AbstractAction {
       .getLogger(DisplayAction.class);
   private static final String MESSAGE = "Adding %s to context for entity %s / size: %s";
 
+  private final ExpiringLruCache<String, DisplayPlan> plans;
+
   /**
-   *
+   * @param persitenceController
+   *          the controller, which uses the action
+   * @param planCacheSize
+   *          the maximum number of {@link DisplayPlan}s, which are kept for different shapes of requests
    */
-  public DisplayAction(PersistenceController persitenceController) {
+  public DisplayAction(PersistenceController persitenceController, int planCacheSize) {
     super(persitenceController);
+    this.plans = new ExpiringLruCache<>(planCacheSize);
   }
 
   @Override
   protected void handleRegularEntityDefinition(String entityName, RoutingContext context, CaptureMap captureMap,
       IMapper<?> mapper, Handler<AsyncResult<Void>> handler) {
-    IQuery<?> query = getPersistenceController().getNetRelay().getDatastore().createQuery(mapper.getMapperClass());
-    RecordContractor.extractId(mapper, captureMap, query);
-    addQueryCritera(query, captureMap);
+    String mapperSpec = captureMap.get(PersistenceController.MAPPER_CAPTURE_KEY);
+    if (mapperSpec == null) {
+      throw new NullPointerException("no entity name specified");
+    }
+    String planKey = createPlanKey(mapperSpec, captureMap.get(PersistenceController.ORDERBY_CAPTURE_KEY));
+    DisplayPlan plan = plans.get(planKey);
+    if (plan == null) {
+      plan = new DisplayPlan(mapper, captureMap);
+      plans.put(planKey, plan);
+    }
+    IQuery<?> query = plan.createQuery(getPersistenceController().getNetRelay().getDatastore(), mapperSpec);
     handleQuery(query, entityName, context, captureMap, mapper, handler);
   }
 
+  /**
+   * Creates the key of a {@link DisplayPlan} from the shape of a request: the name of the mapper, the names of the id
+   * fields and the orderBy. The key is copied from the raw capture, like "Person(ID:4)", without the values of the ids,
+   * so all requests for single records of a mapper share one plan and bind their ids to it
+   *
+   * @param mapperSpec
+   *          the value of the capture {@link PersistenceController#MAPPER_CAPTURE_KEY}
+   * @param orderBy
+   *          the value of the capture {@link PersistenceController#ORDERBY_CAPTURE_KEY} or null
+   * @return the key of the plan
+   */
+  public static String createPlanKey(String mapperSpec, String orderBy) {
+    StringBuilder key = new StringBuilder(mapperSpec.length() + 16);
+    boolean value = false;
+    for (int i = 0; i < mapperSpec.length(); i++) {
+      char c = mapperSpec.charAt(i);
+      if (c == '.') {
+        break;
+      } else if (c == ':') {
+        value = true;
+      } else if (c == ',' || c == RecordContractor.CLOSE_BRACKET) {
+        value = false;
+      }
+      if (!value) {
+        key.append(c);
+      }
+    }
+    return key.append('\u0000').append(orderBy).toString();
+  }
+
   @Override
   protected void handleSubobjectEntityDefinition(RoutingContext context, String entityName, CaptureMap captureMap,
       IMapper<?> mapper, Handler<AsyncResult<Void>> handler) {
@@ -134,35 +184,77 @@ public class DisplayAction extends AbstractAction {
   }
 
   /**
-   * @param query
-   * @param map
+   * The parsed captures of a display action: the checked names of the id fields and the normalised sort definitions. A
+   * plan is immutable and kept for the shape of the request, see {@link DisplayAction#createPlanKey(String, String)}; a
+   * request binds the values of its ids, when it creates the query
    */
-  private void addQueryCritera(IQuery<?> query, CaptureMap map) {
-    if (map.containsKey(PersistenceController.ORDERBY_CAPTURE_KEY)) {
-      addSortDefintions(query, map);
+  private static final class DisplayPlan {
+    private final IMapper<?> mapper;
+    private final String[] idFields;
+    private final List<String[]> sorts;
+
+    DisplayPlan(IMapper<?> mapper, CaptureMap map) {
+      this.mapper = mapper;
+      List<String[]> ids = RecordContractor.extractIds(mapper, map);
+      this.idFields = new String[ids.size()];
+      for (int i = 0; i < idFields.length; i++) {
+        idFields[i] = ids.get(i)[0];
+      }
+      this.sorts = map.containsKey(PersistenceController.ORDERBY_CAPTURE_KEY)
+          ? parseSortDefinitions(map.get(PersistenceController.ORDERBY_CAPTURE_KEY)) : Collections.emptyList();
     }
-  }
 
-  private void addSortDefintions(IQuery<?> query, CaptureMap map) {
-    String str = map.get(PersistenceController.ORDERBY_CAPTURE_KEY);
-    String tmpString = str;
-    do {
-      tmpString = str;
-      str = str.replaceAll("  ", " ");
-      str = str.replaceAll(", ", ",");
-    } while (!tmpString.equals(str));
-
-    String[] defs = str.split(",");
-    for (String def : defs) {
-      String[] sort = def.split(" ");
-      if (sort.length == 1) {
-        query.addSort(sort[0]);
-      } else if (sort.length == 2) {
-        boolean ascending = sort[1].equalsIgnoreCase("asc");
-        query.addSort(sort[0], ascending);
+    private static List<String[]> parseSortDefinitions(String str) {
+      String tmpString = str;
+      do {
+        tmpString = str;
+        str = str.replaceAll("  ", " ");
+        str = str.replaceAll(", ", ",");
+      } while (!tmpString.equals(str));
+
+      List<String[]> sorts = new ArrayList<>();
+      String[] defs = str.split(",");
+      for (String def : defs) {
+        String[] sort = def.split(" ");
+        if (sort.length == 1 || sort.length == 2) {
+          sorts.add(sort);
+        }
       }
+      return Collections.unmodifiableList(sorts);
     }
 
+    /**
+     * Creates the query of the plan for one request
+     *
+     * @param datastore
+     *          the datastore to create the query
+     * @param mapperSpec
+     *          the capture of the mapper with the ids of the request, which has the shape of the plan
+     */
+    IQuery<?> createQuery(IDataStore datastore, String mapperSpec) {
+      IQuery<?> query = datastore.createQuery(mapper.getMapperClass());
+      if (idFields.length > 0) {
+        ISearchConditionContainer and = ISearchCondition.and();
+        int end = mapperSpec.indexOf(RecordContractor.OPEN_BRACKET);
+        for (String idField : idFields) {
+          int start = mapperSpec.indexOf(':', end) + 1;
+          end = mapperSpec.indexOf(',', start);
+          if (end < 0) {
+            end = mapperSpec.indexOf(RecordContractor.CLOSE_BRACKET, start);
+          }
+          and.getConditions().add(ISearchCondition.isEqual(idField, mapperSpec.substring(start, end)));
+        }
+        query.setSearchCondition(and);
+      }
+      for (String[] sort : sorts) {
+        if (sort.length == 1) {
+          query.addSort(sort[0]);
+        } else {
+          query.addSort(sort[0], sort[1].equalsIgnoreCase("asc"));
+        }
+      }
+      return query;
+    }
   }
 
 }
@@ -12,17 +12,24 @@
  */
 package de.braintags.netrelay.controller.persistence;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
 
 import de.braintags.netrelay.controller.AbstractCaptureController.CaptureMap;
 import de.braintags.netrelay.exception.FileNameException;
+import de.braintags.netrelay.mapping.NetRelayStoreObjectFactory;
 import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IStoreObject;
 import de.braintags.vertx.jomnigate.mapping.IStoreObjectFactory;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
@@ -77,15 +84,21 @@ public class InsertAction extends AbstractAction {
     InsertParameter ip = RecordContractor.resolveInsertParameter(mapper.getMapperFactory(), mainObject, captureMap);
     String subEntityName = ip.getFieldPath();
     Map<String, String> params = extractProperties(subEntityName, captureMap, context, ip.getSubObjectMapper());
-    handleFileUploads(subEntityName, context, params);
-    IStoreObjectFactory<Map<String, String>> sf = getPersistenceController().getNetRelay().getStoreObjectFactory();
-    sf.createStoreObject(params, ip.getSubObjectMapper(), result -> {
-      if (result.failed()) {
-        handler.handle(Future.failedFuture(result.cause()));
-      } else {
-        ip.getParentCollection().add(result.result().getEntity());
-        saveObjectInDatastore(mainObject, context, mapper, handler);
+    handleFileUploads(subEntityName, context, params, ur -> {
+      if (ur.failed()) {
+        handler.handle(Future.failedFuture(ur.cause()));
+        return;
       }
+      Handler<AsyncResult<Void>> uploadHandler = removeFilesOnFailure(ur.result(), handler);
+      IStoreObjectFactory<Map<String, String>> sf = getPersistenceController().getNetRelay().getStoreObjectFactory();
+      sf.createStoreObject(params, ip.getSubObjectMapper(), result -> {
+        if (result.failed()) {
+          uploadHandler.handle(Future.failedFuture(result.cause()));
+        } else {
+          ip.getParentCollection().add(result.result().getEntity());
+          saveObjectInDatastore(mainObject, context, mapper, uploadHandler);
+        }
+      });
     });
   }
 
@@ -101,47 +114,168 @@ public class InsertAction extends AbstractAction {
   @Override
   protected void handleRegularEntityDefinition(String entityName, RoutingContext context, CaptureMap captureMap,
       IMapper<?> mapper, Handler<AsyncResult<Void>> handler) {
+    handleRegularEntity(entityName, context, captureMap, mapper, null, handler);
+  }
+
+  /**
+   * Fills a main object with the transported properties and saves it
+   * 
+   * @param entityName
+   * @param context
+   * @param captureMap
+   * @param mapper
+   * @param record
+   *          the stored record, which is filled, if it was loaded already, or null to let the store object factory
+   *          create the record
+   * @param handler
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  protected void handleRegularEntity(String entityName, RoutingContext context, CaptureMap captureMap,
+      IMapper<?> mapper, Object record, Handler<AsyncResult<Void>> handler) {
     Map<String, String> params = extractProperties(entityName, captureMap, context, mapper);
-    handleFileUploads(entityName, context, params);
-    IStoreObjectFactory<Map<String, String>> sf = getPersistenceController().getNetRelay().getStoreObjectFactory();
-    sf.createStoreObject(params, mapper, result -> {
-      if (result.failed()) {
-        handler.handle(Future.failedFuture(result.cause()));
+    handleFileUploads(entityName, context, params, ur -> {
+      if (ur.failed()) {
+        handler.handle(Future.failedFuture(ur.cause()));
+        return;
+      }
+      Handler<AsyncResult<Void>> uploadHandler = removeFilesOnFailure(ur.result(), handler);
+      NetRelayStoreObjectFactory sf = getPersistenceController().getNetRelay().getStoreObjectFactory();
+      Handler<AsyncResult<IStoreObject>> storeHandler = result -> {
+        if (result.failed()) {
+          uploadHandler.handle(Future.failedFuture(result.cause()));
+        } else {
+          Object ob = result.result().getEntity();
+          saveObjectInDatastore(ob, context, mapper, uploadHandler);
+        }
+      };
+      if (record == null) {
+        sf.createStoreObject(params, (IMapper) mapper, (Handler) storeHandler);
       } else {
-        Object ob = result.result().getEntity();
-        saveObjectInDatastore(ob, context, mapper, handler);
+        sf.createStoreObject(params, record, (IMapper) mapper, (Handler) storeHandler);
       }
     });
   }
 
-  protected void handleFileUploads(String entityName, RoutingContext context, Map<String, String> params) {
+  /**
+   * Moves the uploaded files, which belong to the given entity, into the upload directory and adds their relative path
+   * to the properties. The files are moved asynchronously; each file gets a unique name by adding a random UUID to the
+   * cleaned name of the upload, so that existing files are not probed. If one of the moves fails, the files which were
+   * moved already are deleted again
+   * 
+   * @param entityName
+   *          the name of the entity, which the fields of the uploads start with
+   * @param context
+   *          the context of the request
+   * @param params
+   *          the properties of the entity, where the relative paths are added
+   * @param handler
+   *          the handler to be informed, after all files were moved. It receives the absolute paths of the moved files,
+   *          which can be removed by {@link #removeFilesOnFailure(List, Handler)}, if the entity can't be saved
+   */
+  @SuppressWarnings("rawtypes")
+  protected void handleFileUploads(String entityName, RoutingContext context, Map<String, String> params,
+      Handler<AsyncResult<List<String>>> handler) {
     String startKey = entityName.toLowerCase() + ".";
     Set<FileUpload> fileUploads = context.fileUploads();
-    FileSystem fs = getPersistenceController().getVertx().fileSystem();
     LOGGER.info("Number of fileuploads: " + fileUploads.size());
-
+    List<FileUpload> uploads = new ArrayList<>();
     for (FileUpload upload : fileUploads) {
       if (isHandleUpload(upload, startKey)) {
-        try {
-          String fieldName = upload.name().toLowerCase();
-          LOGGER.info("uploaded file detected for field name " + fieldName + ", fileName: " + upload.fileName());
-          String relativePath = handleOneFile(fs, upload);
-          String pureKey = fieldName.substring(startKey.length());
-          params.put(pureKey, relativePath);
-        } catch (Exception e) {
-          context.fail(e);
+        uploads.add(upload);
+      }
+    }
+    if (uploads.isEmpty()) {
+      handler.handle(Future.succeededFuture(Collections.emptyList()));
+      return;
+    }
+    FileSystem fs = getPersistenceController().getVertx().fileSystem();
+    String upDir = getPersistenceController().readProperty(PersistenceController.UPLOAD_DIRECTORY_PROP, null, true);
+    fs.mkdirs(upDir, dr -> {
+      if (dr.failed()) {
+        handler.handle(Future.failedFuture(dr.cause()));
+        return;
+      }
+      List<Future> fl = new ArrayList<>();
+      List<String> movedFiles = Collections.synchronizedList(new ArrayList<>());
+      for (FileUpload upload : uploads) {
+        String fieldName = upload.name().toLowerCase();
+        LOGGER.info("uploaded file detected for field name " + fieldName + ", fileName: " + upload.fileName());
+        Future<String> f = Future.future();
+        handleOneFile(fs, upDir, upload, movedFiles, f.completer());
+        fl.add(f);
+      }
+      CompositeFuture.join(fl).setHandler(cfr -> {
+        if (cfr.failed()) {
+          deleteFiles(movedFiles);
+          handler.handle(Future.failedFuture(cfr.cause()));
+        } else {
+          for (int i = 0; i < uploads.size(); i++) {
+            String pureKey = uploads.get(i).name().toLowerCase().substring(startKey.length());
+            params.put(pureKey, cfr.result().resultAt(i));
+          }
+          handler.handle(Future.succeededFuture(new ArrayList<>(movedFiles)));
         }
+      });
+    });
+  }
+
+  /**
+   * Creates a handler, which deletes the given files, if the result is failed, and informs the given handler
+   * afterwards. Used to remove the uploaded files, if the entity, which references them, couldn't be saved
+   * 
+   * @param movedFiles
+   *          the absolute paths of the moved uploads
+   * @param handler
+   *          the handler to be informed
+   * @return the handler to be used for creating and saving the entity
+   */
+  protected Handler<AsyncResult<Void>> removeFilesOnFailure(List<String> movedFiles,
+      Handler<AsyncResult<Void>> handler) {
+    if (movedFiles.isEmpty()) {
+      return handler;
+    }
+    return result -> {
+      if (result.failed()) {
+        deleteFiles(movedFiles);
+      }
+      handler.handle(result);
+    };
+  }
+
+  private void deleteFiles(List<String> files) {
+    FileSystem fs = getPersistenceController().getVertx().fileSystem();
+    synchronized (files) {
+      for (String file : files) {
+        fs.delete(file, dr -> {
+          if (dr.failed()) {
+            LOGGER.warn("could not delete uploaded file " + file, dr.cause());
+          } else {
+            LOGGER.info("deleted uploaded file " + file);
+          }
+        });
       }
     }
   }
 
-  private String handleOneFile(FileSystem fs, FileUpload upload) {
+  private void handleOneFile(FileSystem fs, String upDir, FileUpload upload, List<String> movedFiles,
+      Handler<AsyncResult<String>> handler) {
     String uploadedFile = upload.uploadedFileName();
-    String[] newDestination = examineNewDestination(fs, upload);
-    fs.moveBlocking(uploadedFile, newDestination[0]);
-
-    LOGGER.info(String.format(MOVE_MESSAGE, uploadedFile, newDestination[0]));
-    return newDestination[1];
+    String[] newDestination;
+    try {
+      newDestination = examineNewDestination(upDir, upload);
+    } catch (FileNameException e) {
+      handler.handle(Future.failedFuture(e));
+      return;
+    }
+    fs.move(uploadedFile, newDestination[0], mr -> {
+      if (mr.failed()) {
+        handler.handle(Future.failedFuture(mr.cause()));
+      } else {
+        LOGGER.info(String.format(MOVE_MESSAGE, uploadedFile, newDestination[0]));
+        movedFiles.add(newDestination[0]);
+        handler.handle(Future.succeededFuture(newDestination[1]));
+      }
+    });
   }
 
   private boolean isHandleUpload(FileUpload upload, String startKey) {
@@ -160,38 +294,28 @@ public class InsertAction extends AbstractAction {
     return true;
   }
 
-  private String[] examineNewDestination(FileSystem fs, FileUpload upload) {
+  private String[] examineNewDestination(String upDir, FileUpload upload) {
     if (upload.fileName() == null || upload.fileName().hashCode() == 0) {
       throw new FileNameException("The upload contains no filename");
     }
     String[] destinations = new String[2];
-    String upDir = getPersistenceController().readProperty(PersistenceController.UPLOAD_DIRECTORY_PROP, null, true);
-    if (!fs.existsBlocking(upDir)) {
-      fs.mkdirsBlocking(upDir);
-    }
     String relDir = getPersistenceController().readProperty(PersistenceController.UPLOAD_RELATIVE_PATH_PROP, null,
         true);
-    String fileName = createUniqueName(fs, upDir, upload.fileName());
-    destinations[0] = upDir + (upDir.endsWith("/") ? "" : "/") + fileName;
-    destinations[1] = relDir + (relDir.endsWith("/") ? "" : "/") + fileName;
+    String fileName = createUniqueName(upload.fileName());
+    destinations[0] = createPath(upDir, fileName);
+    destinations[1] = createPath(relDir, fileName);
     return destinations;
   }
 
-  private String createUniqueName(FileSystem fs, String upDir, String fileInName) {
-    final String fileName = cleanFileName(fileInName);
-    String newFileName = fileName;
-    int counter = 0;
-    String path = createPath(upDir, fileName);
-    while (fs.existsBlocking(path)) {
-      LOGGER.info("file exists already: " + path);
-      if (fileName.indexOf('.') >= 0) {
-        newFileName = fileName.replaceFirst("\\.", "_" + counter++ + ".");
-      } else {
-        newFileName = fileName + "_" + counter++;
-      }
-      path = createPath(upDir, newFileName);
-    }
-    return newFileName;
+  /**
+   * Creates a unique name for an uploaded file by adding a random UUID before the extension, like
+   * "image_0f8fad5b-d9cb-469f-a165-70867728950e.jpg"
+   */
+  private String createUniqueName(String fileInName) {
+    String fileName = cleanFileName(fileInName);
+    String unique = "_" + UUID.randomUUID().toString();
+    int index = fileName.lastIndexOf('.');
+    return index > 0 ? fileName.substring(0, index) + unique + fileName.substring(index) : fileName + unique;
   }
 
   private String createPath(String upDir, String fileName) {
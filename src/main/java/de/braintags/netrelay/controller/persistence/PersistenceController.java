@@ -63,6 +63,16 @@ import io.vertx.ext.web.RoutingContext;
  * record in a selection
  * <LI>{@value #ORDERBY_CAPTURE_KEY} - the name of the parameter, which defines the sort arguments as comma
  * separated list in the form of fieldname asc / desc.
+ * <LI>{@value #BULK_CAPTURE_KEY} - the name of the parameter, which switches the actions INSERT, UPDATE and DELETE into
+ * the bulk mode, where a batch of records of one mapper is handled. See {@link BulkAction}
+ * <LI>{@value #BULK_CHUNK_SIZE_PROP} - The name of the property, which defines the maximum number of records, which are
+ * persisted together in the bulk mode. Default is {@value #DEFAULT_BULK_CHUNK_SIZE}
+ * <LI>{@value #BULK_MAX_RECORDS_PROP} - The name of the property, which defines the maximum number of records of one
+ * bulk request. Default is {@value #DEFAULT_BULK_MAX_RECORDS}
+ * <LI>{@value #VERSION_FIELD_PROP} - The name of the property, which defines the version field of records. If set,
+ * updates must send the version of the main record and each update increases it, see {@link UpdateAction}
+ * <LI>{@value #DISPLAY_PLAN_CACHE_SIZE_PROP} - The name of the property, which defines the maximum number of parsed
+ * display requests of different shapes, which are kept. Default is {@value #DEFAULT_DISPLAY_PLAN_CACHE_SIZE}
  * </UL>
  * Further parameters {@link AbstractCaptureController}
  * 
@@ -148,11 +158,69 @@ public class PersistenceController extends AbstractCaptureController {
    */
   public static final String ORDERBY_CAPTURE_KEY = "orderBy";
 
+  /**
+   * The address of the event bus, where the name of the mapper class is published, after records of the mapper were
+   * inserted, updated or deleted. Caches of query results, like the one of the QueryPoolController, can use it to be
+   * invalidated
+   */
+  public static final String RECORDS_CHANGED_ADDRESS = "netrelay.persistence.recordsChanged";
+
+  /**
+   * The name of the property in the request, which switches an action into the bulk mode, if it is "true"
+   */
+  public static final String BULK_CAPTURE_KEY = "bulk";
+
+  /**
+   * The key, by which the results of the single records of a bulk request are stored inside the context
+   */
+  public static final String BULK_RESULTS_KEY = "bulkResults";
+
+  /**
+   * The name of the property, which defines the maximum number of records, which are persisted together in the bulk
+   * mode
+   */
+  public static final String BULK_CHUNK_SIZE_PROP = "bulkChunkSize";
+
+  /**
+   * The default value for {@link #BULK_CHUNK_SIZE_PROP}
+   */
+  public static final int DEFAULT_BULK_CHUNK_SIZE = 500;
+
+  /**
+   * The name of the property, which defines the maximum number of records of one bulk request. A request with more
+   * records fails without handling any record
+   */
+  public static final String BULK_MAX_RECORDS_PROP = "bulkMaxRecords";
+
+  /**
+   * The default value for {@link #BULK_MAX_RECORDS_PROP}
+   */
+  public static final int DEFAULT_BULK_MAX_RECORDS = 5000;
+
+  /**
+   * The name of the property, which defines the name of the field, which contains the version of a record. If set,
+   * updates must send the version of the main record and each update increases it, see {@link UpdateAction}
+   */
+  public static final String VERSION_FIELD_PROP = "versionField";
+
+  /**
+   * The name of the property, which defines the maximum number of parsed display requests of different shapes, which
+   * are kept by the {@link DisplayAction}
+   */
+  public static final String DISPLAY_PLAN_CACHE_SIZE_PROP = "displayPlanCacheSize";
+
+  /**
+   * The default value for {@link #DISPLAY_PLAN_CACHE_SIZE_PROP}
+   */
+  public static final int DEFAULT_DISPLAY_PLAN_CACHE_SIZE = 1000;
+
   private DisplayAction displayAction;
   private InsertAction insertAction;
   private UpdateAction updateAction;
   private DeleteAction deleteAction;
   private NoneAction noneAction;
+  private BulkAction bulkAction;
+  private String versionField;
 
   /*
    * (non-Javadoc)
@@ -219,6 +287,9 @@ public class PersistenceController extends AbstractCaptureController {
   }
 
   private AbstractAction resolveAction(CaptureMap map) {
+    if (Boolean.parseBoolean(map.get(BULK_CAPTURE_KEY))) {
+      return bulkAction;
+    }
     String actionKey = map.get(ACTION_CAPTURE_KEY);
     Action action = actionKey == null ? Action.DISPLAY : Action.valueOf(actionKey);
     LOGGER.info("action is " + action);
@@ -245,11 +316,18 @@ public class PersistenceController extends AbstractCaptureController {
    */
   @Override
   protected void internalInitProperties(Properties properties) {
-    displayAction = new DisplayAction(this);
+    int planCacheSize = Integer.parseInt(
+        readProperty(DISPLAY_PLAN_CACHE_SIZE_PROP, String.valueOf(DEFAULT_DISPLAY_PLAN_CACHE_SIZE), false));
+    displayAction = new DisplayAction(this, planCacheSize);
     insertAction = new InsertAction(this);
     updateAction = new UpdateAction(this);
     deleteAction = new DeleteAction(this);
     noneAction = new NoneAction(this);
+    int chunkSize = Integer.parseInt(readProperty(BULK_CHUNK_SIZE_PROP, String.valueOf(DEFAULT_BULK_CHUNK_SIZE), false));
+    int maxRecords = Integer
+        .parseInt(readProperty(BULK_MAX_RECORDS_PROP, String.valueOf(DEFAULT_BULK_MAX_RECORDS), false));
+    bulkAction = new BulkAction(this, chunkSize, maxRecords);
+    versionField = readProperty(VERSION_FIELD_PROP, null, false);
     String upDir = readProperty(PersistenceController.UPLOAD_DIRECTORY_PROP, null, true);
     FileSystem fs = getVertx().fileSystem();
     if (!fs.existsBlocking(upDir)) {
@@ -270,7 +348,7 @@ public class PersistenceController extends AbstractCaptureController {
   public static RouterDefinition createDefaultRouterDefinition() {
     RouterDefinition def = new RouterDefinition();
     def.setName(PersistenceController.class.getSimpleName());
-    def.setBlocking(true);
+    def.setBlocking(false);
     def.setController(PersistenceController.class);
     def.setHandlerProperties(getDefaultProperties());
     def.setRoutes(new String[] { "/persistenceController/:entity/:action/read.html" });
@@ -279,12 +357,13 @@ public class PersistenceController extends AbstractCaptureController {
   }
 
   private static CaptureCollection[] createDefaultCaptureCollection() {
-    CaptureDefinition[] defs = new CaptureDefinition[5];
+    CaptureDefinition[] defs = new CaptureDefinition[6];
     defs[0] = new CaptureDefinition("entity", PersistenceController.MAPPER_CAPTURE_KEY, false);
     defs[1] = new CaptureDefinition("action", PersistenceController.ACTION_CAPTURE_KEY, false);
     defs[2] = new CaptureDefinition("selectionSize", PersistenceController.SELECTION_SIZE_CAPTURE_KEY, false);
     defs[3] = new CaptureDefinition("selectionStart", PersistenceController.SELECTION_START_CAPTURE_KEY, false);
     defs[4] = new CaptureDefinition("orderBy", PersistenceController.ORDERBY_CAPTURE_KEY, false);
+    defs[5] = new CaptureDefinition("bulk", PersistenceController.BULK_CAPTURE_KEY, false);
 
     CaptureCollection collection = new CaptureCollection();
     collection.setCaptureDefinitions(defs);
@@ -305,6 +384,15 @@ public class PersistenceController extends AbstractCaptureController {
     return json;
   }
 
+  /**
+   * Get the name of the field, which contains the version of a record
+   * 
+   * @return the name of the version field or null, if records have no version
+   */
+  public String getVersionField() {
+    return versionField;
+  }
+
   /**
    * @return the mapperFactory
    */
@@ -192,25 +192,35 @@ public class RecordContractor {
     if (collection == null || collection.isEmpty()) {
       throw new NullPointerException("Could not find expected collection for object reference " + objectReference);
     }
-    IMapper subMapper = mapperFactory.getMapper(field.getSubClass());
+    IProperty[] idFields = getIdFields(mapperFactory.getMapper(field.getSubClass()), ids);
     for (Object member : collection) {
-      if (doesObjectFit(subMapper, ids, member)) {
+      if (doesObjectFit(idFields, ids, member)) {
         return member;
       }
     }
     throw new ObjectRequiredException("Could not find expected object for object reference " + objectReference);
   }
 
-  private static boolean doesObjectFit(IMapper subMapper, List<String[]> ids, Object object) {
-    for (String[] idDef : ids) {
-      IProperty fieldDef = subMapper.getField(idDef[0]);
-      if (fieldDef == null) {
-        throw new FieldNotFoundException(subMapper, idDef[0]);
+  /**
+   * Resolves the properties of the id definitions once, before the members of a collection are compared
+   */
+  private static IProperty[] getIdFields(IMapper subMapper, List<String[]> ids) {
+    IProperty[] idFields = new IProperty[ids.size()];
+    for (int i = 0; i < idFields.length; i++) {
+      idFields[i] = subMapper.getField(ids.get(i)[0]);
+      if (idFields[i] == null) {
+        throw new FieldNotFoundException(subMapper, ids.get(i)[0]);
       }
-      Object value = fieldDef.getPropertyAccessor().readData(object);
+    }
+    return idFields;
+  }
+
+  private static boolean doesObjectFit(IProperty[] idFields, List<String[]> ids, Object object) {
+    for (int i = 0; i < idFields.length; i++) {
+      Object value = idFields[i].getPropertyAccessor().readData(object);
       if (value == null) {
         return false;
-      } else if (!Objects.equals(String.valueOf(value), idDef[1])) {
+      } else if (!Objects.equals(String.valueOf(value), ids.get(i)[1])) {
         return false;
       }
     }
@@ -325,6 +335,18 @@ public class RecordContractor {
     return ids;
   }
 
+  /**
+   * Extracts the id parameter(s) of the main record as key-value pairs, without checking the field names against the
+   * mapper
+   *
+   * @param map
+   *          the {@link CaptureMap}
+   * @return a list whith key/value pairs, where the key is the fieldname
+   */
+  public static List<String[]> extractIds(CaptureMap map) {
+    return extractIds(getEntityDefiniton(map));
+  }
+
   /**
    * Extracts the id specification(s) as key-value pairs
    *
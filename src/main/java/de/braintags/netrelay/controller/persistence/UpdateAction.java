@@ -18,6 +18,7 @@ import java.util.Map;
 import de.braintags.netrelay.controller.AbstractCaptureController.CaptureMap;
 import de.braintags.netrelay.mapping.NetRelayStoreObjectFactory;
 import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IProperty;
 import de.braintags.vertx.util.exception.ParameterRequiredException;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
@@ -25,7 +26,16 @@ import io.vertx.core.Handler;
 import io.vertx.ext.web.RoutingContext;
 
 /**
+ * Updates a record or a subobject of a record.
  * 
+ * If the property {@link PersistenceController#VERSION_FIELD_PROP} is set and the main record contains a field with
+ * this name, each update must send the version of the main record as "entityName.versionField". The update fails with
+ * a {@link ParameterRequiredException}, if the version is missing, and with a {@link VersionConflictException}, if the
+ * loaded record has a different version. Each saved update increases the version.
+ * 
+ * This check is no optimistic locking: it rejects edits based on an outdated form, but it can't detect a change
+ * between loading and saving the record. Real optimistic locking needs a save, which is conditional on the stored
+ * version; IWrite of jomnigate only saves complete records unconditionally, so this can't be implemented here.
  * 
  * @author Michael Remme
  * 
@@ -53,20 +63,104 @@ public class UpdateAction extends InsertAction {
   @Override
   protected void handleSubObject(final RoutingContext context, final String entityName, final CaptureMap captureMap, final IMapper<?> mapper,
       final Object mainObject, final Handler<AsyncResult<Void>> handler) {
+    try {
+      checkVersion(entityName, context, mapper, mainObject);
+    } catch (RuntimeException e) {
+      handler.handle(Future.failedFuture(e));
+      return;
+    }
     InsertParameter ip = RecordContractor.resolveUpdateParameter(mapper.getMapperFactory(), mainObject, captureMap);
     String subEntityName = ip.getFieldPath();
     Map<String, String> params = extractProperties(subEntityName, captureMap, context, ip.getSubObjectMapper());
-    handleFileUploads(subEntityName, context, params);
-    NetRelayStoreObjectFactory nsf = getPersistenceController().getNetRelay().getStoreObjectFactory();
-    nsf.createStoreObject(params, ip.getUpdateObject(), ip.getSubObjectMapper(), result -> {
-      if (result.failed()) {
-        handler.handle(Future.failedFuture(result.cause()));
-      } else {
-        saveObjectInDatastore(mainObject, context, mapper, handler);
+    handleFileUploads(subEntityName, context, params, ur -> {
+      if (ur.failed()) {
+        handler.handle(Future.failedFuture(ur.cause()));
+        return;
+      }
+      Handler<AsyncResult<Void>> uploadHandler = removeFilesOnFailure(ur.result(), handler);
+      NetRelayStoreObjectFactory nsf = getPersistenceController().getNetRelay().getStoreObjectFactory();
+      nsf.createStoreObject(params, ip.getUpdateObject(), ip.getSubObjectMapper(), result -> {
+        if (result.failed()) {
+          uploadHandler.handle(Future.failedFuture(result.cause()));
+        } else {
+          saveObjectInDatastore(mainObject, context, mapper, uploadHandler);
+        }
+      });
+    });
+  }
+
+  /**
+   * If a version field is defined, the stored record is loaded to check the version sent by the request. The loaded
+   * record is then filled with the transported properties and saved, so that it is loaded only once
+   */
+  @Override
+  protected void handleRegularEntityDefinition(final String entityName, final RoutingContext context,
+      final CaptureMap captureMap, final IMapper<?> mapper, final Handler<AsyncResult<Void>> handler) {
+    if (getVersionField(mapper) == null) {
+      super.handleRegularEntityDefinition(entityName, context, captureMap, mapper, handler);
+      return;
+    }
+    loadMainObject(captureMap, mapper, lr -> {
+      if (lr.failed()) {
+        handler.handle(Future.failedFuture(lr.cause()));
+        return;
+      }
+      try {
+        checkVersion(entityName, context, mapper, lr.result());
+      } catch (RuntimeException e) {
+        handler.handle(Future.failedFuture(e));
+        return;
       }
+      handleRegularEntity(entityName, context, captureMap, mapper, lr.result(), handler);
     });
   }
 
+  /**
+   * Increases the version of the record before it is saved, so that every update path changes the version
+   */
+  @SuppressWarnings("rawtypes")
+  @Override
+  protected void saveObjectInDatastore(final Object ob, final RoutingContext context, final IMapper mapper,
+      final Handler<AsyncResult<Void>> handler) {
+    try {
+      increaseVersion(mapper, ob);
+    } catch (NumberFormatException e) {
+      handler.handle(Future.failedFuture(e));
+      return;
+    }
+    super.saveObjectInDatastore(ob, context, mapper, handler);
+  }
+
+  /**
+   * Compares the version of the main record, which was sent by the request, with the version of the loaded record
+   * 
+   * @param entityName
+   *          the name of the main entity
+   * @param context
+   *          the context of the request
+   * @param mapper
+   *          the mapper of the main record
+   * @param mainObject
+   *          the loaded main record
+   * @throws ParameterRequiredException
+   *           if the request doesn't contain the version
+   * @throws VersionConflictException
+   *           if the versions differ
+   */
+  protected void checkVersion(final String entityName, final RoutingContext context, final IMapper<?> mapper,
+      final Object mainObject) {
+    IProperty versionField = getVersionField(mapper);
+    if (versionField == null) {
+      return;
+    }
+    String key = entityName + "." + versionField.getName();
+    String expected = context.request().getFormAttribute(key);
+    if (expected == null) {
+      expected = context.request().getParam(key);
+    }
+    checkVersion(mapper, mainObject, expected, key);
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -0,0 +1,33 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.persistence;
+
+/**
+ * Thrown by an update, if the version of a record, which was sent by the request, differs from the version of the
+ * stored record, cause the record was modified in between
+ *
+ * @author Michael Remme
+ *
+ */
+public class VersionConflictException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * @param message
+   */
+  public VersionConflictException(String message) {
+    super(message);
+  }
+
+}
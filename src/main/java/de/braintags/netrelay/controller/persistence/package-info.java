@@ -44,6 +44,18 @@
  * 
  * To delete an existing phone number from a person, you will call: +
  * `insertCustomer.html?action=DELETE&entity=Person(ID:5).phoneNumbers(ID:1)` +
+ * If the property "versionField" is set, for instance to "version", each update must send the version of the main
+ * record as field `Person.version`; the update fails, if the loaded record has another version, and increases the
+ * version otherwise. This rejects edits of outdated forms, but it is no optimistic locking: the record is saved
+ * unconditionally, so a change between loading and saving is still overwritten.
+ * 
+ * *Bulk mode* +
+ * With the parameter "bulk=true" the actions INSERT, UPDATE and DELETE handle a batch of records of one mapper in one
+ * request, like `importPersons.html?action=INSERT&entity=Person&bulk=true`. The records are sent as JSON array with the
+ * content type "application/json", or as form fields with the position of the record, like `Person.0.name`,
+ * `Person.1.name`. The records are persisted in chunks of the property "bulkChunkSize"; the result of each record is
+ * stored as JSON array inside the context under the key "bulkResults". If the property "versionField" is set, each
+ * record of a bulk UPDATE must contain its version, which is checked like in the single update.
  * 
  * 
  * 
@@ -12,17 +12,12 @@
  */
 package de.braintags.netrelay.controller.querypool;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-
-import org.apache.commons.lang3.StringUtils;
+import java.util.Collections;
+import java.util.Map;
 
 import de.braintags.netrelay.NetRelay;
 import de.braintags.vertx.jomnigate.dataaccess.query.IFieldValueResolver;
 import de.braintags.vertx.jomnigate.dataaccess.query.exception.VariableSyntaxException;
-import de.braintags.vertx.jomnigate.mapping.IProperty;
-import de.braintags.vertx.jomnigate.mapping.IMapper;
 import io.vertx.ext.web.RoutingContext;
 
 /**
@@ -37,11 +32,12 @@ import io.vertx.ext.web.RoutingContext;
  * </p>
  * Current possibilities for the location are:
  * <ul>
- * <li><code>{@value #LOCATION_REQUEST}</code>: fetch the value from a request parameter value of the current
- * request</li>
- * <li><code>{@value #LOCATION_MAPPER}</code>: fetch the value from one or more records available in the current
- * context</li>
- * <li><code>{@value #LOCATION_CONTEXT}</code>: fetch the value from the data map of the current routing context</li>
+ * <li><code>{@value VariableReference#LOCATION_REQUEST}</code>: fetch the value from a request parameter value of the
+ * current request</li>
+ * <li><code>{@value VariableReference#LOCATION_MAPPER}</code>: fetch the value from one or more records available in
+ * the current context</li>
+ * <li><code>{@value VariableReference#LOCATION_CONTEXT}</code>: fetch the value from the data map of the current
+ * routing context</li>
  * </ul>
  * For requests and context, the value is simply looked up by using the whole name part as key.
  *
@@ -49,32 +45,34 @@ import io.vertx.ext.web.RoutingContext;
  * deep, e.g. "customer.address.street". Also, if there are multiple records for "customer", every value for the given
  * field will be combined to a list and returned as result.
  *
+ * The variables of a query are compiled once into {@link VariableReference}s, when the query is loaded; a variable
+ * without a compiled reference is compiled on every call.
+ *
  * @author sschmitt
  *
  */
 public class ContextFieldValueResolver implements IFieldValueResolver {
 
-  /**
-   * Identifier for variable values that should be fetched from the current rounting context
-   */
-  private static final String LOCATION_CONTEXT = "context";
-  /**
-   * Identifier for variable values that should be fetched from a value of an available mapper record
-   */
-  private static final String LOCATION_MAPPER = "mapper";
-  /**
-   * Identifier for variable values that should be fetched from a request parameter
-   */
-  private static final String LOCATION_REQUEST = "request";
-
-  private static final String[] LOCATIONS = { LOCATION_CONTEXT, LOCATION_MAPPER, LOCATION_REQUEST };
-
   private RoutingContext context;
   private NetRelay netRelay;
+  private Map<String, VariableReference> references;
 
   public ContextFieldValueResolver(RoutingContext context, NetRelay netRelay) {
+    this(context, netRelay, Collections.emptyMap());
+  }
+
+  /**
+   * @param context
+   *          the current context
+   * @param netRelay
+   *          the NetRelay instance with the datastore
+   * @param references
+   *          the compiled variables of the query
+   */
+  ContextFieldValueResolver(RoutingContext context, NetRelay netRelay, Map<String, VariableReference> references) {
     this.context = context;
     this.netRelay = netRelay;
+    this.references = references;
   }
 
   /*
@@ -84,106 +82,11 @@ public class ContextFieldValueResolver implements IFieldValueResolver {
    */
   @Override
   public Object resolve(String variable) throws VariableSyntaxException {
-    int i = variable.indexOf(':');
-
-    String location = variable.substring(0, i);
-    String variableName = variable.substring(i + 1);
-    switch (location) {
-    case LOCATION_REQUEST:
-      return getRequestParameterValue(variableName);
-    case LOCATION_MAPPER:
-      return getMapperValue(variableName);
-    case LOCATION_CONTEXT:
-      return getContextValue(variableName);
-    default:
-      throw new VariableSyntaxException(
-          "Unknown variable location: '" + location + "'. Possible locations are: " + StringUtils.join(LOCATIONS, ','));
+    VariableReference reference = references.get(variable);
+    if (reference == null) {
+      reference = VariableReference.compile(variable);
     }
-  }
-
-  /**
-   * Fetch the value from the data map of the current routing context
-   *
-   * @param variableName
-   *          the name of the variable
-   * @return the value found in the current context
-   */
-  private Object getContextValue(String variableName) {
-    return context.get(variableName);
-  }
-
-  /**
-   * Fetch the value from the field of one or more mapper records that are currently available. If there is more than
-   * one record, the list will be looped and all the field values of the given field will be combined in a list.
-   * The variable must be in dot notation and can be multiple fields deep, e.g. 'customer.address.street'
-   *
-   * @param variableName
-   *          the name of the variable
-   * @return the field value(s) of one or more mappers found with the given variable name
-   * @throws VariableSyntaxException
-   */
-  private Object getMapperValue(String variableName) throws VariableSyntaxException {
-    int i = variableName.indexOf('.');
-    if (i > 0) {
-      String mapperName = variableName.substring(0, i);
-      String path = variableName.substring(i + 1);
-      Object mapperValue = context.get(mapperName);
-      if (mapperValue instanceof Iterable) {
-        List<Object> result = new ArrayList<>();
-        Iterator<?> it = ((Iterable<?>) mapperValue).iterator();
-        while (it.hasNext()) {
-          Object resultValue = extractMapperValue(path, mapperValue);
-          if (resultValue != null)
-            result.add(resultValue);
-        }
-        return result;
-      } else {
-        return extractMapperValue(path, mapperValue);
-      }
-    } else {
-      throw new VariableSyntaxException(
-          "Mapper variable must have at least 2 parts: the mapper name and the field: " + variableName);
-    }
-  }
-
-  /**
-   * Recursive method to loop through the path
-   *
-   * @param path
-   *          the current path in dot notation, e.g. 'customer.address.street'
-   * @param record
-   *          the record from which to extract the value
-   * @return the value of the given record denoted by the given path
-   */
-  private Object extractMapperValue(String path, Object record) {
-    IMapper<?> mapper = netRelay.getDatastore().getMapperFactory().getMapper(record.getClass());
-    if (mapper == null)
-      throw new IllegalArgumentException(
-          "Can not extract value from a class that is not a mapper: " + record.getClass());
-
-    String fieldName = path;
-    int i = path.indexOf('.');
-    if (i > 0) {
-      fieldName = path.substring(0, i);
-    }
-
-    IProperty field = mapper.getField(fieldName);
-    Object fieldValue = field.getPropertyAccessor().readData(record);
-    if (fieldValue != null && i > 0) {
-      return extractMapperValue(path.substring(i + 1), fieldValue);
-    } else
-      return fieldValue;
-  }
-
-  /**
-   * Fetch the value from a request parameter given in the current HTTP request
-   *
-   * @param name
-   *          the name of the variable
-   * @return the value of the request parameter
-   */
-  private Object getRequestParameterValue(String name) {
-    return context.request().getParam(name);
+    return reference.resolve(context, netRelay);
   }
 
 }
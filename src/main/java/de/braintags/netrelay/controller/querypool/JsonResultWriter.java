@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.braintags.netrelay.mapping.NetRelayStoreObjectFactory;
+import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IProperty;
+import de.braintags.vertx.jomnigate.mapping.IStoreObject;
+import de.braintags.vertx.util.HttpContentType;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.Json;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Writes the records of a {@link QueryResultStream} as JSON array into the response. Every record is converted by the
+ * {@link NetRelayStoreObjectFactory}, like the records of the DataTablesController, and written as JSON object with
+ * the fields of the store object, which are allowed by the "json" block of the query template. So the values have the
+ * format of the store objects of NetRelay and not the types of the Java fields. Other fields
+ * of the records are never written. Every record is written directly, so only the converted records inside the window
+ * of the stream are held in memory, besides the batch of raw data read by the datastore. The stream is paused while a
+ * record is converted and while the write queue of the response is full; if the client closes the connection, the
+ * stream is not resumed anymore.<br>
+ * <br>
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+class JsonResultWriter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(JsonResultWriter.class);
+
+  private static final Buffer ARRAY_START = Buffer.buffer("[");
+  private static final Buffer SEPARATOR = Buffer.buffer(",");
+  private static final Buffer ARRAY_END = Buffer.buffer("]");
+
+  private final RoutingContext context;
+  private final HttpServerResponse response;
+  private final NetRelayStoreObjectFactory storeObjectFactory;
+  private final IMapper<?> mapper;
+  private final Map<String, IProperty> fields;
+  private boolean started;
+  private boolean failed;
+  private boolean closed;
+
+  /**
+   * @param context
+   *          the current context
+   * @param storeObjectFactory
+   *          the factory, which converts the records into store objects
+   * @param mapper
+   *          the mapper of the records
+   * @param fields
+   *          the properties of the mapper, which are written, by their names
+   */
+  JsonResultWriter(RoutingContext context, NetRelayStoreObjectFactory storeObjectFactory, IMapper<?> mapper,
+      Map<String, IProperty> fields) {
+    this.context = context;
+    this.response = context.response();
+    this.storeObjectFactory = storeObjectFactory;
+    this.mapper = mapper;
+    this.fields = fields;
+  }
+
+  /**
+   * Writes a single value, like the result of a count, as JSON and ends the response
+   *
+   * @param value
+   *          the value to be written
+   */
+  void writeValue(Object value) {
+    response.putHeader("content-type", HttpContentType.APPLICATION_JSON.toString()).end(Json.encode(value));
+  }
+
+  /**
+   * Writes all records of the stream as JSON array and ends the response
+   *
+   * @param stream
+   *          the records to be written
+   */
+  void write(QueryResultStream<?> stream) {
+    response.putHeader("content-type", HttpContentType.APPLICATION_JSON.toString()).setChunked(true);
+    response.closeHandler(v -> {
+      closed = true;
+      stream.pause();
+    });
+    stream.exceptionHandler(this::fail);
+    stream.endHandler(v -> {
+      if (!failed && !closed) {
+        response.write(started ? ARRAY_END : Buffer.buffer("[]"));
+        response.end();
+      }
+    });
+    stream.handler(record -> writeRecord(stream, record));
+  }
+
+  /**
+   * Pauses the stream, until the record is converted and written
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private void writeRecord(QueryResultStream<?> stream, Object record) {
+    if (failed || isClosed()) {
+      return;
+    }
+    stream.pause();
+    storeObjectFactory.createStoreObject((IMapper) mapper, record, result -> {
+      AsyncResult<IStoreObject<?, ?>> sto = (AsyncResult) result;
+      if (sto.failed()) {
+        fail(sto.cause());
+      } else if (!failed && !isClosed()) {
+        writeStoreObject(stream, sto.result());
+      }
+    });
+  }
+
+  private void writeStoreObject(QueryResultStream<?> stream, IStoreObject<?, ?> storeObject) {
+    Buffer buffer;
+    try {
+      buffer = encode(storeObject);
+    } catch (RuntimeException e) {
+      fail(e);
+      return;
+    }
+    response.write(started ? SEPARATOR : ARRAY_START);
+    started = true;
+    response.write(buffer);
+    if (response.writeQueueFull()) {
+      response.drainHandler(v -> {
+        if (!isClosed()) {
+          stream.resume();
+        }
+      });
+    } else {
+      stream.resume();
+    }
+  }
+
+  private Buffer encode(IStoreObject<?, ?> storeObject) {
+    Map<String, Object> values = new LinkedHashMap<>();
+    for (Entry<String, IProperty> field : fields.entrySet()) {
+      values.put(field.getKey(), storeObject.get(field.getValue()));
+    }
+    return Buffer.buffer(Json.encode(values));
+  }
+
+  /**
+   * The close handler of the response may be called after the records of a paused stream were converted, so the state
+   * of the response is checked as well
+   */
+  private boolean isClosed() {
+    if (!closed && response.closed()) {
+      closed = true;
+    }
+    return closed;
+  }
+
+  /**
+   * If nothing was written yet, the context is failed; otherwise the connection is closed, so that the client doesn't
+   * take the incomplete array for a result
+   */
+  private void fail(Throwable cause) {
+    if (failed) {
+      return;
+    }
+    failed = true;
+    if (!started) {
+      context.fail(cause);
+    } else {
+      LOGGER.error("error while writing the JSON result", cause);
+      response.close();
+    }
+  }
+
+}
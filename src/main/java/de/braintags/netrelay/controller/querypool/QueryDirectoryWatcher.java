@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import io.vertx.core.Handler;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Watches the directory of the query templates including its sub directories and informs about created, modified and
+ * deleted JSON files. The watching runs in an own daemon thread, where the handlers are called too; events, which
+ * arrive within {@value #SETTLE_TIME} milliseconds are collected, so that a file saved in several steps is reported
+ * once.<br>
+ * <br>
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+class QueryDirectoryWatcher implements Runnable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryDirectoryWatcher.class);
+
+  /**
+   * The time in milliseconds to wait for further events of a changed file
+   */
+  private static final long SETTLE_TIME = 100;
+  private static final String FILE_SUFFIX = ".json";
+
+  private final Path root;
+  private final Handler<Path> changeHandler;
+  private final Handler<Path> deleteHandler;
+  private final Map<WatchKey, Path> directories = new HashMap<>();
+  private WatchService watchService;
+
+  /**
+   * @param root
+   *          the directory to be watched
+   * @param changeHandler
+   *          called with the path of a created or modified file
+   * @param deleteHandler
+   *          called with the path of a deleted file
+   */
+  QueryDirectoryWatcher(Path root, Handler<Path> changeHandler, Handler<Path> deleteHandler) {
+    this.root = root;
+    this.changeHandler = changeHandler;
+    this.deleteHandler = deleteHandler;
+  }
+
+  /**
+   * Registers the directories and starts the thread for watching
+   *
+   * @throws IOException
+   *           if the directory can not be watched
+   */
+  void start() throws IOException {
+    watchService = root.getFileSystem().newWatchService();
+    register(root);
+    Thread thread = new Thread(this, "querypool-watcher-" + root.getFileName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops watching the directory
+   */
+  void stop() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      LOGGER.warn("could not close the watch service of " + root, e);
+    }
+  }
+
+  private void register(Path directory) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        Map<Path, Boolean> changes = new LinkedHashMap<>();
+        WatchKey key = watchService.take();
+        while (key != null) {
+          collectChanges(key, changes);
+          key = watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+        }
+        changes.forEach((file, deleted) -> {
+          try {
+            if (deleted) {
+              deleteHandler.handle(file);
+            } else {
+              changeHandler.handle(file);
+            }
+          } catch (RuntimeException e) {
+            LOGGER.error("could not handle the change of " + file, e);
+          }
+        });
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      LOGGER.info("stopped watching " + root);
+    }
+  }
+
+  /**
+   * Collects the changed files of the given key; a created directory is watched as well and its files are reported as
+   * changed
+   */
+  private void collectChanges(WatchKey key, Map<Path, Boolean> changes) {
+    Path directory = directories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW || directory == null) {
+        continue;
+      }
+      Path file = directory.resolve((Path) event.context());
+      if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+        registerCreatedDirectory(file, changes);
+      } else if (file.getFileName().toString().endsWith(FILE_SUFFIX)) {
+        changes.remove(file);
+        changes.put(file, event.kind() == ENTRY_DELETE);
+      }
+    }
+    if (!key.reset()) {
+      directories.remove(key);
+    }
+  }
+
+  private void registerCreatedDirectory(Path directory, Map<Path, Boolean> changes) {
+    try {
+      register(directory);
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.filter(file -> file.getFileName().toString().endsWith(FILE_SUFFIX))
+            .forEach(file -> changes.put(file, false));
+      }
+    } catch (IOException e) {
+      LOGGER.error("could not watch the directory " + directory, e);
+    }
+  }
+
+}
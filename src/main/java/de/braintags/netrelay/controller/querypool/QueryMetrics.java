@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The execution metrics of one pooled query: the number of executions and errors, the hits and misses of the result
+ * cache and histograms of the latency and the number of records. The histograms use fixed upper bounds; all values
+ * can be recorded concurrently from several event loops.<br>
+ * <br>
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+public class QueryMetrics {
+  /**
+   * The upper bounds of the buckets of the latency histogram in milliseconds
+   */
+  static final long[] LATENCY_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+  /**
+   * The upper bounds of the buckets of the histogram of the number of records
+   */
+  static final long[] SIZE_BOUNDS = { 0, 1, 10, 100, 1000, 10000 };
+
+  private final LongAdder executions = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+  private final LongAdder totalLatency = new LongAdder();
+  private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+  private final AtomicLongArray sizes = new AtomicLongArray(SIZE_BOUNDS.length + 1);
+
+  /**
+   * Records an execution against the datastore
+   *
+   * @param latency
+   *          the duration in milliseconds
+   * @param size
+   *          the number of records or -1, if the result contains no records
+   * @param failed
+   *          true, if the execution failed
+   */
+  public void recordExecution(long latency, int size, boolean failed) {
+    executions.increment();
+    totalLatency.add(latency);
+    latencies.incrementAndGet(bucket(LATENCY_BOUNDS, latency));
+    if (failed) {
+      errors.increment();
+    } else if (size >= 0) {
+      sizes.incrementAndGet(bucket(SIZE_BOUNDS, size));
+    }
+  }
+
+  /**
+   * Records a request, which was answered by the result cache
+   */
+  public void recordCacheHit() {
+    cacheHits.increment();
+  }
+
+  /**
+   * Records a request, which wasn't found in the result cache
+   */
+  public void recordCacheMiss() {
+    cacheMisses.increment();
+  }
+
+  private static int bucket(long[] bounds, long value) {
+    for (int i = 0; i < bounds.length; i++) {
+      if (value <= bounds[i]) {
+        return i;
+      }
+    }
+    return bounds.length;
+  }
+
+  /**
+   * @return the number of executions against the datastore
+   */
+  public long getExecutions() {
+    return executions.sum();
+  }
+
+  /**
+   * @return the number of failed executions
+   */
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  /**
+   * @return the number of requests answered by the result cache
+   */
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * @return the number of requests, which were not found in the result cache
+   */
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  /**
+   * Creates a JSON representation of the metrics. The histograms are arrays of objects with the upper bound "le" of a
+   * bucket and its "count"; the last bucket has no bound
+   *
+   * @return the metrics as JSON
+   */
+  public JsonObject toJson() {
+    long hits = getCacheHits();
+    long lookups = hits + getCacheMisses();
+    long count = getExecutions();
+    return new JsonObject().put("executions", count).put("errors", getErrors()).put("cacheHits", hits)
+        .put("cacheMisses", getCacheMisses()).put("cacheHitRatio", lookups == 0 ? 0d : (double) hits / lookups)
+        .put("averageLatency", count == 0 ? 0d : (double) totalLatency.sum() / count)
+        .put("latency", histogram(LATENCY_BOUNDS, latencies)).put("size", histogram(SIZE_BOUNDS, sizes));
+  }
+
+  private static JsonArray histogram(long[] bounds, AtomicLongArray counts) {
+    JsonArray histogram = new JsonArray();
+    for (int i = 0; i < counts.length(); i++) {
+      JsonObject bucket = new JsonObject().put("count", counts.get(i));
+      if (i < bounds.length) {
+        bucket.put("le", bounds[i]);
+      }
+      histogram.add(bucket);
+    }
+    return histogram;
+  }
+
+}
@@ -0,0 +1,412 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import de.braintags.netrelay.controller.querypool.exceptions.InvalidSyntaxException;
+import de.braintags.netrelay.controller.querypool.template.QueryTemplate;
+import de.braintags.netrelay.controller.querypool.template.dynamic.QueryPart;
+import de.braintags.vertx.jomnigate.IDataStore;
+import de.braintags.vertx.jomnigate.dataaccess.query.IQuery;
+import de.braintags.vertx.jomnigate.dataaccess.query.ISearchCondition;
+import de.braintags.vertx.jomnigate.dataaccess.query.QueryOperator;
+import de.braintags.vertx.jomnigate.dataaccess.query.impl.QueryOr;
+import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IProperty;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+
+/**
+ * The compiled, immutable form of a {@link QueryTemplate}. It contains everything, which was parsed from the template:
+ * the mapper, the native command or the condition of the dynamic query and the sort fields. The condition is converted
+ * from the tree of {@link QueryPart}s once, when the plan is created; its values keep the variable references, like
+ * "${request:name}", which are bound by the resolver given to the execution, so the condition is never changed and is
+ * shared by all executions. An {@link IQuery} is not thread safe, so for every execution a new instance is created by
+ * {@link #createQuery()}, which only gets the shared condition. If the plan uses seek pagination, a page is
+ * defined by a continuation token, which contains the sort values of the last record of the previous page. Every value
+ * of the token is stored together with a tag of its type, so that it is restored with the type of the field: dates
+ * as epoch millis, numbers, booleans, strings and null. Sort fields of other types are rejected, when the plan is
+ * created. Null is treated as the smallest value, like the datastores sort it.<br>
+ * <br>
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+final class QueryPlan {
+  private final IDataStore datastore;
+  private final Class<?> mapperClass;
+  private final String nativeCommand;
+  private final QueryPart rootQueryPart;
+  private final ISearchCondition searchCondition;
+  private final List<SortField> sortFields;
+  private final boolean seek;
+
+  /**
+   * @param datastore
+   *          the datastore, which creates the queries
+   * @param mapperClass
+   *          the mapper of the query
+   * @param nativeCommand
+   *          the native command for the datastore or null
+   * @param rootQueryPart
+   *          the root of the dynamic query or null
+   * @param sortFields
+   *          the fields to sort by
+   * @param seek
+   *          true, if the query is paginated by the values of the sort fields instead of an offset
+   * @throws InvalidSyntaxException
+   *           if the dynamic query can not be converted, if seek pagination is requested for a native query or if a
+   *           sort field of a query with seek pagination doesn't exist or has a type, which can't be stored in a
+   *           continuation token
+   */
+  QueryPlan(IDataStore datastore, Class<?> mapperClass, String nativeCommand, QueryPart rootQueryPart,
+      List<SortField> sortFields, boolean seek) throws InvalidSyntaxException {
+    this.datastore = datastore;
+    this.mapperClass = mapperClass;
+    this.nativeCommand = nativeCommand;
+    this.rootQueryPart = rootQueryPart;
+    this.searchCondition = rootQueryPart == null ? null : rootQueryPart.toSearchCondition();
+    this.sortFields = Collections.unmodifiableList(new ArrayList<>(sortFields));
+    this.seek = seek;
+    if (seek) {
+      if (nativeCommand != null) {
+        throw new InvalidSyntaxException("Seek pagination is not possible with a native query");
+      }
+      checkSortFields();
+    }
+  }
+
+  /**
+   * Checks, that the values of all sort fields can be stored in a continuation token
+   */
+  private void checkSortFields() throws InvalidSyntaxException {
+    IMapper<?> mapper = datastore.getMapperFactory().getMapper(mapperClass);
+    for (SortField sortField : sortFields) {
+      IProperty property = mapper.getField(sortField.field);
+      if (property == null) {
+        throw new InvalidSyntaxException("Unknown sort field for seek pagination: " + sortField.field);
+      }
+      if (ValueType.of(property.getType()) == null) {
+        throw new InvalidSyntaxException(String.format(
+            "The sort field %s has the type %s, which is not supported by seek pagination", sortField.field,
+            property.getType().getName()));
+      }
+    }
+  }
+
+  /**
+   * Creates a new query for one execution
+   *
+   * @return the new query
+   * @throws InvalidSyntaxException
+   *           never for a query without continuation token
+   */
+  IQuery<?> createQuery() throws InvalidSyntaxException {
+    return createQuery(null);
+  }
+
+  /**
+   * Creates a new query for one execution, which starts after the record of the given continuation token
+   *
+   * @param token
+   *          the continuation token created by {@link #createToken(Object)} or null for the first page
+   * @return the new query
+   * @throws InvalidSyntaxException
+   *           if the token is invalid
+   */
+  IQuery<?> createQuery(String token) throws InvalidSyntaxException {
+    IQuery<?> query = datastore.createQuery(mapperClass);
+    if (nativeCommand != null) {
+      // seek pagination is rejected for native queries when the plan is created
+      query.setNativeCommand(nativeCommand);
+    } else {
+      ISearchCondition condition = searchCondition;
+      if (seek && token != null) {
+        ISearchCondition range = createRangeCondition(parseToken(token));
+        condition = condition == null ? range : ISearchCondition.and(condition, range);
+      }
+      if (condition != null) {
+        query.setSearchCondition(condition);
+      }
+    }
+    for (SortField sortField : sortFields) {
+      query.addSort(sortField.field, sortField.ascending);
+    }
+    return query;
+  }
+
+  /**
+   * Creates the condition for the records after the given values of the sort fields. For the sort fields f1, f2 this
+   * is "f1 &gt; v1 or (f1 = v1 and f2 &gt; v2)", where "&lt;" is used for descending fields. Null is the smallest
+   * value: after null come all other values of an ascending field and no value of a descending field; before a value
+   * of a descending field come the smaller values and null
+   */
+  private ISearchCondition createRangeCondition(List<Object> values) throws InvalidSyntaxException {
+    if (values.size() != sortFields.size()) {
+      throw new InvalidSyntaxException("The continuation token doesn't fit to the sort fields of the query");
+    }
+    List<ISearchCondition> alternatives = new ArrayList<>();
+    for (int i = 0; i < sortFields.size(); i++) {
+      ISearchCondition after = createAfterCondition(sortFields.get(i), values.get(i));
+      if (after != null) {
+        ISearchCondition[] parts = new ISearchCondition[i + 1];
+        for (int k = 0; k < i; k++) {
+          parts[k] = ISearchCondition.condition(sortFields.get(k).field, QueryOperator.EQUALS, values.get(k));
+        }
+        parts[i] = after;
+        alternatives.add(parts.length == 1 ? parts[0] : ISearchCondition.and(parts));
+      }
+    }
+    if (alternatives.isEmpty()) {
+      // the last record had null in all fields, which are descending: no record can follow
+      String field = sortFields.get(0).field;
+      return ISearchCondition.and(ISearchCondition.condition(field, QueryOperator.EQUALS, null),
+          ISearchCondition.condition(field, QueryOperator.NOT_EQUALS, null));
+    }
+    return alternatives.size() == 1 ? alternatives.get(0)
+        : new QueryOr(alternatives.toArray(new ISearchCondition[alternatives.size()]));
+  }
+
+  /**
+   * Creates the condition for the values of one sort field, which follow the given value, or null if no value follows
+   */
+  private ISearchCondition createAfterCondition(SortField sortField, Object value) {
+    if (value == null) {
+      return sortField.ascending ? ISearchCondition.condition(sortField.field, QueryOperator.NOT_EQUALS, null) : null;
+    }
+    if (sortField.ascending) {
+      return ISearchCondition.condition(sortField.field, QueryOperator.LARGER, value);
+    }
+    return new QueryOr(ISearchCondition.condition(sortField.field, QueryOperator.SMALLER, value),
+        ISearchCondition.condition(sortField.field, QueryOperator.EQUALS, null));
+  }
+
+  /**
+   * Creates the continuation token for the records after the given one. The token contains the values of the sort
+   * fields as Base64 encoded JSON array, where every value is stored as string with the tag of its type
+   *
+   * @param lastRecord
+   *          the last record of the current page
+   * @return the continuation token
+   */
+  String createToken(Object lastRecord) {
+    IMapper<?> mapper = datastore.getMapperFactory().getMapper(mapperClass);
+    JsonArray values = new JsonArray();
+    for (SortField sortField : sortFields) {
+      Object value = mapper.getField(sortField.field).getPropertyAccessor().readData(lastRecord);
+      values.add(encodeValue(value));
+    }
+    return Base64.getUrlEncoder().encodeToString(values.toBuffer().getBytes());
+  }
+
+  private List<Object> parseToken(String token) throws InvalidSyntaxException {
+    JsonArray array;
+    try {
+      array = new JsonArray(Buffer.buffer(Base64.getUrlDecoder().decode(token)));
+    } catch (IllegalArgumentException | DecodeException e) {
+      throw new InvalidSyntaxException("Invalid continuation token: " + token);
+    }
+    List<Object> values = new ArrayList<>(array.size());
+    for (Object encoded : array) {
+      values.add(decodeValue(encoded, token));
+    }
+    return values;
+  }
+
+  /**
+   * Encodes a value of a sort field as "tag:value"
+   *
+   * @param value
+   *          the value of the record
+   * @return the encoded value
+   */
+  static String encodeValue(Object value) {
+    if (value == null) {
+      return ValueType.NULL.tag;
+    }
+    ValueType type = ValueType.of(value.getClass());
+    if (type == null) {
+      throw new IllegalArgumentException("Unsupported type of a sort value: " + value.getClass().getName());
+    }
+    return type.tag + ":" + (type == ValueType.DATE ? String.valueOf(((Date) value).getTime()) : value.toString());
+  }
+
+  /**
+   * Decodes a value, which was encoded by {@link #encodeValue(Object)}
+   *
+   * @param encoded
+   *          the encoded value
+   * @param token
+   *          the token, which contains the value, for the message of an exception
+   * @return the value with its original type
+   * @throws InvalidSyntaxException
+   *           if the value is invalid
+   */
+  static Object decodeValue(Object encoded, String token) throws InvalidSyntaxException {
+    if (encoded instanceof String) {
+      String string = (String) encoded;
+      if (ValueType.NULL.tag.equals(string)) {
+        return null;
+      }
+      int i = string.indexOf(':');
+      if (i > 0) {
+        for (ValueType type : ValueType.values()) {
+          if (type.tag.equals(string.substring(0, i))) {
+            try {
+              return type.parse(string.substring(i + 1));
+            } catch (IllegalArgumentException e) {
+              break;
+            }
+          }
+        }
+      }
+    }
+    throw new InvalidSyntaxException("Invalid continuation token: " + token);
+  }
+
+  /**
+   * @return true, if the query is paginated by the values of the sort fields instead of an offset
+   */
+  boolean isSeek() {
+    return seek;
+  }
+
+  /**
+   * @return the mapper of the query
+   */
+  Class<?> getMapperClass() {
+    return mapperClass;
+  }
+
+  /**
+   * @return the native command or null, if the query is dynamic
+   */
+  String getNativeCommand() {
+    return nativeCommand;
+  }
+
+  /**
+   * @return the root of the dynamic query or null
+   */
+  QueryPart getRootQueryPart() {
+    return rootQueryPart;
+  }
+
+  /**
+   * @return the fields to sort by
+   */
+  List<SortField> getSortFields() {
+    return sortFields;
+  }
+
+  /**
+   * The types of the values, which can be stored in a continuation token, with their tags
+   */
+  private enum ValueType {
+    NULL("n"),
+    STRING("s"),
+    INTEGER("i"),
+    LONG("l"),
+    DOUBLE("d"),
+    BOOLEAN("b"),
+    DATE("t");
+
+    private final String tag;
+
+    ValueType(String tag) {
+      this.tag = tag;
+    }
+
+    /**
+     * Get the type for the given class of a field or a value
+     *
+     * @param type
+     *          the class
+     * @return the type or null, if the class is not supported
+     */
+    static ValueType of(Class<?> type) {
+      if (type == String.class) {
+        return STRING;
+      } else if (type == Integer.class || type == int.class || type == Short.class || type == short.class
+          || type == Byte.class || type == byte.class) {
+        return INTEGER;
+      } else if (type == Long.class || type == long.class) {
+        return LONG;
+      } else if (type == Double.class || type == double.class || type == Float.class || type == float.class) {
+        return DOUBLE;
+      } else if (type == Boolean.class || type == boolean.class) {
+        return BOOLEAN;
+      } else if (Date.class.isAssignableFrom(type)) {
+        return DATE;
+      }
+      return null;
+    }
+
+    Object parse(String value) {
+      switch (this) {
+      case STRING:
+        return value;
+      case INTEGER:
+        return Integer.valueOf(value);
+      case LONG:
+        return Long.valueOf(value);
+      case DOUBLE:
+        return Double.valueOf(value);
+      case BOOLEAN:
+        if (!"true".equals(value) && !"false".equals(value)) {
+          throw new IllegalArgumentException(value);
+        }
+        return Boolean.valueOf(value);
+      case DATE:
+        return new Date(Long.parseLong(value));
+      default:
+        throw new IllegalArgumentException(value);
+      }
+    }
+  }
+
+  /**
+   * A field to sort the results by
+   */
+  static final class SortField {
+    private final String field;
+    private final boolean ascending;
+
+    SortField(String field, boolean ascending) {
+      this.field = field;
+      this.ascending = ascending;
+    }
+
+    /**
+     * @return the name of the field
+     */
+    String getField() {
+      return field;
+    }
+
+    /**
+     * @return true, if the results are sorted ascending by the field
+     */
+    boolean isAscending() {
+      return ascending;
+    }
+  }
+
+}
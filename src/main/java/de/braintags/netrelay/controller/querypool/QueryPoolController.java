@@ -12,13 +12,28 @@
  */
 package de.braintags.netrelay.controller.querypool;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -26,23 +41,40 @@ import org.apache.commons.lang3.StringUtils;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import de.braintags.netrelay.cache.ExpiringLruCache;
 import de.braintags.netrelay.controller.AbstractController;
+import de.braintags.netrelay.controller.persistence.PersistenceController;
+import de.braintags.netrelay.controller.querypool.QueryPlan.SortField;
 import de.braintags.netrelay.controller.querypool.exceptions.DatastoreNotFoundException;
 import de.braintags.netrelay.controller.querypool.exceptions.QueryPoolException;
+import de.braintags.netrelay.controller.querypool.template.CacheSettings;
 import de.braintags.netrelay.controller.querypool.template.DynamicQuery;
+import de.braintags.netrelay.controller.querypool.template.JsonSettings;
 import de.braintags.netrelay.controller.querypool.template.NativeQuery;
 import de.braintags.netrelay.controller.querypool.template.QueryTemplate;
+import de.braintags.netrelay.controller.querypool.template.dynamic.QueryPart;
 import de.braintags.netrelay.routing.RouterDefinition;
 import de.braintags.vertx.jomnigate.IDataStore;
 import de.braintags.vertx.jomnigate.dataaccess.query.IFieldValueResolver;
 import de.braintags.vertx.jomnigate.dataaccess.query.IQuery;
 import de.braintags.vertx.jomnigate.dataaccess.query.IQueryResult;
-import de.braintags.vertx.jomnigate.dataaccess.query.ISearchCondition;
+import de.braintags.vertx.jomnigate.dataaccess.query.exception.VariableSyntaxException;
+import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IProperty;
+import de.braintags.vertx.util.HttpContentType;
 import de.braintags.vertx.util.exception.InitException;
 import de.braintags.vertx.util.exception.NoSuchFileException;
 import de.braintags.vertx.util.file.FileSystemUtil;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Closeable;
+import io.vertx.core.Context;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.file.FileSystem;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.web.RoutingContext;
@@ -66,12 +98,51 @@ import io.vertx.ext.web.RoutingContext;
  * </ol>
  * <br>
  * <br>
- * The queries will be loaded once at startup and are kept in cache for better performance. <br>
+ * The queries will be loaded once at startup and are kept in cache for better performance. If the property
+ * {@value #RELOAD_PROPERTY} is set, the query directory is watched and changed query files are parsed again in the
+ * background; a request uses either the old or the completely parsed new query. The watching is stopped, when the
+ * controller is initialized again, replaced by a new controller of the same name or undeployed. <br>
+ * <br>
+ * If a query template sets "seek" to true, deep pages are read without an offset: the sort values of the last record
+ * of a full page are stored as continuation token under the destination plus {@value #NEXT_SUFFIX}, and the next page
+ * is requested with this token in the parameter {@value #AFTER_PARAMETER_NAME}. The orderBy of the template must
+ * define a unique order, for instance by ending with the id.<br>
+ * <br>
+ * With the request parameter "{@value #FORMAT_PARAMETER_NAME}={@value #FORMAT_JSON}" the result of the query is
+ * written as JSON directly into the response, for instance for single page applications. This output must be enabled
+ * by a "json" block in the query template, which lists the fields of the records to be written, like
+ * <code>"json": { "fields": ["id", "name"] }</code>; otherwise the request fails with status 403. The records are
+ * streamed as JSON array with these fields only, without the template layer. A query with the operation STREAM can
+ * only be requested in this format, because the template layer can't consume a stream.<br>
+ * <br>
+ * With the request parameter {@value #BATCH_PARAMETER_NAME} several queries can be executed concurrently in one
+ * request, for instance "?qbatch=/article/topseller,/article/news". The names are built like the path of a request;
+ * each result is stored under the destination of its query, which is the name of the mapper or the entry
+ * "destination" of the template. The parameters for offset and limit apply to all
+ * queries.<br>
+ * <br>
+ * If a query template contains a "cache" block, the results of the query are cached, see {@link CacheSettings}. A
+ * result is cached by the values of the variables of the query, the limit and the offset. A cached list of records is
+ * unmodifiable, because it is shared by all requests; the records themselves must be treated as read only as well.
+ * All cached results of a mapper are removed, when the {@link PersistenceController} changes records of the mapper; a
+ * query, which was running during this invalidation, doesn't store its result. For the operation COUNT
+ * the entry "maxStaleness" of the template defines the time in seconds, for which counts are cached; the operation
+ * APPROX_COUNT returns the last count and refreshes it in the background after this time.<br>
  * <br>
  * The possible configuration parameters are:<br>
  * <ul>
  * <li>{@value #QUERY_DIRECTORY_PROPERTY} - the name of the folder where the query JSON files are stored - default:
  * {@value #DEFAULT_QUERY_DIRECTORY}</li>
+ * <li>{@value #RELOAD_PROPERTY} - if true, changed query files are reloaded while running - default: false</li>
+ * <li>{@value #STREAM_WINDOW_PROPERTY} - the number of records converted ahead of the response by the operation
+ * STREAM; the batches, which the datastore reads, are not affected - default:
+ * {@value #DEFAULT_STREAM_WINDOW}</li>
+ * <li>{@value #METRICS_PATH_PROPERTY} - the path, under which the metrics of all queries are returned as JSON, like
+ * "/querypool/metrics". The route of the controller must include this path - default: not set</li>
+ * <li>{@value #SLOW_QUERY_THRESHOLD_PROPERTY} - the duration in milliseconds, after which an execution is logged as
+ * slow query, 0 disables the log - default: {@value #DEFAULT_SLOW_QUERY_THRESHOLD}</li>
+ * <li>{@value #SLOW_QUERY_LOG_VALUES_PROPERTY} - if true, the slow query log contains the values of the variables,
+ * which may be personal data of the user. Otherwise only the types of the values are logged - default: false</li>
  * </ul>
  * Example Configuration:<br>
  *
@@ -102,6 +173,29 @@ public class QueryPoolController extends AbstractController {
    * Name of the request parameter that sets the query limit
    */
   private static final String LIMIT_PARAMETER_NAME = "qlimit";
+  /**
+   * Name of the request parameter that contains the comma separated names of further queries, which are executed
+   * concurrently in the same request
+   */
+  public static final String BATCH_PARAMETER_NAME = "qbatch";
+  /**
+   * Name of the request parameter that contains the continuation token of a query with seek pagination
+   */
+  public static final String AFTER_PARAMETER_NAME = "qafter";
+  /**
+   * The suffix of the destination, under which the continuation token for the next page of a query with seek
+   * pagination is stored in the context
+   */
+  public static final String NEXT_SUFFIX = "_next";
+  /**
+   * Name of the request parameter that defines the output format of the query. With the value {@value #FORMAT_JSON}
+   * the result is written as JSON into the response instead of being stored in the context
+   */
+  public static final String FORMAT_PARAMETER_NAME = "qformat";
+  /**
+   * The value of the parameter {@value #FORMAT_PARAMETER_NAME} for the JSON output
+   */
+  public static final String FORMAT_JSON = "json";
 
   /**
    * Name of the property key that defines the root directory where the query template JSON files are
@@ -112,13 +206,67 @@ public class QueryPoolController extends AbstractController {
    */
   private static final String DEFAULT_QUERY_DIRECTORY = "queries/";
 
+  /**
+   * Name of the property key that defines whether the query directory is watched and changed query templates are
+   * reloaded
+   */
+  public static final String RELOAD_PROPERTY = "reloadQueries";
+
+  /**
+   * Name of the property key that defines the number of records, which are converted ahead of the response by the
+   * operation {@link Operation#STREAM}
+   */
+  public static final String STREAM_WINDOW_PROPERTY = "streamWindow";
+  /**
+   * Default number of records, which are converted ahead of the response by the operation {@link Operation#STREAM}
+   */
+  private static final int DEFAULT_STREAM_WINDOW = 100;
+
+  /**
+   * Default age in seconds, after which a count of the operation {@link Operation#APPROX_COUNT} is refreshed
+   */
+  private static final long DEFAULT_MAX_STALENESS = 300;
+
+  /**
+   * Name of the property key that defines the path, under which the metrics of all queries are returned as JSON. If
+   * it is not set, the metrics are not published
+   */
+  public static final String METRICS_PATH_PROPERTY = "metricsPath";
+  /**
+   * Name of the property key that defines the duration in milliseconds, after which an execution is logged as slow
+   * query. A value of 0 disables the log
+   */
+  public static final String SLOW_QUERY_THRESHOLD_PROPERTY = "slowQueryThreshold";
+  /**
+   * Name of the property key that defines whether the slow query log contains the resolved values of the variables.
+   * The values come from the request and the session and may contain personal data, so by default only their types
+   * are logged
+   */
+  public static final String SLOW_QUERY_LOG_VALUES_PROPERTY = "slowQueryLogValues";
+  /**
+   * Default duration in milliseconds, after which an execution is logged as slow query
+   */
+  private static final long DEFAULT_SLOW_QUERY_THRESHOLD = 1000;
+
   private static final Logger LOGGER = LoggerFactory.getLogger(QueryPoolController.class);
 
   /**
-   * Cache for the built queries. A simple map should suffice, since the are only build and stored during initialization
-   * and shouldn't change afterwards
+   * The pattern of a variable inside the value of a field condition, like "${request:articlekey}"
    */
-  private Map<String, CacheEntry> queries = new HashMap<>();
+  private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
+
+  /**
+   * Cache for the built queries. The entries are immutable and replaced as a whole when a query is reloaded, so a
+   * request never sees a partially built query
+   */
+  private final Map<String, CacheEntry> queries = new ConcurrentHashMap<>();
+  private QueryDirectoryWatcher watcher;
+  private MessageConsumer<String> recordsChangedConsumer;
+  private Closeable closeHook;
+  private int streamWindow = DEFAULT_STREAM_WINDOW;
+  private String metricsPath;
+  private long slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+  private boolean slowQueryLogValues;
 
   /**
    * The operation to be executed for a query. Even with a native query, we still need to know what kind of result is to
@@ -130,34 +278,35 @@ public class QueryPoolController extends AbstractController {
      */
     SELECT {
       @Override
-      public void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context) {
-        String limitValue = context.request().getParam(LIMIT_PARAMETER_NAME);
-        int limit = StringUtils.isNotBlank(limitValue) ? Integer.valueOf(limitValue) : entry.defaultLimit;
-        String offsetValue = context.request().getParam(OFFSET_PARAMETER_NAME);
-        int offset = StringUtils.isNotBlank(offsetValue) ? Integer.valueOf(offsetValue) : entry.defaultOffset;
-        entry.query.execute(resolver, limit, offset, qeResult -> {
+      public void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context,
+          Handler<AsyncResult<Object>> handler) {
+        int limit = getLimit(entry, context);
+        int offset = getOffset(entry, context);
+        IQuery<?> query = createQuery(entry, context, handler);
+        if (query == null) {
+          return;
+        }
+        query.execute(resolver, limit, offset, qeResult -> {
           if (qeResult.failed()) {
-            context.fail(qeResult.cause());
+            handler.handle(Future.failedFuture(qeResult.cause()));
           } else {
             IQueryResult<?> queryResult = qeResult.result();
             if (queryResult.isEmpty()) {
-              context.next();
+              handler.handle(Future.succeededFuture());
             } else if (queryResult.size() == 1) {
               queryResult.iterator().next(nh -> {
                 if (nh.failed()) {
-                  context.fail(nh.cause());
+                  handler.handle(Future.failedFuture(nh.cause()));
                 } else {
-                  context.put(entry.destination, nh.result());
-                  context.next();
+                  handler.handle(Future.succeededFuture(nh.result()));
                 }
               });
             } else {
               queryResult.toArray(array -> {
                 if (array.failed()) {
-                  context.fail(array.cause());
+                  handler.handle(Future.failedFuture(array.cause()));
                 } else {
-                  context.put(entry.destination, Arrays.asList(array.result()));
-                  context.next();
+                  handler.handle(Future.succeededFuture(Arrays.asList(array.result())));
                 }
               });
             }
@@ -165,25 +314,66 @@ public class QueryPoolController extends AbstractController {
         });
       }
     },
+    /**
+     * A SELECT operation, which reads the records through a {@link QueryResultStream}, so that they are written one by
+     * one into the response. The only consumer of the stream is the JSON output, so this operation can only be
+     * requested with "{@value QueryPoolController#FORMAT_PARAMETER_NAME}={@value QueryPoolController#FORMAT_JSON}";
+     * other requests fail with status 400. The results of this operation are never cached
+     */
+    STREAM {
+      @Override
+      public void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context,
+          Handler<AsyncResult<Object>> handler) {
+        int limit = getLimit(entry, context);
+        int offset = getOffset(entry, context);
+        IQuery<?> query = createQuery(entry, context, handler);
+        if (query == null) {
+          return;
+        }
+        query.execute(resolver, limit, offset, qeResult -> {
+          if (qeResult.failed()) {
+            handler.handle(Future.failedFuture(qeResult.cause()));
+          } else {
+            handler.handle(Future.succeededFuture(new QueryResultStream<>(qeResult.result(), entry.streamWindow)));
+          }
+        });
+      }
+    },
+    /**
+     * An operation that returns an approximate number of results of the query. The count is executed once per
+     * combination of variables and refreshed in the background, when it is older than the "maxStaleness" of the
+     * template; until then, the previous count is returned
+     */
+    APPROX_COUNT {
+      @Override
+      public void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context,
+          Handler<AsyncResult<Object>> handler) {
+        COUNT.executeQuery(entry, resolver, context, handler);
+      }
+    },
     /**
      * An operation that returns only the number of results of the query
      */
     COUNT {
       @Override
-      public void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context) {
-        entry.query.executeCount(resolver, countResult -> {
+      public void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context,
+          Handler<AsyncResult<Object>> handler) {
+        IQuery<?> query = createQuery(entry, context, handler);
+        if (query == null) {
+          return;
+        }
+        query.executeCount(resolver, countResult -> {
           if (countResult.failed()) {
-            context.fail(countResult.cause());
+            handler.handle(Future.failedFuture(countResult.cause()));
           } else {
-            context.put(entry.destination, countResult.result().getCount());
-            context.next();
+            handler.handle(Future.succeededFuture(countResult.result().getCount()));
           }
         });
       }
     };
     /**
-     * Executes the configured operation for the given query and puts the result under the destination name in the
-     * current context
+     * Executes the configured operation for the given query. The result, which is stored under the destination name
+     * in the current context, is given to the handler; a null result means that nothing was found
      *
      * @param entry
      *          contains the query, and all information needed to execute it (i.e. destination, limit, offset)
@@ -191,8 +381,48 @@ public class QueryPoolController extends AbstractController {
      *          the variable resolver needed to translate field condition variables to their actual value
      * @param context
      *          the current routing context
+     * @param handler
+     *          the handler to be informed about the result
+     */
+    public abstract void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context,
+        Handler<AsyncResult<Object>> handler);
+
+    /**
+     * Creates the query for one execution from the plan of the entry. For seek pagination the continuation token of
+     * the request parameter {@value QueryPoolController#AFTER_PARAMETER_NAME} is used. If this fails, the handler is
+     * informed
+     *
+     * @return the query or null, if it could not be created
+     */
+    protected IQuery<?> createQuery(CacheEntry entry, RoutingContext context, Handler<AsyncResult<Object>> handler) {
+      try {
+        return entry.plan.createQuery(StringUtils.trimToNull(context.request().getParam(AFTER_PARAMETER_NAME)));
+      } catch (QueryPoolException e) {
+        handler.handle(Future.failedFuture(e));
+        return null;
+      }
+    }
+
+    /**
+     * Get the limit of the query from the request parameter {@value QueryPoolController#LIMIT_PARAMETER_NAME} or
+     * the default of the entry
      */
-    public abstract void executeQuery(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context);
+    protected int getLimit(CacheEntry entry, RoutingContext context) {
+      String limitValue = context.request().getParam(LIMIT_PARAMETER_NAME);
+      return StringUtils.isNotBlank(limitValue) ? Integer.valueOf(limitValue) : entry.defaultLimit;
+    }
+
+    /**
+     * Get the offset of the query from the request parameter {@value QueryPoolController#OFFSET_PARAMETER_NAME} or
+     * the default of the entry. With seek pagination the offset is always 0
+     */
+    protected int getOffset(CacheEntry entry, RoutingContext context) {
+      if (entry.plan.isSeek()) {
+        return 0;
+      }
+      String offsetValue = context.request().getParam(OFFSET_PARAMETER_NAME);
+      return StringUtils.isNotBlank(offsetValue) ? Integer.valueOf(offsetValue) : entry.defaultOffset;
+    }
 
     /**
      * Custom deserialization method to ignore the case of the JSON keys
@@ -219,16 +449,39 @@ public class QueryPoolController extends AbstractController {
    */
   @Override
   protected void handleController(RoutingContext context) {
-    String queryPath = context.normalisedPath();
-    queryPath = FilenameUtils.removeExtension(queryPath).toLowerCase(Locale.US);
-    CacheEntry entry = queries.get(queryPath);
-    if (entry != null) {
+    if (metricsPath != null && metricsPath.equals(context.normalisedPath())) {
+      handleMetrics(context);
+      return;
+    }
+    CacheEntry entry = queries.get(toQueryName(context.normalisedPath()));
+    String batch = context.request().getParam(BATCH_PARAMETER_NAME);
+    if (entry != null && FORMAT_JSON.equalsIgnoreCase(context.request().getParam(FORMAT_PARAMETER_NAME))) {
+      handleJson(entry, context);
+    } else if (entry != null && entry.operation == Operation.STREAM) {
+      LOGGER.warn("The operation STREAM can only be requested with " + FORMAT_PARAMETER_NAME + "=" + FORMAT_JSON
+          + ": " + context.normalisedPath());
+      context.fail(400);
+    } else if (StringUtils.isNotBlank(batch)) {
+      handleBatch(entry, batch, context);
+    } else if (entry != null) {
       handleQuery(entry, context);
     } else {
       context.next();
     }
   }
 
+  /**
+   * Converts a path into the name of a query by removing the file ending and converting it to lower case
+   *
+   * @param path
+   *          the path of the request or an entry of the batch parameter
+   * @return the name under which the query is stored in the cache
+   */
+  private String toQueryName(String path) {
+    String queryName = FilenameUtils.removeExtension(path.trim()).toLowerCase(Locale.US);
+    return queryName.startsWith("/") ? queryName : "/" + queryName;
+  }
+
   /**
    * Executes the cached query. The result will be made available to the current context under the destination
    * configured in the cache entry.
@@ -239,34 +492,371 @@ public class QueryPoolController extends AbstractController {
    *          the current context
    */
   private void handleQuery(CacheEntry entry, RoutingContext context) {
-    IFieldValueResolver resolver = new ContextFieldValueResolver(context, getNetRelay());
-    Operation operation = entry.operation;
-    operation.executeQuery(entry, resolver, context);
+    executeQuery(entry, context, result -> {
+      if (result.failed()) {
+        context.fail(result.cause());
+      } else {
+        putResult(entry, result.result(), context);
+        context.next();
+      }
+    });
+  }
+
+  /**
+   * Executes the query and writes the result as JSON directly into the response. A COUNT is written as number; the
+   * records of a SELECT or STREAM are read as stream and written as JSON array record by record, with the fields of
+   * the json block of the template only. The template layer and the result cache are not used for records. If the
+   * template defines no json block, the request fails with status 403.
+   *
+   * @param entry
+   *          the cache entry containing the query and all needed information
+   * @param context
+   *          the current context
+   */
+  private void handleJson(CacheEntry entry, RoutingContext context) {
+    if (entry.jsonFields == null) {
+      LOGGER.warn("The query template defines no json block, JSON output is rejected: " + context.normalisedPath());
+      context.fail(403);
+      return;
+    }
+    IMapper<?> mapper = getNetRelay().getDatastore().getMapperFactory().getMapper(entry.plan.getMapperClass());
+    JsonResultWriter writer = new JsonResultWriter(context, getNetRelay().getStoreObjectFactory(), mapper,
+        entry.jsonFields);
+    Handler<AsyncResult<Object>> handler = result -> {
+      if (result.failed()) {
+        context.fail(result.cause());
+      } else if (result.result() instanceof QueryResultStream) {
+        writer.write((QueryResultStream<?>) result.result());
+      } else {
+        writer.writeValue(result.result());
+      }
+    };
+    if (entry.operation == Operation.COUNT || entry.operation == Operation.APPROX_COUNT) {
+      executeQuery(entry, context, handler);
+    } else {
+      IFieldValueResolver resolver = new ContextFieldValueResolver(context, getNetRelay(), entry.references);
+      executeOperation(entry, Operation.STREAM, resolver, context, handler);
+    }
+  }
+
+  /**
+   * Executes the query of the path and all queries named in the batch parameter concurrently. After all queries
+   * finished, each result is made available to the current context under the destination of its cache entry. Unknown
+   * query names and queries with the operation STREAM are skipped.
+   *
+   * @param pathEntry
+   *          the cache entry of the path or null
+   * @param batch
+   *          the value of the parameter {@value #BATCH_PARAMETER_NAME}
+   * @param context
+   *          the current context
+   */
+  @SuppressWarnings("rawtypes")
+  private void handleBatch(CacheEntry pathEntry, String batch, RoutingContext context) {
+    List<CacheEntry> entries = new ArrayList<>();
+    if (pathEntry != null) {
+      entries.add(pathEntry);
+    }
+    for (String queryName : batch.split(",")) {
+      CacheEntry entry = queries.get(toQueryName(queryName));
+      if (entry == null) {
+        LOGGER.warn("Query of batch not found: " + queryName);
+      } else if (entry.operation == Operation.STREAM) {
+        LOGGER.warn("Query of batch skipped, because the operation STREAM can only be requested as JSON: " + queryName);
+      } else if (!entries.contains(entry)) {
+        entries.add(entry);
+      }
+    }
+    List<Future> futures = new ArrayList<>();
+    for (CacheEntry entry : entries) {
+      Future<Object> future = Future.future();
+      executeQuery(entry, context, future.completer());
+      futures.add(future);
+    }
+    CompositeFuture.all(futures).setHandler(result -> {
+      if (result.failed()) {
+        context.fail(result.cause());
+      } else {
+        for (int i = 0; i < entries.size(); i++) {
+          putResult(entries.get(i), result.result().resultAt(i), context);
+        }
+        context.next();
+      }
+    });
+  }
+
+  /**
+   * Stores the result of a query under the destination of the entry. For seek pagination the continuation token is
+   * stored as well, if the page is full
+   *
+   * @param entry
+   *          the cache entry of the query
+   * @param result
+   *          the result of the query, null if nothing was found
+   * @param context
+   *          the current context
+   */
+  private void putResult(CacheEntry entry, Object result, RoutingContext context) {
+    if (result == null) {
+      return;
+    }
+    context.put(entry.destination, result);
+    if (entry.plan.isSeek()) {
+      List<?> records = result instanceof List ? (List<?>) result : Arrays.asList(result);
+      int limit = entry.operation.getLimit(entry, context);
+      if (limit > 0 && records.size() >= limit) {
+        context.put(entry.destination + NEXT_SUFFIX, entry.plan.createToken(records.get(records.size() - 1)));
+      }
+    }
+  }
+
+  /**
+   * Executes the operation of the given entry. If the query template defines a cache, the result is taken from the
+   * result cache of the entry, if it is available
+   *
+   * @param entry
+   *          the cache entry containing the query and all needed information
+   * @param context
+   *          the current context
+   * @param handler
+   *          the handler to be informed about the result, which is null, if nothing was found
+   */
+  private void executeQuery(CacheEntry entry, RoutingContext context, Handler<AsyncResult<Object>> handler) {
+    IFieldValueResolver resolver = new ContextFieldValueResolver(context, getNetRelay(), entry.references);
+    if (entry.approxCounts != null) {
+      executeApproximateCount(entry, resolver, context, handler);
+      return;
+    }
+    String resultKey = null;
+    if (entry.results != null) {
+      try {
+        resultKey = buildResultKey(entry, resolver, context);
+      } catch (VariableSyntaxException e) {
+        handler.handle(Future.failedFuture(e));
+        return;
+      }
+      Optional<Object> cached = entry.results.get(resultKey);
+      if (cached != null) {
+        entry.metrics.recordCacheHit();
+        handler.handle(Future.succeededFuture(cached.orElse(null)));
+        return;
+      }
+      entry.metrics.recordCacheMiss();
+    }
+    String key = resultKey;
+    long generation = entry.generation.get();
+    executeOperation(entry, entry.operation, resolver, context, result -> {
+      if (result.succeeded() && key != null) {
+        Object value = result.result() instanceof List
+            ? Collections.unmodifiableList(new ArrayList<>((List<?>) result.result()))
+            : result.result();
+        storeResult(entry, key, value, generation);
+        handler.handle(Future.succeededFuture(value));
+      } else {
+        handler.handle(result);
+      }
+    });
+  }
+
+  /**
+   * Stores a result in the result cache of the entry, if the results of the entry were not invalidated since the query
+   * was started. If an invalidation happens during the storing, the result is removed again
+   */
+  private void storeResult(CacheEntry entry, String key, Object value, long generation) {
+    if (entry.generation.get() != generation) {
+      return;
+    }
+    entry.results.put(key, Optional.ofNullable(value), entry.ttl);
+    if (entry.generation.get() != generation) {
+      entry.results.remove(key);
+    }
   }
 
   /**
-   * Parses the {@link QueryTemplate} to an {@link IQuery}
+   * Executes the operation against the datastore and records the latency, the number of records and errors in the
+   * metrics of the entry. An execution, which takes longer than the threshold {@value #SLOW_QUERY_THRESHOLD_PROPERTY},
+   * is logged with the description of the template, the variables and the query
+   *
+   * @param entry
+   *          the cache entry containing the query
+   * @param operation
+   *          the operation to be executed
+   * @param resolver
+   *          the resolver for the variables
+   * @param context
+   *          the current context
+   * @param handler
+   *          the handler to be informed about the result
+   */
+  private void executeOperation(CacheEntry entry, Operation operation, IFieldValueResolver resolver,
+      RoutingContext context, Handler<AsyncResult<Object>> handler) {
+    long start = System.nanoTime();
+    operation.executeQuery(entry, resolver, context, result -> {
+      long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      entry.metrics.recordExecution(latency, result.succeeded() ? resultSize(result.result()) : -1, result.failed());
+      if (slowQueryThreshold > 0 && latency >= slowQueryThreshold) {
+        logSlowQuery(entry, resolver, latency);
+      }
+      handler.handle(result);
+    });
+  }
+
+  private static int resultSize(Object result) {
+    if (result == null) {
+      return 0;
+    } else if (result instanceof List) {
+      return ((List<?>) result).size();
+    } else if (result instanceof Number || result instanceof QueryResultStream) {
+      return -1;
+    }
+    return 1;
+  }
+
+  private void logSlowQuery(CacheEntry entry, IFieldValueResolver resolver, long latency) {
+    JsonObject variables = new JsonObject();
+    for (String variable : entry.variables) {
+      try {
+        Object value = resolver.resolve(variable);
+        variables.put(variable, slowQueryLogValues ? String.valueOf(value)
+            : value == null ? "null" : "<" + value.getClass().getSimpleName() + ">");
+      } catch (Exception e) {
+        variables.put(variable, "unresolvable");
+      }
+    }
+    Object query = entry.plan.getNativeCommand() != null ? entry.plan.getNativeCommand()
+        : entry.template.getSource().getValue("dynamic");
+    LOGGER.warn(String.format("Slow query (%d ms): %s - variables: %s - query: %s", latency,
+        entry.template.getDescription(), variables.encode(), query));
+  }
+
+  /**
+   * Writes the metrics of all queries as JSON object into the response, with the name of the query as key
+   *
+   * @param context
+   *          the current context
+   */
+  private void handleMetrics(RoutingContext context) {
+    JsonObject metrics = new JsonObject();
+    new TreeMap<>(queries).forEach((name, entry) -> metrics.put(name, entry.metrics.toJson()));
+    context.response().putHeader("content-type", HttpContentType.APPLICATION_JSON.toString())
+        .end(metrics.encodePrettily());
+  }
+
+  /**
+   * Returns the known count for the resolved variables. If it is older than the maximum staleness of the entry, it is
+   * refreshed in the background; only the first request for a combination of variables waits for the count
+   *
+   * @param entry
+   *          the cache entry with the operation APPROX_COUNT
+   * @param resolver
+   *          the resolver for the variables
+   * @param context
+   *          the current context
+   * @param handler
+   *          the handler to be informed about the count
+   */
+  private void executeApproximateCount(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context,
+      Handler<AsyncResult<Object>> handler) {
+    String key;
+    try {
+      key = buildResultKey(entry, resolver, context);
+    } catch (VariableSyntaxException e) {
+      handler.handle(Future.failedFuture(e));
+      return;
+    }
+    ApproximateCount count = entry.approxCounts.get(key);
+    if (count == null) {
+      entry.metrics.recordCacheMiss();
+      executeOperation(entry, entry.operation, resolver, context, result -> {
+        if (result.succeeded()) {
+          entry.approxCounts.put(key, new ApproximateCount(result.result()));
+        }
+        handler.handle(result);
+      });
+      return;
+    }
+    entry.metrics.recordCacheHit();
+    if (System.currentTimeMillis() - count.timestamp > entry.ttl && count.refreshing.compareAndSet(false, true)) {
+      executeOperation(entry, entry.operation, resolver, context, result -> {
+        if (result.succeeded()) {
+          entry.approxCounts.put(key, new ApproximateCount(result.result()));
+        } else {
+          LOGGER.warn("Refresh of count failed, the previous count is used", result.cause());
+          count.refreshing.set(false);
+        }
+      });
+    }
+    handler.handle(Future.succeededFuture(count.count));
+  }
+
+  /**
+   * Builds the key of a result inside the result cache of an entry from the resolved values of all variables of the
+   * query, the limit and the offset
+   *
+   * @param entry
+   *          the cache entry containing the query and the variables
+   * @param resolver
+   *          the resolver for the variables
+   * @param context
+   *          the current context
+   * @return the key of the result
+   * @throws VariableSyntaxException
+   *           if a variable can not be resolved
+   */
+  private String buildResultKey(CacheEntry entry, IFieldValueResolver resolver, RoutingContext context)
+      throws VariableSyntaxException {
+    StringBuilder key = new StringBuilder();
+    for (String variable : entry.variables) {
+      key.append(resolver.resolve(variable)).append('\u0000');
+    }
+    key.append(entry.operation.getLimit(entry, context)).append('\u0000');
+    key.append(entry.operation.getOffset(entry, context)).append('\u0000');
+    key.append(StringUtils.defaultString(context.request().getParam(AFTER_PARAMETER_NAME)));
+    return key.toString();
+  }
+
+  /**
+   * Removes all cached results of queries for the given mapper. This method is called, when the
+   * {@link PersistenceController} changed records of the mapper
+   *
+   * @param mapperClassName
+   *          the name of the mapper class, which records were changed
+   */
+  private void invalidateResults(String mapperClassName) {
+    for (CacheEntry entry : queries.values()) {
+      if (entry.results != null && entry.plan.getMapperClass().getName().equals(mapperClassName)) {
+        entry.generation.incrementAndGet();
+        entry.results.clear();
+      }
+    }
+  }
+
+  /**
+   * Parses the {@link QueryTemplate} to a {@link QueryPlan}, which creates an {@link IQuery} for every execution
    *
    * @param queryTemplate
    *          the template created from the original JSON
-   * @return the parsed {@link IQuery}
+   * @return the parsed {@link QueryPlan}
    * @throws QueryPoolException
    *           if the query template can not be parsed, e.g. because of syntax exceptions
    */
-  private IQuery<?> parseQuery(QueryTemplate queryTemplate) throws QueryPoolException {
+  private QueryPlan parseQuery(QueryTemplate queryTemplate) throws QueryPoolException {
     Class<?> mapperClass = getNetRelay().getSettings().getMappingDefinitions()
         .getMapperClass(queryTemplate.getMapper());
     try {
-      IQuery<?> query = getNetRelay().getDatastore().createQuery(mapperClass);
+      String nativeCommand = null;
+      QueryPart rootQueryPart = null;
       if (queryTemplate.getNativeQueries() != null) {
-        parseNativeQuery(queryTemplate.getNativeQueries(), query);
+        nativeCommand = parseNativeQuery(queryTemplate.getNativeQueries());
       } else if (queryTemplate.getDynamicQuery() != null) {
-        parseDynamicQuery(queryTemplate.getDynamicQuery(), query);
+        rootQueryPart = parseDynamicQuery(queryTemplate.getDynamicQuery());
       }
+      List<SortField> sortFields = new ArrayList<>();
       if (StringUtils.isNotBlank(queryTemplate.getOrderBy())) {
-        addOrderBy(queryTemplate, query);
+        addOrderBy(queryTemplate, sortFields);
       }
-      return query;
+      return new QueryPlan(getNetRelay().getDatastore(), mapperClass, nativeCommand, rootQueryPart, sortFields,
+          queryTemplate.isSeek());
     } catch (QueryPoolException e) {
       // add the underlying JSON to the exception
       e.setQuery(queryTemplate.getSource());
@@ -275,31 +865,28 @@ public class QueryPoolController extends AbstractController {
   }
 
   /**
-   * Parses a dynamic query, which is independent of the current {@link IDataStore}
+   * Parses a dynamic query, which is independent of the current {@link IDataStore}. The query parts are converted once
+   * by the {@link QueryPlan}, which detects syntax errors during the parsing
    *
    * @param dynamicQuery
    *          the dynamic query part of the {@link QueryTemplate}
-   * @param query
-   *          the query where the content of the dynamic content will be added to
+   * @return the root of the dynamic query or null, if it is empty
    * @throws QueryPoolException
    *           if there is an error during the parsing, e.g. invalid syntax
    */
-  private void parseDynamicQuery(DynamicQuery dynamicQuery, IQuery<?> query) throws QueryPoolException {
-    if (dynamicQuery.getRootQueryPart() != null) {
-      ISearchCondition searchCondition = dynamicQuery.getRootQueryPart().toSearchCondition();
-      query.setSearchCondition(searchCondition);
-    }
+  private QueryPart parseDynamicQuery(DynamicQuery dynamicQuery) throws QueryPoolException {
+    return dynamicQuery.getRootQueryPart();
   }
 
   /**
-   * Add the order by fields to the query
+   * Add the order by fields of the template to the given list
    *
    * @param queryTemplate
    *          the template with the orderBy configuration
-   * @param query
-   *          the query to which the order by fields should be added
+   * @param sortFields
+   *          the list to which the order by fields should be added
    */
-  private void addOrderBy(QueryTemplate queryTemplate, IQuery<?> query) {
+  private void addOrderBy(QueryTemplate queryTemplate, List<SortField> sortFields) {
     String[] orderBys = queryTemplate.getOrderBy().split(",");
     for (String orderBy2 : orderBys) {
       String[] orderBy = orderBy2.trim().split("\\s+");
@@ -310,7 +897,7 @@ public class QueryPoolController extends AbstractController {
           ascending = false;
         }
       }
-      query.addSort(orderBy[0], ascending);
+      sortFields.add(new SortField(orderBy[0], ascending));
     }
   }
 
@@ -319,26 +906,20 @@ public class QueryPoolController extends AbstractController {
    *
    * @param nativeQueries
    *          a list of native queries, with one {@link IDataStore} and query per entry
-   * @param query
-   *          the query to which the natiev query should be set to
+   * @return the native query of the current datastore
    * @throws DatastoreNotFoundException
    *           if the current datastore was not found in the list of native queries
    */
-  private void parseNativeQuery(List<NativeQuery> nativeQueries, IQuery<?> query) throws DatastoreNotFoundException {
+  private String parseNativeQuery(List<NativeQuery> nativeQueries) throws DatastoreNotFoundException {
     IDataStore datastore = getNetRelay().getDatastore();
-    boolean found = false;
     for (NativeQuery nativeQuery : nativeQueries) {
       Class<?> datastoreClass = nativeQuery.getDatastore();
       if (datastoreClass.equals(datastore.getClass())) {
-        query.setNativeCommand(nativeQuery.getQuery());
-        found = true;
-        break;
+        return nativeQuery.getQuery();
       }
     }
-    if (!found) {
-      throw new DatastoreNotFoundException("Query has a native block, but the current datastore ('"
-          + datastore.getClass().getName() + "') is not defined");
-    }
+    throw new DatastoreNotFoundException("Query has a native block, but the current datastore ('"
+        + datastore.getClass().getName() + "') is not defined");
   }
 
   /*
@@ -348,7 +929,13 @@ public class QueryPoolController extends AbstractController {
    */
   @Override
   public void initProperties(Properties properties) {
+    activate();
     String queryDir = readProperty(QUERY_DIRECTORY_PROPERTY, DEFAULT_QUERY_DIRECTORY, false);
+    streamWindow = Integer.parseInt(readProperty(STREAM_WINDOW_PROPERTY, String.valueOf(DEFAULT_STREAM_WINDOW), false));
+    metricsPath = readProperty(METRICS_PATH_PROPERTY, null, false);
+    slowQueryThreshold = Long.parseLong(
+        readProperty(SLOW_QUERY_THRESHOLD_PROPERTY, String.valueOf(DEFAULT_SLOW_QUERY_THRESHOLD), false));
+    slowQueryLogValues = Boolean.parseBoolean(readProperty(SLOW_QUERY_LOG_VALUES_PROPERTY, "false", false));
     FileSystem fs = getVertx().fileSystem();
     if (!fs.existsBlocking(queryDir)) {
       fs.mkdirsBlocking(queryDir);
@@ -364,6 +951,57 @@ public class QueryPoolController extends AbstractController {
         throw new InitException("could not read directory " + queryDir, e);
       }
     }
+    if (Boolean.parseBoolean(readProperty(RELOAD_PROPERTY, "false", false))) {
+      watchQueries(queryDir);
+    }
+    recordsChangedConsumer = getVertx().eventBus().<String> consumer(PersistenceController.RECORDS_CHANGED_ADDRESS,
+        msg -> invalidateResults(msg.body()));
+  }
+
+  /**
+   * Registers this controller as the active one for its name inside the context of the NetRelay instance and releases
+   * the resources of the controller it replaces and of a previous initialization of this controller. NetRelay creates
+   * new controllers, when the routes are reset. The resources are released on undeploy as well, together with the
+   * registration
+   */
+  private void activate() {
+    Context vertxContext = getVertx().getOrCreateContext();
+    QueryPoolController previous = vertxContext.get(getActiveKey());
+    vertxContext.put(getActiveKey(), this);
+    if (previous != null && previous != this) {
+      previous.release();
+    }
+    release();
+    closeHook = completion -> {
+      release();
+      if (vertxContext.get(getActiveKey()) == this) {
+        vertxContext.remove(getActiveKey());
+      }
+      completion.handle(Future.succeededFuture());
+    };
+    vertxContext.addCloseHook(closeHook);
+  }
+
+  private String getActiveKey() {
+    return QueryPoolController.class.getName() + "." + getName();
+  }
+
+  /**
+   * Stops watching the query directory and unregisters the consumer for changed records
+   */
+  private void release() {
+    if (closeHook != null) {
+      getVertx().getOrCreateContext().removeCloseHook(closeHook);
+      closeHook = null;
+    }
+    if (watcher != null) {
+      watcher.stop();
+      watcher = null;
+    }
+    if (recordsChangedConsumer != null) {
+      recordsChangedConsumer.unregister();
+      recordsChangedConsumer = null;
+    }
   }
 
   /**
@@ -378,32 +1016,193 @@ public class QueryPoolController extends AbstractController {
     ObjectMapper om = new ObjectMapper();
     List<String> files = FileSystemUtil.getChildren(getVertx(), directory, true, null);
     for (String file : files) {
-      Buffer fileResult = getVertx().fileSystem().readFileBlocking(file);
-      String queryName = buildQueryName(file, directory);
-      QueryTemplate template;
-      try {
-        template = om.readValue(fileResult.toString(), QueryTemplate.class);
-      } catch (IOException e) {
-        LOGGER.error("", e);
-        throw new InitException("Invalid query template file: " + file, e);
+      queries.put(buildQueryName(file, directory), loadQuery(om, file));
+    }
+  }
+
+  /**
+   * Reads and parses a query JSON file
+   *
+   * @param om
+   *          the mapper to read the JSON
+   * @param file
+   *          the path of the file
+   * @return the entry for the query cache
+   * @throws InitException
+   *           if the file is no valid query template
+   */
+  private CacheEntry loadQuery(ObjectMapper om, String file) {
+    Buffer fileResult = getVertx().fileSystem().readFileBlocking(file);
+    QueryTemplate template;
+    try {
+      template = om.readValue(fileResult.toString(), QueryTemplate.class);
+    } catch (IOException e) {
+      LOGGER.error("", e);
+      throw new InitException("Invalid query template file: " + file, e);
+    }
+    template.setSource(fileResult.toJsonObject());
+
+    QueryPlan plan;
+    try {
+      plan = parseQuery(template);
+    } catch (QueryPoolException e) {
+      LOGGER.error("", e);
+      throw new InitException("Could not parse query template: " + template.getSource(), e);
+    }
+
+    int defaultLimit = template.getLimit() != null ? template.getLimit()
+        : getNetRelay().getDatastore().getDefaultQueryLimit();
+    int defaultOffset = template.getOffset() != null ? template.getOffset() : 0;
+
+    CacheEntry cacheEntry = new CacheEntry(plan, template.getOperation(), defaultLimit, defaultOffset,
+        template.getDestination(), streamWindow, template, getVariables(plan));
+    if (template.getJson() != null) {
+      cacheEntry.enableJson(createJsonFields(plan.getMapperClass(), template.getJson()));
+    }
+    if (template.getOperation() == Operation.APPROX_COUNT) {
+      long maxStaleness = template.getMaxStaleness() != null ? template.getMaxStaleness() : DEFAULT_MAX_STALENESS;
+      int maxEntries = template.getCache() != null ? template.getCache().getMaxEntries()
+          : CacheSettings.DEFAULT_MAX_ENTRIES;
+      cacheEntry.enableApproximateCount(maxStaleness, maxEntries);
+    } else if (template.getCache() != null && template.getOperation() == Operation.STREAM) {
+      LOGGER.warn("The results of the operation STREAM can not be cached: " + file);
+    } else if (template.getCache() != null) {
+      cacheEntry.enableResultCache(template.getCache());
+    } else if (template.getOperation() == Operation.COUNT && template.getMaxStaleness() != null) {
+      cacheEntry.enableResultCache(new CacheSettings(template.getMaxStaleness(), null));
+    }
+    return cacheEntry;
+  }
+
+  /**
+   * Resolves the fields of the json block of a template to the properties of the mapper
+   *
+   * @param mapperClass
+   *          the mapper of the query
+   * @param settings
+   *          the json block of the template
+   * @return the properties by the names of the fields in the order of the template
+   * @throws InitException
+   *           if a field doesn't exist in the mapper
+   */
+  private Map<String, IProperty> createJsonFields(Class<?> mapperClass, JsonSettings settings) {
+    IMapper<?> mapper = getNetRelay().getDatastore().getMapperFactory().getMapper(mapperClass);
+    Map<String, IProperty> fields = new LinkedHashMap<>();
+    for (String fieldName : settings.getFields()) {
+      IProperty property = mapper.getField(fieldName);
+      if (property == null) {
+        throw new InitException("Unknown field in the json block of the query template: " + fieldName);
       }
-      template.setSource(fileResult.toJsonObject());
+      fields.put(fieldName, property);
+    }
+    return Collections.unmodifiableMap(fields);
+  }
 
-      IQuery<?> query;
+  /**
+   * Starts watching the query directory. A changed file is parsed in the thread of the watcher and replaces the
+   * existing entry only if it is valid; the entry of a deleted file is removed
+   *
+   * @param directory
+   *          the directory of the file system where the queries are stored
+   */
+  private void watchQueries(String directory) {
+    Path root = Paths.get(directory).toAbsolutePath();
+    if (!Files.isDirectory(root)) {
+      LOGGER.warn("Query directory " + directory + " is not part of the file system and can not be watched");
+      return;
+    }
+    ObjectMapper om = new ObjectMapper();
+    watcher = new QueryDirectoryWatcher(root, file -> {
+      String queryName = buildQueryName(root, file);
+      long start = System.nanoTime();
       try {
-        query = parseQuery(template);
-      } catch (QueryPoolException e) {
-        LOGGER.error("", e);
-        throw new InitException("Could not parse query template: " + template.getSource(), e);
+        queries.put(queryName, loadQuery(om, file.toString()));
+        LOGGER.info(String.format("reloaded query %s in %d ms", queryName,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+      } catch (InitException e) {
+        LOGGER.error("Query " + queryName + " was not reloaded, the previous version is used", e);
       }
+    }, file -> {
+      String queryName = buildQueryName(root, file);
+      if (queries.remove(queryName) != null) {
+        LOGGER.info("removed query " + queryName);
+      }
+    });
+    try {
+      watcher.start();
+      LOGGER.info("watching query directory " + root);
+    } catch (IOException e) {
+      throw new InitException("could not watch directory " + directory, e);
+    }
+  }
 
-      int defaultLimit = template.getLimit() != null ? template.getLimit()
-          : getNetRelay().getDatastore().getDefaultQueryLimit();
-      int defaultOffset = template.getOffset() != null ? template.getOffset() : 0;
+  /**
+   * Creates the name of a query from the path of its file inside the watched directory
+   *
+   * @param root
+   *          the watched directory
+   * @param file
+   *          the file of the query
+   * @return the name of the query
+   */
+  private String buildQueryName(Path root, Path file) {
+    String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+    return buildQueryName(relativePath, "");
+  }
 
-      CacheEntry cacheEntry = new CacheEntry(query, template.getOperation(), defaultLimit, defaultOffset,
-          template.getMapper());
-      queries.put(queryName, cacheEntry);
+  /**
+   * Collects the variables used inside the parsed query: the values of the conditions of a dynamic query or the
+   * native command for the current datastore. Other parts of the template like the description are not searched
+   *
+   * @param plan
+   *          the parsed query
+   * @return the variables without the surrounding brackets, like "request:articlekey"
+   */
+  private List<String> getVariables(QueryPlan plan) {
+    List<String> variables = new ArrayList<>();
+    if (plan.getNativeCommand() != null) {
+      addVariables(plan.getNativeCommand(), variables);
+    } else if (plan.getRootQueryPart() != null) {
+      addVariables(plan.getRootQueryPart(), variables);
+    }
+    return variables;
+  }
+
+  private void addVariables(QueryPart part, List<String> variables) {
+    if (part.isAnd()) {
+      for (QueryPart child : part.getAnd()) {
+        addVariables(child, variables);
+      }
+    } else if (part.isOr()) {
+      for (QueryPart child : part.getOr()) {
+        addVariables(child, variables);
+      }
+    } else if (part.isNot()) {
+      addVariables(part.getNot(), variables);
+    } else if (part.isCondition()) {
+      addValueVariables(part.getCondition().getValue(), variables);
+    }
+  }
+
+  private void addValueVariables(Object value, List<String> variables) {
+    if (value instanceof CharSequence) {
+      addVariables(value.toString(), variables);
+    } else if (value instanceof Iterable) {
+      for (Object element : (Iterable<?>) value) {
+        addValueVariables(element, variables);
+      }
+    }
+  }
+
+  private void addVariables(String text, List<String> variables) {
+    if (text.indexOf("${") < 0) {
+      return;
+    }
+    Matcher matcher = VARIABLE_PATTERN.matcher(text);
+    while (matcher.find()) {
+      if (!variables.contains(matcher.group(1))) {
+        variables.add(matcher.group(1));
+      }
     }
   }
 
@@ -458,19 +1257,102 @@ public class QueryPoolController extends AbstractController {
    * Small POJO to hold all needed information for a query in the cache
    */
   private static class CacheEntry {
-    private final IQuery<?> query;
+    private final QueryPlan plan;
     private final int defaultLimit;
     private final int defaultOffset;
     private final Operation operation;
     private final String destination;
+    private final int streamWindow;
+    private ExpiringLruCache<String, Optional<Object>> results;
+    /**
+     * Increased by every invalidation of the results, so that a query running during an invalidation can detect it
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private final List<String> variables;
+    private final Map<String, VariableReference> references;
+    private final QueryTemplate template;
+    private final QueryMetrics metrics = new QueryMetrics();
+    private ExpiringLruCache<String, ApproximateCount> approxCounts;
+    private Map<String, IProperty> jsonFields;
+    private long ttl;
 
-    public CacheEntry(IQuery<?> query, Operation operation, int limit, int offset, String destination) {
-      this.query = query;
+    public CacheEntry(QueryPlan plan, Operation operation, int limit, int offset, String destination,
+        int streamWindow, QueryTemplate template, List<String> variables) {
+      this.plan = plan;
       this.operation = operation;
       this.defaultLimit = limit;
       this.defaultOffset = offset;
       this.destination = destination;
+      this.streamWindow = streamWindow;
+      this.template = template;
+      this.variables = variables;
+      this.references = compileVariables(variables);
     }
 
+    /**
+     * Compiles the variables of the query once, so that a request only resolves their values
+     *
+     * @throws InitException
+     *           if a variable has an invalid syntax
+     */
+    private static Map<String, VariableReference> compileVariables(List<String> variables) {
+      Map<String, VariableReference> references = new HashMap<>();
+      for (String variable : variables) {
+        try {
+          references.put(variable, VariableReference.compile(variable));
+        } catch (VariableSyntaxException e) {
+          throw new InitException("Invalid variable in query template: " + variable, e);
+        }
+      }
+      return Collections.unmodifiableMap(references);
+    }
+
+    /**
+     * Enables the caching of the results of the query
+     *
+     * @param settings
+     *          the cache settings of the query template
+     */
+    private void enableResultCache(CacheSettings settings) {
+      this.results = new ExpiringLruCache<>(settings.getMaxEntries());
+      this.ttl = settings.getTtl() * 1000;
+    }
+
+    /**
+     * Enables the JSON output of the query
+     *
+     * @param fields
+     *          the properties, which are written for a record, by their names
+     */
+    private void enableJson(Map<String, IProperty> fields) {
+      this.jsonFields = fields;
+    }
+
+    /**
+     * Enables the approximate counts of the operation APPROX_COUNT
+     *
+     * @param maxStaleness
+     *          the age of a count in seconds, after which it is refreshed
+     * @param maxEntries
+     *          the maximum number of counts for different variables
+     */
+    private void enableApproximateCount(long maxStaleness, int maxEntries) {
+      this.approxCounts = new ExpiringLruCache<>(maxEntries);
+      this.ttl = maxStaleness * 1000;
+    }
+
+  }
+
+  /**
+   * A count of the operation APPROX_COUNT with the time it was executed
+   */
+  private static class ApproximateCount {
+    private final Object count;
+    private final long timestamp = System.currentTimeMillis();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    ApproximateCount(Object count) {
+      this.count = count;
+    }
   }
 }
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import de.braintags.vertx.jomnigate.dataaccess.query.IQueryResult;
+import de.braintags.vertx.util.IteratorAsync;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * A {@link ReadStream} over the records of an {@link IQueryResult}. The records are read one by one from the iterator
+ * of the result; at most "window" records are converted into instances of the mapper ahead of their consumption,
+ * while the stream is paused or no handler is set. The window doesn't bound the cursor of the datastore: the
+ * {@link IQueryResult} fetches the raw data of the query by the batches of the datastore, which are not influenced by
+ * the stream, so the window only limits the number of converted records held in memory. This stream
+ * is created by the operation {@link QueryPoolController.Operation#STREAM} and consumed by the {@link JsonResultWriter},
+ * which writes the records into the response one by one and pauses the stream, while the response is full. It is
+ * never put into the context, because the template layer can't consume it.<br>
+ * <br>
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ * @param <T>
+ *          the type of the records
+ */
+public class QueryResultStream<T> implements ReadStream<T> {
+  private final IteratorAsync<T> iterator;
+  private final int window;
+  private final Deque<T> buffer = new ArrayDeque<>();
+  private Handler<T> handler;
+  private Handler<Void> endHandler;
+  private Handler<Throwable> exceptionHandler;
+  private Throwable failure;
+  private boolean paused;
+  private boolean reading;
+  private boolean filling;
+  private boolean draining;
+  private boolean ended;
+  private boolean finished;
+
+  /**
+   * @param result
+   *          the result of the query
+   * @param window
+   *          the maximum number of records, which are converted ahead of their consumption
+   */
+  public QueryResultStream(IQueryResult<T> result, int window) {
+    this.iterator = result.iterator();
+    this.window = Math.max(1, window);
+  }
+
+  @Override
+  public QueryResultStream<T> exceptionHandler(Handler<Throwable> handler) {
+    this.exceptionHandler = handler;
+    return this;
+  }
+
+  @Override
+  public QueryResultStream<T> handler(Handler<T> handler) {
+    this.handler = handler;
+    drain();
+    return this;
+  }
+
+  @Override
+  public QueryResultStream<T> pause() {
+    paused = true;
+    return this;
+  }
+
+  @Override
+  public QueryResultStream<T> resume() {
+    paused = false;
+    drain();
+    return this;
+  }
+
+  @Override
+  public QueryResultStream<T> endHandler(Handler<Void> endHandler) {
+    this.endHandler = endHandler;
+    drain();
+    return this;
+  }
+
+  /**
+   * Emits the buffered records as long as the stream isn't paused and reads further records
+   */
+  private void drain() {
+    if (draining) {
+      return;
+    }
+    draining = true;
+    try {
+      do {
+        while (!paused && handler != null && !buffer.isEmpty()) {
+          handler.handle(buffer.poll());
+        }
+        fill();
+      } while (!paused && handler != null && !buffer.isEmpty());
+    } finally {
+      draining = false;
+    }
+    if (ended && buffer.isEmpty() && !reading) {
+      finish();
+    }
+  }
+
+  /**
+   * Reads records until the window is full; records, which are delivered synchronously by the iterator, are collected
+   * in the loop to keep the stack flat
+   */
+  private void fill() {
+    if (filling) {
+      return;
+    }
+    filling = true;
+    try {
+      while (!reading && !ended && buffer.size() < window) {
+        if (!iterator.hasNext()) {
+          ended = true;
+        } else {
+          reading = true;
+          iterator.next(this::handleNext);
+        }
+      }
+    } finally {
+      filling = false;
+    }
+  }
+
+  private void handleNext(AsyncResult<T> result) {
+    reading = false;
+    if (result.failed()) {
+      failure = result.cause();
+      ended = true;
+    } else {
+      buffer.add(result.result());
+    }
+    if (!filling) {
+      drain();
+    }
+  }
+
+  private void finish() {
+    if (finished || (failure == null && endHandler == null)) {
+      return;
+    }
+    finished = true;
+    if (failure != null) {
+      if (exceptionHandler != null) {
+        exceptionHandler.handle(failure);
+      }
+    } else {
+      endHandler.handle(null);
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.braintags.netrelay.NetRelay;
+import de.braintags.vertx.jomnigate.dataaccess.query.exception.VariableSyntaxException;
+import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IProperty;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * The compiled form of a variable like "request:articlekey", which is used by {@link ContextFieldValueResolver}. The
+ * location and the name are split once, when the query template is loaded; the path of a mapper variable is split into
+ * its fields, and the {@link IProperty} of every field is kept after the first lookup.<br>
+ * <br>
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+abstract class VariableReference {
+  /**
+   * Identifier for variable values that should be fetched from the current rounting context
+   */
+  static final String LOCATION_CONTEXT = "context";
+  /**
+   * Identifier for variable values that should be fetched from a value of an available mapper record
+   */
+  static final String LOCATION_MAPPER = "mapper";
+  /**
+   * Identifier for variable values that should be fetched from a request parameter
+   */
+  static final String LOCATION_REQUEST = "request";
+
+  private static final String[] LOCATIONS = { LOCATION_CONTEXT, LOCATION_MAPPER, LOCATION_REQUEST };
+
+  /**
+   * Compiles the given variable
+   *
+   * @param variable
+   *          the variable in the format "location:name"
+   * @return the compiled variable
+   * @throws VariableSyntaxException
+   *           if the location is unknown or a mapper variable has no field
+   */
+  static VariableReference compile(String variable) throws VariableSyntaxException {
+    int i = variable.indexOf(':');
+    if (i < 0) {
+      throw new VariableSyntaxException("Variable must have the format 'location:name': " + variable);
+    }
+    String location = variable.substring(0, i);
+    String variableName = variable.substring(i + 1);
+    switch (location) {
+    case LOCATION_REQUEST:
+      return new RequestReference(variableName);
+    case LOCATION_MAPPER:
+      return new MapperReference(variableName);
+    case LOCATION_CONTEXT:
+      return new ContextReference(variableName);
+    default:
+      throw new VariableSyntaxException(
+          "Unknown variable location: '" + location + "'. Possible locations are: " + StringUtils.join(LOCATIONS, ','));
+    }
+  }
+
+  /**
+   * Resolves the value of the variable for the current request
+   *
+   * @param context
+   *          the current context
+   * @param netRelay
+   *          the NetRelay instance with the datastore
+   * @return the value
+   */
+  abstract Object resolve(RoutingContext context, NetRelay netRelay);
+
+  /**
+   * Fetch the value from a request parameter given in the current HTTP request
+   */
+  private static class RequestReference extends VariableReference {
+    private final String name;
+
+    RequestReference(String name) {
+      this.name = name;
+    }
+
+    @Override
+    Object resolve(RoutingContext context, NetRelay netRelay) {
+      return context.request().getParam(name);
+    }
+  }
+
+  /**
+   * Fetch the value from the data map of the current routing context
+   */
+  private static class ContextReference extends VariableReference {
+    private final String name;
+
+    ContextReference(String name) {
+      this.name = name;
+    }
+
+    @Override
+    Object resolve(RoutingContext context, NetRelay netRelay) {
+      return context.get(name);
+    }
+  }
+
+  /**
+   * Fetch the value from the field of one or more mapper records that are currently available. If there is more than
+   * one record, the field values of all records are combined in a list.
+   */
+  private static class MapperReference extends VariableReference {
+    private final String mapperName;
+    private final String[] path;
+    private final CachedProperty[] properties;
+
+    MapperReference(String variableName) throws VariableSyntaxException {
+      int i = variableName.indexOf('.');
+      if (i <= 0) {
+        throw new VariableSyntaxException(
+            "Mapper variable must have at least 2 parts: the mapper name and the field: " + variableName);
+      }
+      this.mapperName = variableName.substring(0, i);
+      this.path = variableName.substring(i + 1).split("\\.");
+      this.properties = new CachedProperty[path.length];
+    }
+
+    @Override
+    Object resolve(RoutingContext context, NetRelay netRelay) {
+      Object mapperValue = context.get(mapperName);
+      if (mapperValue instanceof Iterable) {
+        List<Object> result = new ArrayList<>();
+        for (Object record : (Iterable<?>) mapperValue) {
+          Object resultValue = extractValue(record, netRelay);
+          if (resultValue != null) {
+            result.add(resultValue);
+          }
+        }
+        return result;
+      } else {
+        return extractValue(mapperValue, netRelay);
+      }
+    }
+
+    /**
+     * Walks along the path from the given record
+     */
+    private Object extractValue(Object record, NetRelay netRelay) {
+      Object value = record;
+      for (int level = 0; level < path.length && value != null; level++) {
+        value = getProperty(level, value.getClass(), netRelay).getPropertyAccessor().readData(value);
+      }
+      return value;
+    }
+
+    /**
+     * Get the property of a level of the path. The last property of every level is kept together with the class it
+     * belongs to, because the records of a path normally have always the same class
+     */
+    private IProperty getProperty(int level, Class<?> recordClass, NetRelay netRelay) {
+      CachedProperty cached = properties[level];
+      if (cached == null || cached.recordClass != recordClass) {
+        IMapper<?> mapper = netRelay.getDatastore().getMapperFactory().getMapper(recordClass);
+        if (mapper == null) {
+          throw new IllegalArgumentException(
+              "Can not extract value from a class that is not a mapper: " + recordClass);
+        }
+        IProperty property = mapper.getField(path[level]);
+        if (property == null) {
+          throw new IllegalArgumentException("Unknown field '" + path[level] + "' in mapper " + recordClass);
+        }
+        cached = new CachedProperty(recordClass, property);
+        properties[level] = cached;
+      }
+      return cached.property;
+    }
+  }
+
+  /**
+   * An immutable pair of a class and one of its properties, which can be replaced atomically inside the array of a
+   * {@link MapperReference}
+   */
+  private static final class CachedProperty {
+    private final Class<?> recordClass;
+    private final IProperty property;
+
+    CachedProperty(Class<?> recordClass, IProperty property) {
+      this.recordClass = recordClass;
+      this.property = property;
+    }
+  }
+
+}
@@ -20,13 +20,17 @@
  * A query is build as a JSON object. The query must define:
  * - the mapper for which it will be executed
  * - a description of the general use of the query
- * - the operation that will be executed (SELECT, COUNT, ...)
+ * - the operation that will be executed (SELECT, STREAM, COUNT, ...)
  * - either a dynamic or a native query
  *  
  * Optionally, it can also define:
  * - the sort direction(s), a comma separated list of sort fields, optionally with ASC/DESC to indicate the direction
  * - a default limit for the number of results
  * - a default offset for the beginning of the results
+ * - a cache block with "ttl" and "maxEntries", to cache the results of the query
+ * - "seek": true, to paginate by a continuation token instead of an offset. The sort fields must be strings, numbers,
+ *   booleans or dates
+ * - a json block with the "fields" of the records, which may be written, if the result is requested as JSON
  * 
  * === Native Query Syntax
  * A native query must have one or more entries with a specific datastore and a native query for that datastore.
@@ -137,8 +141,10 @@
  * == {@link de.braintags.netrelay.controller.querypool.QueryPoolController}
  * This controller reads predefined queries from the file system, and executes them on matching page calls. 
  * The queries must be stored as JSON objects in the defined format. 
- * On initialization, the JSON files are loaded and transformed into {@link de.braintags.vertx.jomnigate.dataaccess.query.IQuery} objects,
- * that are cached for the duration of the controller.
+ * On initialization, the JSON files are loaded and transformed into immutable query plans,
+ * that are cached for the duration of the controller. For every execution a new {@link de.braintags.vertx.jomnigate.dataaccess.query.IQuery} is created from the plan.
+ * The operation STREAM converts the records incrementally through a {@link de.braintags.netrelay.controller.querypool.QueryResultStream} and can only be requested with "qformat=json".
+ * Only the conversion into instances of the mapper is bounded by the property "streamWindow"; the datastore reads the raw data in its own batches.
  * The path of the query file must match the path of the request for it to be executed.
  *
  * [source, json]
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool.template;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The optional cache part of {@link QueryTemplate}. If it is defined, the results of the query are cached by the values
+ * of the resolved variables, the limit and the offset of the request<br>
+ *
+ * <pre>
+ * "cache": {
+ *   "ttl": 300,
+ *   "maxEntries": 100
+ * }
+ * </pre>
+ *
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+public class CacheSettings {
+  /**
+   * The default time to live of a cached result in seconds
+   */
+  public static final long DEFAULT_TTL = 60;
+  /**
+   * The default maximum number of cached results per query
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 100;
+
+  private long ttl;
+  private int maxEntries;
+
+  /**
+   * Constructor using all fields. All parameters are optional
+   *
+   * @param ttl
+   *          the time to live of a cached result in seconds, by default {@value #DEFAULT_TTL}
+   * @param maxEntries
+   *          the maximum number of cached results of the query, by default {@value #DEFAULT_MAX_ENTRIES}
+   */
+  @JsonCreator
+  public CacheSettings(@JsonProperty(value = "ttl") Long ttl, @JsonProperty(value = "maxEntries") Integer maxEntries) {
+    this.ttl = ttl != null ? ttl : DEFAULT_TTL;
+    this.maxEntries = maxEntries != null ? maxEntries : DEFAULT_MAX_ENTRIES;
+  }
+
+  /**
+   * @return the time to live of a cached result in seconds
+   */
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * @return the maximum number of cached results of the query
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+}
@@ -0,0 +1,59 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool.template;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The optional json part of {@link QueryTemplate}. Only if it is defined, the result of the query can be requested as
+ * JSON. The records are written with the listed fields only, so that fields like passwords are never sent by
+ * accident. A query, which only counts, needs no fields<br>
+ *
+ * <pre>
+ * "json": {
+ *   "fields": ["id", "firstname", "lastname"]
+ * }
+ * </pre>
+ *
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+public class JsonSettings {
+  private List<String> fields;
+
+  /**
+   * Constructor using all fields
+   *
+   * @param fields
+   *          the names of the fields of the mapper, which are written as JSON
+   */
+  @JsonCreator
+  public JsonSettings(@JsonProperty(value = "fields") List<String> fields) {
+    this.fields = fields != null ? Collections.unmodifiableList(new ArrayList<>(fields))
+        : Collections.<String> emptyList();
+  }
+
+  /**
+   * @return the names of the fields of the mapper, which are written as JSON
+   */
+  public List<String> getFields() {
+    return fields;
+  }
+}
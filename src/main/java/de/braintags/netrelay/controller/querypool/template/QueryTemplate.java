@@ -35,6 +35,7 @@ import io.vertx.core.json.JsonObject;
 public class QueryTemplate {
 
   private String mapper;
+  private String destination;
   private String description;
   private Operation operation;
   private List<NativeQuery> nativeQueries;
@@ -43,6 +44,10 @@ public class QueryTemplate {
   private String orderBy;
   private Integer offset;
   private Integer limit;
+  private CacheSettings cache;
+  private boolean seek;
+  private Long maxStaleness;
+  private JsonSettings json;
 
   @JsonIgnore
   private JsonObject source;
@@ -67,6 +72,18 @@ public class QueryTemplate {
    *          the default offset, or starting position, of the query
    * @param limit
    *          the default limit of the query
+   * @param cache
+   *          the optional {@link CacheSettings}, if the results of the query shall be cached
+   * @param seek
+   *          true, if the query is paginated by a continuation token instead of an offset. This requires a dynamic
+   *          query with an orderBy, which defines a unique order of the records
+   * @param maxStaleness
+   *          the maximum age of a count in seconds, which is returned by the operations COUNT and APPROX_COUNT
+   * @param destination
+   *          the name, under which the result is stored in the context. If null, the name of the mapper is used
+   * @param json
+   *          the optional {@link JsonSettings}, if the result of the query may be requested as JSON. The operation
+   *          STREAM requires them, other operations than the counts require fields
    * @throws InvalidSyntaxException
    *           if there is a syntax error in the template
    */
@@ -76,11 +93,24 @@ public class QueryTemplate {
       @JsonProperty(value = "operation", required = true) Operation operation,
       @JsonProperty(value = "native") List<NativeQuery> nativeQueries,
       @JsonProperty(value = "dynamic") DynamicQuery dynamicQuery, @JsonProperty(value = "orderBy") String orderBy,
-      @JsonProperty(value = "offset") Integer offset, @JsonProperty(value = "limit") Integer limit)
+      @JsonProperty(value = "offset") Integer offset, @JsonProperty(value = "limit") Integer limit,
+      @JsonProperty(value = "cache") CacheSettings cache, @JsonProperty(value = "seek") Boolean seek,
+      @JsonProperty(value = "maxStaleness") Long maxStaleness,
+      @JsonProperty(value = "destination") String destination, @JsonProperty(value = "json") JsonSettings json)
       throws InvalidSyntaxException {
     if (dynamicQuery != null && nativeQueries != null) {
       throw new InvalidSyntaxException("A query template can not define a dynamic and native query at the same time");
     }
+    if (Boolean.TRUE.equals(seek) && (nativeQueries != null || orderBy == null || orderBy.trim().isEmpty())) {
+      throw new InvalidSyntaxException("A query template with seek pagination needs a dynamic query and an orderBy");
+    }
+    if (operation == Operation.STREAM && json == null) {
+      throw new InvalidSyntaxException("A query template with the operation STREAM needs a json block");
+    }
+    if (json != null && json.getFields().isEmpty() && operation != Operation.COUNT
+        && operation != Operation.APPROX_COUNT) {
+      throw new InvalidSyntaxException("The json block of a query template, which returns records, needs fields");
+    }
 
     this.mapper = mapper;
     this.description = description;
@@ -90,6 +120,11 @@ public class QueryTemplate {
     this.orderBy = orderBy;
     this.offset = offset;
     this.limit = limit;
+    this.cache = cache;
+    this.seek = Boolean.TRUE.equals(seek);
+    this.maxStaleness = maxStaleness;
+    this.destination = destination == null || destination.trim().isEmpty() ? mapper : destination;
+    this.json = json;
   }
 
   /**
@@ -99,6 +134,16 @@ public class QueryTemplate {
     return mapper;
   }
 
+  /**
+   * The name, under which the result of the query is stored in the context. Queries of the same mapper, which are
+   * executed in one batch, need different destinations
+   *
+   * @return the destination, by default the name of the mapper
+   */
+  public String getDestination() {
+    return destination;
+  }
+
   /**
    * @return the description of the general use of this query
    */
@@ -170,4 +215,42 @@ public class QueryTemplate {
   public Integer getLimit() {
     return limit;
   }
+
+  /**
+   * The settings for caching the results of the query. Can be null, then the results are not cached.
+   *
+   * @return the cache settings
+   */
+  public CacheSettings getCache() {
+    return cache;
+  }
+
+  /**
+   * If true, the query is paginated by the values of the sort fields of the last record of the previous page, which
+   * are sent as continuation token, instead of an offset
+   *
+   * @return true for seek pagination
+   */
+  public boolean isSeek() {
+    return seek;
+  }
+
+  /**
+   * The maximum age in seconds of a count, which is returned by the operations COUNT and APPROX_COUNT. For COUNT the
+   * counts are cached for this time; APPROX_COUNT refreshes a count in the background, when it is older. Can be null.
+   *
+   * @return the maximum staleness in seconds
+   */
+  public Long getMaxStaleness() {
+    return maxStaleness;
+  }
+
+  /**
+   * The settings for the JSON output of the query. Can be null, then the result can't be requested as JSON.
+   *
+   * @return the json settings
+   */
+  public JsonSettings getJson() {
+    return json;
+  }
 }
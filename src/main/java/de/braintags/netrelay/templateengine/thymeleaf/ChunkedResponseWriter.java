@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * A {@link Writer}, which encodes the output of a template into chunks of a defined size and writes every complete
+ * chunk into an {@link HttpServerResponse} with chunked transfer encoding. If the write queue of the response is full,
+ * the writer blocks until the response was drained, so it must only be used from a worker thread of a dedicated pool,
+ * like the streaming pool of {@link ThymeleafTemplateEngineImplBt}, so that slow clients can't exhaust the worker pool
+ * shared by all verticles.
+ *
+ * @author Michael Remme
+ *
+ */
+public class ChunkedResponseWriter extends Utf8ByteBufWriter {
+  /**
+   * The maximum time in seconds to wait for a full write queue to be drained
+   */
+  private static final long DRAIN_TIMEOUT = 60;
+  /**
+   * The interval in milliseconds to check, whether the connection was closed while waiting for the drain
+   */
+  private static final long CLOSE_CHECK_INTERVAL = 100;
+
+  private final HttpServerResponse response;
+  private final String contentType;
+  private final int chunkSize;
+
+  /**
+   * @param response
+   *          the response to write into
+   * @param contentType
+   *          the content type, which is sent with the first chunk
+   * @param chunkSize
+   *          the number of bytes, which are collected before a chunk is sent
+   */
+  public ChunkedResponseWriter(final HttpServerResponse response, final String contentType, final int chunkSize) {
+    super(Unpooled.buffer(chunkSize));
+    this.response = response;
+    this.contentType = contentType;
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  protected void afterWrite() throws IOException {
+    if (getTarget().readableBytes() >= chunkSize) {
+      writeChunk();
+    }
+  }
+
+  /**
+   * Sends the bytes collected so far as one chunk
+   */
+  @Override
+  public void flush() throws IOException {
+    writeChunk();
+  }
+
+  /**
+   * Sends the remaining bytes and ends the response
+   *
+   * @throws IOException
+   *           if the connection was closed by the client
+   */
+  public void end() throws IOException {
+    close();
+    writeChunk();
+    if (!response.headWritten()) {
+      response.putHeader(HttpHeaders.CONTENT_TYPE, contentType);
+    }
+    response.end();
+  }
+
+  private void writeChunk() throws IOException {
+    checkClosed();
+    if (!getTarget().isReadable()) {
+      return;
+    }
+    if (!response.headWritten()) {
+      response.setChunked(true);
+      response.putHeader(HttpHeaders.CONTENT_TYPE, contentType);
+    }
+    // the written buffer is owned by the response now, so the next chunk needs a new one
+    response.write(Buffer.buffer(getTarget()));
+    setTarget(Unpooled.buffer(chunkSize));
+    awaitDrain();
+  }
+
+  private void checkClosed() throws IOException {
+    if (response.closed()) {
+      throw new IOException("connection was closed by the client");
+    }
+  }
+
+  /**
+   * Waits until the write queue of the response is drained, if it is full. The drain handler is installed before the
+   * queue is checked, so that a drain between the check and the installation isn't missed
+   */
+  private void awaitDrain() throws IOException {
+    CountDownLatch latch = new CountDownLatch(1);
+    response.drainHandler(v -> latch.countDown());
+    try {
+      if (!response.writeQueueFull()) {
+        return;
+      }
+      long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(DRAIN_TIMEOUT);
+      while (!latch.await(CLOSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+        checkClosed();
+        if (System.currentTimeMillis() > timeout) {
+          throw new IOException("response was not drained within " + DRAIN_TIMEOUT + " seconds");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for the response to be drained");
+    } finally {
+      response.drainHandler(null);
+    }
+  }
+
+}
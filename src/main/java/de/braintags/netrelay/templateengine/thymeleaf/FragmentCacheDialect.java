@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.thymeleaf.dialect.AbstractProcessorDialect;
+import org.thymeleaf.dialect.IPostProcessorDialect;
+import org.thymeleaf.postprocessor.IPostProcessor;
+import org.thymeleaf.postprocessor.PostProcessor;
+import org.thymeleaf.processor.IProcessor;
+import org.thymeleaf.standard.StandardDialect;
+import org.thymeleaf.templatemode.TemplateMode;
+
+import de.braintags.netrelay.cache.ExpiringLruCache;
+import de.braintags.netrelay.controller.ThymeleafTemplateController;
+
+/**
+ * A dialect, which caches the rendered output of elements. An element is marked as cacheable by the attribute "cache",
+ * which contains an expression to build the key of the fragment. The optional attribute "ttl" defines the time to live
+ * in seconds, by default {@value FragmentCacheProcessor#DEFAULT_TTL}. The key must contain everything the output
+ * depends on, like the locale; fragments which contain user specific data must not be cached.
+ *
+ * <pre>
+ * &lt;nav fragment:cache="'navigation_' + ${#locale}" fragment:ttl="600"&gt; ... &lt;/nav&gt;
+ * </pre>
+ *
+ * The dialect is added by the property {@link ThymeleafTemplateController#DIALECTS_PROPERTY}, for instance as
+ * "fragment:de.braintags.netrelay.templateengine.thymeleaf.FragmentCacheDialect". The rendered fragments are stored
+ * inside the fragment cache of the {@link ThymeleafTemplateEngineImplBt}, which can be invalidated by a message to
+ * {@link ThymeleafTemplateEngineImplBt#FRAGMENT_CACHE_INVALIDATE_ADDRESS}
+ *
+ * @author Michael Remme
+ *
+ */
+public class FragmentCacheDialect extends AbstractProcessorDialect implements IPostProcessorDialect {
+  /**
+   * The default prefix of the dialect
+   */
+  public static final String DEFAULT_PREFIX = "fragment";
+
+  private ExpiringLruCache<String, String> fragmentCache;
+
+  public FragmentCacheDialect() {
+    super("NetRelay Fragment Cache", DEFAULT_PREFIX, StandardDialect.PROCESSOR_PRECEDENCE);
+  }
+
+  @Override
+  public Set<IProcessor> getProcessors(final String dialectPrefix) {
+    Set<IProcessor> processors = new HashSet<>();
+    processors.add(new FragmentCacheProcessor(this, dialectPrefix));
+    return processors;
+  }
+
+  @Override
+  public int getPostProcessorPrecedence() {
+    return StandardDialect.PROCESSOR_PRECEDENCE;
+  }
+
+  @Override
+  public Set<IPostProcessor> getPostProcessors() {
+    return Collections.singleton(new PostProcessor(TemplateMode.HTML, FragmentCaptureHandler.class,
+        StandardDialect.PROCESSOR_PRECEDENCE));
+  }
+
+  /**
+   * Get the cache, where rendered fragments are stored
+   *
+   * @return the fragmentCache or null, if the dialect wasn't added to a {@link ThymeleafTemplateEngineImplBt}
+   */
+  public ExpiringLruCache<String, String> getFragmentCache() {
+    return fragmentCache;
+  }
+
+  /**
+   * Set the cache, where rendered fragments are stored
+   *
+   * @param fragmentCache
+   *          the fragmentCache to set
+   */
+  public void setFragmentCache(final ExpiringLruCache<String, String> fragmentCache) {
+    this.fragmentCache = fragmentCache;
+  }
+
+}
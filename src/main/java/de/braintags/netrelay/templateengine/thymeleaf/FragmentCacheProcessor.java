@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import org.thymeleaf.context.ITemplateContext;
+import org.thymeleaf.engine.AttributeName;
+import org.thymeleaf.model.IModel;
+import org.thymeleaf.model.IModelFactory;
+import org.thymeleaf.model.IProcessableElementTag;
+import org.thymeleaf.processor.element.AbstractAttributeModelProcessor;
+import org.thymeleaf.processor.element.IElementModelStructureHandler;
+import org.thymeleaf.standard.expression.StandardExpressions;
+import org.thymeleaf.templatemode.TemplateMode;
+
+import de.braintags.netrelay.cache.ExpiringLruCache;
+
+/**
+ * Processes the attribute "cache" of the {@link FragmentCacheDialect}. If the fragment with the evaluated key is cached,
+ * the element is replaced by the cached output. Otherwise the element is surrounded by two processing instructions,
+ * which are consumed by the {@link FragmentCaptureHandler}, so that the {@link Utf8ByteBufWriter} stores the output of
+ * the element in the cache while the page is written. Because they are model events and not text, they can't be
+ * forged by rendered content.
+ *
+ * @author Michael Remme
+ *
+ */
+public class FragmentCacheProcessor extends AbstractAttributeModelProcessor {
+  /**
+   * The name of the attribute, which marks a cacheable element and contains the expression for its key
+   */
+  public static final String ATTRIBUTE_NAME = "cache";
+  /**
+   * The name of the attribute, which defines the time to live of a cached fragment in seconds
+   */
+  public static final String TTL_ATTRIBUTE_NAME = "ttl";
+  /**
+   * The default time to live of a cached fragment in seconds
+   */
+  public static final long DEFAULT_TTL = 300;
+  /**
+   * Executed before the processors of the standard dialect, so that a cached element isn't processed at all
+   */
+  private static final int PRECEDENCE = 10;
+
+  private final FragmentCacheDialect dialect;
+
+  public FragmentCacheProcessor(final FragmentCacheDialect dialect, final String dialectPrefix) {
+    super(TemplateMode.HTML, dialectPrefix, null, false, ATTRIBUTE_NAME, true, PRECEDENCE, false);
+    this.dialect = dialect;
+  }
+
+  @Override
+  protected void doProcess(final ITemplateContext context, final IModel model, final AttributeName attributeName,
+      final String attributeValue, final IElementModelStructureHandler structureHandler) {
+    IModelFactory modelFactory = context.getModelFactory();
+    IProcessableElementTag tag = (IProcessableElementTag) model.get(0);
+    String prefix = attributeName.getPrefix();
+    String ttlValue = tag.getAttributeValue(prefix, TTL_ATTRIBUTE_NAME);
+    long ttl = ttlValue == null ? DEFAULT_TTL : Long.parseLong(ttlValue.trim());
+    tag = modelFactory.removeAttribute(tag, attributeName);
+    tag = modelFactory.removeAttribute(tag, prefix, TTL_ATTRIBUTE_NAME);
+    model.replace(0, tag);
+
+    ExpiringLruCache<String, String> cache = dialect.getFragmentCache();
+    if (cache == null) {
+      return;
+    }
+    String key = String.valueOf(
+        StandardExpressions.getExpressionParser(context.getConfiguration()).parseExpression(context, attributeValue)
+            .execute(context));
+    String content = cache.get(key);
+    if (content != null) {
+      model.reset();
+      model.add(modelFactory.createText(content));
+    } else {
+      model.insert(0, modelFactory.createProcessingInstruction(FragmentCaptureHandler.CAPTURE_START_TARGET,
+          FragmentCaptureHandler.createStartContent(key, ttl * 1000)));
+      model.add(modelFactory.createProcessingInstruction(FragmentCaptureHandler.CAPTURE_END_TARGET, ""));
+    }
+  }
+
+}
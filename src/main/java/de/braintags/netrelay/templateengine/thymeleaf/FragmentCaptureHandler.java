@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import org.thymeleaf.engine.AbstractTemplateHandler;
+import org.thymeleaf.model.IProcessingInstruction;
+
+/**
+ * A post processor of the {@link FragmentCacheDialect}, which consumes the processing instructions inserted by the
+ * {@link FragmentCacheProcessor} and starts or ends the capture of a fragment at the {@link Utf8ByteBufWriter} of the
+ * current rendering. Post processors run directly before the output is written, so all previous events are inside the
+ * writer, when a processing instruction arrives here. The instructions are never written into the page; if no writer
+ * was set for the current thread, they are dropped.
+ *
+ * @author Michael Remme
+ *
+ */
+public class FragmentCaptureHandler extends AbstractTemplateHandler {
+  /**
+   * The target of the processing instruction, which starts the capture of a fragment
+   */
+  public static final String CAPTURE_START_TARGET = "netrelay-fragment-start";
+  /**
+   * The target of the processing instruction, which ends the capture of a fragment
+   */
+  public static final String CAPTURE_END_TARGET = "netrelay-fragment-end";
+
+  private static final ThreadLocal<Utf8ByteBufWriter> WRITER = new ThreadLocal<>();
+
+  /**
+   * Set the writer, which receives the captures of the templates processed by the current thread
+   *
+   * @param writer
+   *          the writer or null to remove it after processing
+   */
+  static void setWriter(final Utf8ByteBufWriter writer) {
+    if (writer == null) {
+      WRITER.remove();
+    } else {
+      WRITER.set(writer);
+    }
+  }
+
+  /**
+   * Creates the content of the processing instruction, which starts a capture
+   *
+   * @param key
+   *          the key of the fragment
+   * @param ttl
+   *          the time to live in milliseconds
+   * @return the content
+   */
+  static String createStartContent(final String key, final long ttl) {
+    return ttl + ":" + key;
+  }
+
+  @Override
+  public void handleProcessingInstruction(final IProcessingInstruction processingInstruction) {
+    String target = processingInstruction.getTarget();
+    if (CAPTURE_START_TARGET.equals(target)) {
+      Utf8ByteBufWriter writer = WRITER.get();
+      if (writer != null) {
+        String content = processingInstruction.getContent();
+        int separator = content.indexOf(':');
+        writer.startCapture(content.substring(separator + 1), Long.parseLong(content.substring(0, separator)));
+      }
+    } else if (CAPTURE_END_TARGET.equals(target)) {
+      Utf8ByteBufWriter writer = WRITER.get();
+      if (writer != null) {
+        writer.endCapture();
+      }
+    } else {
+      super.handleProcessingInstruction(processingInstruction);
+    }
+  }
+
+}
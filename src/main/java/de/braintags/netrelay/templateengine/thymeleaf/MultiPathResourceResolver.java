@@ -12,73 +12,166 @@
  */
 package de.braintags.netrelay.templateengine.thymeleaf;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Optional;
 
-import org.thymeleaf.IEngineConfiguration;
 import org.thymeleaf.templateresolver.ITemplateResolver;
-import org.thymeleaf.templateresource.ITemplateResource;
-import org.thymeleaf.templateresource.StringTemplateResource;
 
+import de.braintags.netrelay.cache.ExpiringLruCache;
 import de.braintags.vertx.util.ExceptionUtil;
 import de.braintags.vertx.util.exception.NoSuchFileException;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
-import io.vertx.ext.web.impl.Utils;
 
 /**
  * An implementation of {@link ITemplateResolver}
  * The resolver will first search for an existing template
  * inside the defined template directory. If none was found, the TemplateHandler will search for existing template in
  * the pure path, without the defined template directory, to allow the use of stored resources inside the classpath.
+ * The resolved paths are kept in a bounded cache. Template names, which could not be found, are remembered for a
+ * short time as well, so that repeated requests for missing templates don't check the file system each time. A name,
+ * which is unknown to the cache, is only checked blocking outside of an event loop; on an event loop a
+ * {@link SourceNotLoadedException} is thrown, so that the name can be resolved by a prefetch.
  *
  *
  * @author Michael Remme
  *
  */
 public class MultiPathResourceResolver extends ResourceTemplateResolver {
-  private static final String NOT_FOUND  = "multipath option under path '%s' and '%s'";
-  private final String        templateDirectory;
-  private Map<String, String> pathLookup = new HashMap<>();
+  /**
+   * The default maximum number of template names, whose resolution is kept
+   */
+  public static final int DEFAULT_LOOKUP_SIZE = 10000;
+  /**
+   * The default time in milliseconds, a template name, which could not be resolved, is remembered as missing
+   */
+  public static final long DEFAULT_NEGATIVE_TTL = 10000;
+
+  private static final String                              NOT_FOUND   = "multipath option under path '%s' and '%s'";
+  private final String                                     templateDirectory;
+  private final ExpiringLruCache<String, Optional<String>> pathLookup;
+  private long                                             negativeTtl = DEFAULT_NEGATIVE_TTL;
 
   /**
    *
    */
   public MultiPathResourceResolver(Vertx vertx, String templateDirectory) {
+    this(vertx, templateDirectory, DEFAULT_LOOKUP_SIZE);
+  }
+
+  /**
+   * @param vertx
+   * @param templateDirectory
+   *          the directory of the templates
+   * @param lookupSize
+   *          the maximum number of template names, whose resolution is kept
+   */
+  public MultiPathResourceResolver(Vertx vertx, String templateDirectory, int lookupSize) {
     super(vertx, templateDirectory);
     this.templateDirectory = templateDirectory;
+    this.pathLookup = new ExpiringLruCache<>(lookupSize);
     setName("braintags/Thymeleaf3");
   }
 
   @Override
-  protected ITemplateResource computeTemplateResource(IEngineConfiguration configuration, String ownerTemplate,
-      String template, Map<String, Object> templateResolutionAttributes) {
+  protected String resolvePath(String ownerTemplate, String template) {
     try {
-      String str = Utils.readFileToString(vertx, resolveMultiPath(template));
-      return new StringTemplateResource(str);
+      return resolveMultiPath(template);
     } catch (NoSuchFileException e) {
       throw ExceptionUtil.createRuntimeException(e);
     }
   }
 
-  private String resolveMultiPath(final String template) throws NoSuchFileException {
-    if (pathLookup.containsKey(template)) {
-      return pathLookup.get(template);
+  @Override
+  protected void resolvePath(String template, Handler<AsyncResult<String>> handler) {
+    Optional<String> path = pathLookup.get(template);
+    if (path != null) {
+      handler.handle(path.isPresent() ? Future.succeededFuture(path.get())
+          : Future.failedFuture(notFound(template)));
+      return;
     }
-    String file = template;
-    if (!vertx.fileSystem().existsBlocking(file)) {
-      String cpFile = templateDirectory + file;
-        if (cpFile.startsWith("/")) {
-        cpFile = cpFile.substring(1);
-        }
-        if (vertx.fileSystem().existsBlocking(cpFile)) {
-          file = cpFile;
+    vertx.fileSystem().exists(template, res -> {
+      if (res.succeeded() && res.result()) {
+        pathLookup.put(template, Optional.of(template));
+        handler.handle(Future.succeededFuture(template));
+        return;
+      }
+      String cpFile = toClasspathFile(template);
+      vertx.fileSystem().exists(cpFile, cpRes -> {
+        if (cpRes.succeeded() && cpRes.result()) {
+          pathLookup.put(template, Optional.of(cpFile));
+          handler.handle(Future.succeededFuture(cpFile));
         } else {
-          throw new NoSuchFileException(String.format(NOT_FOUND, file, cpFile));
+          pathLookup.put(template, Optional.empty(), negativeTtl);
+          handler.handle(Future.failedFuture(notFound(template)));
         }
+      });
+    });
+  }
 
+  private String toClasspathFile(final String template) {
+    String cpFile = templateDirectory + template;
+    return cpFile.startsWith("/") ? cpFile.substring(1) : cpFile;
+  }
+
+  private NoSuchFileException notFound(final String template) {
+    return new NoSuchFileException(String.format(NOT_FOUND, template, toClasspathFile(template)));
+  }
+
+  private String resolveMultiPath(final String template) throws NoSuchFileException {
+    Optional<String> path = pathLookup.get(template);
+    if (path != null) {
+      if (!path.isPresent()) {
+        throw notFound(template);
+      }
+      return path.get();
     }
-    pathLookup.put(template, file);
+    if (Context.isOnEventLoopThread()) {
+      throw new SourceNotLoadedException(template);
+    }
+    String file = template;
+    if (!vertx.fileSystem().existsBlocking(file)) {
+      String cpFile = toClasspathFile(file);
+      if (vertx.fileSystem().existsBlocking(cpFile)) {
+        file = cpFile;
+      } else {
+        pathLookup.put(template, Optional.empty(), negativeTtl);
+        throw notFound(template);
+      }
+    }
+    pathLookup.put(template, Optional.of(file));
     return file;
   }
 
+  /**
+   * Get the time in milliseconds, a template name, which could not be resolved, is remembered as missing
+   *
+   * @return the negativeTtl
+   */
+  public long getNegativeTtl() {
+    return negativeTtl;
+  }
+
+  /**
+   * Set the time in milliseconds, a template name, which could not be resolved, is remembered as missing. Default is
+   * {@value #DEFAULT_NEGATIVE_TTL}
+   *
+   * @param negativeTtl
+   *          the negativeTtl to set
+   */
+  public void setNegativeTtl(long negativeTtl) {
+    this.negativeTtl = negativeTtl;
+  }
+
+  /**
+   * Get the cache, which keeps the resolved paths of the template names
+   *
+   * @return the pathLookup
+   */
+  public ExpiringLruCache<String, Optional<String>> getPathLookup() {
+    return pathLookup;
+  }
+
 }
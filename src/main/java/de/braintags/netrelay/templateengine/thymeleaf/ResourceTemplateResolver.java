@@ -14,26 +14,66 @@ package de.braintags.netrelay.templateengine.thymeleaf;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.thymeleaf.IEngineConfiguration;
+import org.thymeleaf.cache.ICacheEntryValidity;
+import org.thymeleaf.cache.NonCacheableCacheEntryValidity;
 import org.thymeleaf.templateresolver.StringTemplateResolver;
 import org.thymeleaf.templateresource.ITemplateResource;
 import org.thymeleaf.templateresource.StringTemplateResource;
 
+import de.braintags.netrelay.cache.ExpiringLruCache;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.file.FileSystemException;
 import io.vertx.ext.web.impl.Utils;
 
 /**
- * Regular template resolver, which is loading the given template from the vertx filesystem
+ * Regular template resolver, which is loading the given template from the vertx filesystem.
+ * The source of each template is cached by its resolved path inside an {@link ExpiringLruCache}, which is bounded by the
+ * size of the sources, so that the least recently used sources are evicted. The sources of a template and of the fragments it used
+ * during its last rendering are loaded asynchronously by {@link #prefetch(String, Collection, Handler)} before the
+ * template is processed. The prefetch checks the modification time of a cached file at most once within the check
+ * interval; if the file was changed, the source is read again and the template cache of Thymeleaf is informed about
+ * the change, so that edited templates are picked up even when caching is enabled. The processing itself only reads
+ * the cache: if a source is missing on an event loop thread, a {@link SourceNotLoadedException} is thrown, so that the
+ * caller can prefetch it and process the template again. On other threads a missing source is read blocking.
  *
  *
  * @author Michael Remme
  *
  */
 public class ResourceTemplateResolver extends StringTemplateResolver {
-  protected final Vertx vertx;
-  private Path          templatePath;
+  /**
+   * The default interval in milliseconds, in which the modification time of a cached template is checked
+   */
+  public static final long DEFAULT_CHECK_INTERVAL = 2000;
+  /**
+   * The default maximum size in bytes of all cached template sources
+   */
+  public static final long DEFAULT_SOURCE_CACHE_SIZE = 20 * 1024 * 1024;
+
+  protected final Vertx                     vertx;
+  private Path                              templatePath;
+  private volatile ExpiringLruCache<String, TemplateSource> sourceCache = createSourceCache(
+      DEFAULT_SOURCE_CACHE_SIZE);
+  private final AtomicLong                  cacheHits     = new AtomicLong();
+  private final AtomicLong                  cacheMisses   = new AtomicLong();
+  private long                              checkInterval = DEFAULT_CHECK_INTERVAL;
+  private final ThreadLocal<Set<String>>    resolvedPaths = new ThreadLocal<>();
 
   public ResourceTemplateResolver(Vertx vertx, String templateDir) {
     super();
@@ -48,13 +88,322 @@ public class ResourceTemplateResolver extends StringTemplateResolver {
   @Override
   protected ITemplateResource computeTemplateResource(IEngineConfiguration configuration, String ownerTemplate,
       String template, Map<String, Object> templateResolutionAttributes) {
-    String str;
+    String path = resolvePath(ownerTemplate, template);
+    Set<String> recorded = resolvedPaths.get();
+    if (recorded != null) {
+      recorded.add(path);
+    }
+    return new StringTemplateResource(getSource(path).content);
+  }
+
+  /**
+   * If the resolver is cacheable, the parsed template stays valid until the modification time of the underlying file
+   * changed
+   */
+  @Override
+  protected ICacheEntryValidity computeValidity(IEngineConfiguration configuration, String ownerTemplate,
+      String template, Map<String, Object> templateResolutionAttributes) {
+    if (!isCacheable()) {
+      return NonCacheableCacheEntryValidity.INSTANCE;
+    }
+    String path = resolvePath(ownerTemplate, template);
+    TemplateSource source = sourceCache.get(path);
+    return new SourceValidity(path, source == null ? -1 : source.lastModified);
+  }
+
+  /**
+   * Resolves the path of the file, which contains the given template
+   *
+   * @param ownerTemplate
+   *          the template, which is containing the template, or null
+   * @param template
+   *          the name of the template
+   * @return the path of the file to be read
+   */
+  protected String resolvePath(String ownerTemplate, String template) {
     if (ownerTemplate != null && templatePath != null) {
-      str = Utils.readFileToString(vertx, templatePath.resolve(template).toString());
-    } else {
-      str = Utils.readFileToString(vertx, template);
+      return templatePath.resolve(template).toString();
+    }
+    return template;
+  }
+
+  /**
+   * Resolves the path of the file, which contains the given template, without blocking the current thread
+   *
+   * @param template
+   *          the name of the template
+   * @param handler
+   *          the handler to receive the path
+   */
+  protected void resolvePath(String template, Handler<AsyncResult<String>> handler) {
+    handler.handle(Future.succeededFuture(resolvePath(null, template)));
+  }
+
+  /**
+   * Loads the sources of the given template and of the given fragment paths asynchronously into the cache, so that
+   * the following processing of the template doesn't need blocking file access. If all sources are cached and don't
+   * need to be checked for modifications, the handler is called directly
+   *
+   * @param template
+   *          the name of the template to be rendered
+   * @param dependencies
+   *          the resolved paths of the fragments, which were used by the template before, or null
+   * @param handler
+   *          the handler to be informed, when the sources are loaded
+   */
+  public void prefetch(String template, Collection<String> dependencies, Handler<AsyncResult<Void>> handler) {
+    resolvePath(template, pathResult -> {
+      if (pathResult.failed()) {
+        handler.handle(Future.failedFuture(pathResult.cause()));
+        return;
+      }
+      List<Future> futures = new ArrayList<>();
+      addPrefetch(pathResult.result(), futures);
+      if (dependencies != null) {
+        dependencies.forEach(path -> addPrefetch(path, futures));
+      }
+      if (futures.isEmpty()) {
+        handler.handle(Future.succeededFuture());
+      } else {
+        CompositeFuture.all(futures).setHandler(
+            res -> handler.handle(res.failed() ? Future.failedFuture(res.cause()) : Future.succeededFuture()));
+      }
+    });
+  }
+
+  private void addPrefetch(String path, List<Future> futures) {
+    TemplateSource source = sourceCache.get(path);
+    if (source == null || System.currentTimeMillis() - source.lastChecked >= checkInterval) {
+      Future<Void> f = Future.future();
+      loadSource(path, source, f.completer());
+      futures.add(f);
+    }
+  }
+
+  private void loadSource(String path, TemplateSource cached, Handler<AsyncResult<Void>> handler) {
+    // the modification time is read first, so that a change during the read is detected by the next check
+    vertx.fileSystem().props(path, propsResult -> {
+      if (propsResult.failed()) {
+        handler.handle(Future.failedFuture(propsResult.cause()));
+        return;
+      }
+      long lastModified = propsResult.result().lastModifiedTime();
+      if (cached != null && cached.lastModified == lastModified) {
+        cached.lastChecked = System.currentTimeMillis();
+        handler.handle(Future.succeededFuture());
+        return;
+      }
+      vertx.fileSystem().readFile(path, readResult -> {
+        if (readResult.failed()) {
+          handler.handle(Future.failedFuture(readResult.cause()));
+        } else {
+          sourceCache.put(path, new TemplateSource(readResult.result().toString(), lastModified,
+              System.currentTimeMillis(), true));
+          handler.handle(Future.succeededFuture());
+        }
+      });
+    });
+  }
+
+  /**
+   * Starts to record the paths of all templates and fragments, which are resolved by the current thread
+   */
+  void startRecording() {
+    resolvedPaths.set(new HashSet<>());
+  }
+
+  /**
+   * Stops the recording, which was started by {@link #startRecording()}
+   *
+   * @return the paths, which were resolved since the recording was started
+   */
+  Set<String> stopRecording() {
+    Set<String> paths = resolvedPaths.get();
+    resolvedPaths.remove();
+    return paths;
+  }
+
+  /**
+   * Get the source of the template with the given path from the cache. A source, which was loaded by a prefetch, is
+   * counted as cache miss on its first use, so that each resolution is counted once. If the source isn't cached, it is
+   * read from the file system, unless the current thread is an event loop
+   *
+   * @param path
+   *          the resolved path of the template
+   * @return the source of the template
+   * @throws SourceNotLoadedException
+   *           if the source isn't cached and the current thread is an event loop
+   */
+  protected TemplateSource getSource(String path) {
+    TemplateSource source = sourceCache.get(path);
+    if (source != null) {
+      if (source.unused.compareAndSet(true, false)) {
+        cacheMisses.incrementAndGet();
+      } else {
+        cacheHits.incrementAndGet();
+      }
+      return source;
+    }
+    if (Context.isOnEventLoopThread()) {
+      throw new SourceNotLoadedException(path);
+    }
+    cacheMisses.incrementAndGet();
+    // the modification time is read first, so that a change during the read is detected by the next check
+    long lastModified = lastModified(path);
+    source = new TemplateSource(Utils.readFileToString(vertx, path), lastModified, System.currentTimeMillis(), false);
+    sourceCache.put(path, source);
+    return source;
+  }
+
+  private long lastModified(String path) {
+    try {
+      return vertx.fileSystem().propsBlocking(path).lastModifiedTime();
+    } catch (FileSystemException e) {
+      return -1;
     }
+  }
 
-    return new StringTemplateResource(str);
+  /**
+   * Removes all cached template sources
+   */
+  public void clearSourceCache() {
+    sourceCache.clear();
+  }
+
+  /**
+   * Set the maximum size of all cached template sources in bytes. The cached sources are dropped by this call. Default
+   * is {@value #DEFAULT_SOURCE_CACHE_SIZE}
+   *
+   * @param maxSize
+   *          the maximum size of the source cache
+   */
+  public void setSourceCacheSize(long maxSize) {
+    this.sourceCache = createSourceCache(maxSize);
+  }
+
+  private static ExpiringLruCache<String, TemplateSource> createSourceCache(long maxSize) {
+    // the cached Strings are held in memory with two bytes per char
+    return new ExpiringLruCache<>(maxSize, source -> 2L * source.content.length());
+  }
+
+  /**
+   * Get the number of template resolutions, which were served from the source cache
+   *
+   * @return the cacheHits
+   */
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /**
+   * Get the number of template resolutions, where the source had to be read from the file system
+   *
+   * @return the cacheMisses
+   */
+  public long getCacheMisses() {
+    return cacheMisses.get();
+  }
+
+  /**
+   * Get the interval in milliseconds, in which the modification time of a cached template is checked
+   *
+   * @return the checkInterval
+   */
+  public long getCheckInterval() {
+    return checkInterval;
+  }
+
+  /**
+   * Set the interval in milliseconds, in which the modification time of a cached template is checked. Default is
+   * {@value #DEFAULT_CHECK_INTERVAL}
+   *
+   * @param checkInterval
+   *          the checkInterval to set
+   */
+  public void setCheckInterval(long checkInterval) {
+    this.checkInterval = checkInterval;
+  }
+
+  /**
+   * The cached source of a template together with the modification time of the file it was read from
+   */
+  protected static class TemplateSource {
+    final String        content;
+    final long          lastModified;
+    volatile long       lastChecked;
+    final AtomicBoolean unused;
+
+    TemplateSource(String content, long lastModified, long lastChecked, boolean prefetched) {
+      this.content = content;
+      this.lastModified = lastModified;
+      this.lastChecked = lastChecked;
+      this.unused = new AtomicBoolean(prefetched);
+    }
+  }
+
+  /**
+   * Thrown on an event loop, if the source of a template wasn't loaded by a prefetch before the template was processed
+   */
+  public static class SourceNotLoadedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final String      path;
+
+    SourceNotLoadedException(String path) {
+      super("the source of the template was not prefetched: " + path);
+      this.path = path;
+    }
+
+    /**
+     * Get the resolved path of the missing template
+     *
+     * @return the path
+     */
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * Searches the given exception and its causes for a SourceNotLoadedException
+     *
+     * @param e
+     *          the exception to be examined
+     * @return the found exception or null
+     */
+    public static SourceNotLoadedException find(Throwable e) {
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof SourceNotLoadedException) {
+          return (SourceNotLoadedException) t;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Keeps a parsed template inside the cache of Thymeleaf, as long as the source of the template was not modified
+   */
+  private class SourceValidity implements ICacheEntryValidity {
+    private final String path;
+    private final long   lastModified;
+
+    SourceValidity(String path, long lastModified) {
+      this.path = path;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean isCacheable() {
+      return true;
+    }
+
+    /**
+     * The modification time is checked by the prefetch, which replaces a modified source inside the cache, so the check
+     * doesn't access the file system
+     */
+    @Override
+    public boolean isCacheStillValid() {
+      TemplateSource source = sourceCache.get(path);
+      return source != null && source.lastModified == lastModified;
+    }
   }
-}
\ No newline at end of file
+}
@@ -12,23 +12,31 @@
  */
 package de.braintags.netrelay.templateengine.thymeleaf;
 
-import java.io.IOException;
-import java.io.Writer;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.IContext;
 import org.thymeleaf.templatemode.TemplateMode;
 
+import de.braintags.netrelay.cache.ExpiringLruCache;
+import de.braintags.netrelay.templateengine.thymeleaf.ResourceTemplateResolver.SourceNotLoadedException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Closeable;
+import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.ext.web.LanguageHeader;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.templ.ThymeleafTemplateEngine;
 
@@ -41,8 +49,60 @@ import io.vertx.ext.web.templ.ThymeleafTemplateEngine;
  */
 public class ThymeleafTemplateEngineImplBt implements ThymeleafTemplateEngine {
 
+  /**
+   * The default size of the chunks, which are sent by {@link #renderChunked(RoutingContext, String, String, String,
+   * Handler)}
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+  /**
+   * The name of the worker pool, which is used for rendering, if a pool size was set by
+   * {@link #setWorkerPoolSize(int)}
+   */
+  public static final String WORKER_POOL_NAME = "netrelay-template-renderer";
+  /**
+   * The name of the worker pool, which is used by {@link #renderChunked(RoutingContext, String, String, String,
+   * Handler)}. The threads of this pool wait for slow clients, so they are separated from other workers
+   */
+  public static final String STREAMING_POOL_NAME = "netrelay-template-streamer";
+  /**
+   * The default number of threads, which render templates into a response by
+   * {@link #renderChunked(RoutingContext, String, String, String, Handler)}
+   */
+  public static final int DEFAULT_STREAMING_POOL_SIZE = 10;
+  /**
+   * The default maximum size of all fragments in bytes, which are cached by the {@link FragmentCacheDialect}
+   */
+  public static final long DEFAULT_FRAGMENT_CACHE_SIZE = 10 * 1024 * 1024;
+  /**
+   * The address of the event bus to invalidate the fragment cache. The message is the key of the fragment to be
+   * removed; a key ending with "*" removes all fragments starting with the key, an empty message clears the cache
+   */
+  public static final String FRAGMENT_CACHE_INVALIDATE_ADDRESS = "netrelay.templates.fragmentcache.invalidate";
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+  /**
+   * The maximum number of templates, which are prefetched during one rendering on an event loop, because they were not
+   * known from a previous rendering
+   */
+  private static final int MAX_PREFETCH_ATTEMPTS = 10;
+
   private final TemplateEngine templateEngine = new TemplateEngine();
   private final ResourceTemplateResolver templateResolver;
+  private final Vertx vertx;
+  /**
+   * The size of the last rendering of each template, used to allocate the output buffer in one go
+   */
+  private final Map<String, Integer> sizeHints = new ConcurrentHashMap<>();
+  /**
+   * The paths of the fragments, which were resolved during the last rendering of each template
+   */
+  private final Map<String, Set<String>> dependencies = new ConcurrentHashMap<>();
+  private final AtomicLong eventLoopProcessingTime = new AtomicLong();
+  private WorkerExecutor workerExecutor;
+  private WorkerExecutor streamingExecutor;
+  private int streamingPoolSize = DEFAULT_STREAMING_POOL_SIZE;
+  private ExpiringLruCache<String, String> fragmentCache = createFragmentCache(DEFAULT_FRAGMENT_CACHE_SIZE);
+  private MessageConsumer<String> invalidateConsumer;
+  private Closeable closeHook;
 
   private final boolean cacheEnabled;
 
@@ -50,7 +110,9 @@ public class ThymeleafTemplateEngineImplBt implements ThymeleafTemplateEngine {
       final boolean cacheEnabled) {
     this.templateResolver = createResolver(vertx, multiPath, templateDirectory, cacheEnabled);
     this.cacheEnabled = cacheEnabled;
+    this.vertx = vertx;
     this.templateEngine.setTemplateResolver(templateResolver);
+    this.templateEngine.setEngineContextFactory(new WebEngineContextFactory());
   }
 
   private ResourceTemplateResolver createResolver(final Vertx vertx, final boolean multiPath,
@@ -73,89 +135,311 @@ public class ThymeleafTemplateEngineImplBt implements ThymeleafTemplateEngine {
     return this.templateEngine;
   }
 
+  /**
+   * Get the resolver, which is loading the templates of this engine
+   *
+   * @return the templateResolver
+   */
+  public ResourceTemplateResolver getTemplateResolver() {
+    return templateResolver;
+  }
+
   @Override
   public boolean isCachingEnabled() {
     return cacheEnabled;
   }
 
-  @Override
-  public void render(final RoutingContext context, final String templateDirectory, final String templateFileName,
-      final Handler<AsyncResult<Buffer>> handler) {
-    String fileName = templateDirectory + templateFileName;
-    Buffer buffer = Buffer.buffer();
+  /**
+   * Set the number of threads of a worker pool, which is used to process templates. By default, or if the size is 0,
+   * templates are processed on the calling event loop
+   *
+   * @param workerPoolSize
+   *          the number of threads to be used for rendering
+   * @return the instance itself for fluent usage
+   */
+  public ThymeleafTemplateEngineImplBt setWorkerPoolSize(final int workerPoolSize) {
+    if (workerExecutor != null) {
+      workerExecutor.close();
+      workerExecutor = null;
+    }
+    if (workerPoolSize > 0) {
+      workerExecutor = vertx.createSharedWorkerExecutor(WORKER_POOL_NAME, workerPoolSize);
+    }
+    return this;
+  }
 
-    Map<String, Object> data = new HashMap<>();
-    data.put("context", context);
-    data.putAll(context.data());
+  /**
+   * Set the number of threads, which render templates into a response by
+   * {@link #renderChunked(RoutingContext, String, String, String, Handler)}. This limits the number of concurrent
+   * streamed renderings; further requests wait for a free thread. Default is {@value #DEFAULT_STREAMING_POOL_SIZE}
+   *
+   * @param streamingPoolSize
+   *          the number of threads to be used for streamed rendering
+   * @return the instance itself for fluent usage
+   */
+  public synchronized ThymeleafTemplateEngineImplBt setStreamingPoolSize(final int streamingPoolSize) {
+    if (streamingExecutor != null) {
+      streamingExecutor.close();
+      streamingExecutor = null;
+    }
+    this.streamingPoolSize = streamingPoolSize;
+    return this;
+  }
+
+  private synchronized WorkerExecutor getStreamingExecutor() {
+    if (streamingExecutor == null) {
+      streamingExecutor = vertx.createSharedWorkerExecutor(STREAMING_POOL_NAME, streamingPoolSize);
+    }
+    return streamingExecutor;
+  }
 
-    synchronized (this) {
+  /**
+   * Get the cache, where the output of fragments is stored, which are marked by the {@link FragmentCacheDialect}
+   *
+   * @return the fragmentCache
+   */
+  public ExpiringLruCache<String, String> getFragmentCache() {
+    return fragmentCache;
+  }
 
-      final List<LanguageHeader> acceptableLocales = context.acceptableLanguages();
+  /**
+   * Set the maximum size of all cached fragments in bytes. The cache is replaced by this call, so it must be called
+   * before a {@link FragmentCacheDialect} is added by {@link #addFragmentCacheDialect(String, FragmentCacheDialect)}. Default is {@value #DEFAULT_FRAGMENT_CACHE_SIZE}
+   *
+   * @param maxSize
+   *          the maximum size of the fragment cache
+   * @return the instance itself for fluent usage
+   */
+  public ThymeleafTemplateEngineImplBt setFragmentCacheSize(final long maxSize) {
+    this.fragmentCache = createFragmentCache(maxSize);
+    return this;
+  }
 
-      LanguageHeader locale = null;
+  /**
+   * Adds the given {@link FragmentCacheDialect}, which stores its fragments into the fragment cache of this engine, and
+   * starts to listen for invalidations at {@link #FRAGMENT_CACHE_INVALIDATE_ADDRESS}. The listener is removed by
+   * {@link #close()} or when the deployment, which created the engine, is undeployed
+   *
+   * @param prefix
+   *          the prefix of the dialect or null to use the default prefix
+   * @param dialect
+   *          the dialect to be added
+   * @return the instance itself for fluent usage
+   */
+  public synchronized ThymeleafTemplateEngineImplBt addFragmentCacheDialect(final String prefix,
+      final FragmentCacheDialect dialect) {
+    dialect.setFragmentCache(fragmentCache);
+    if (prefix == null) {
+      templateEngine.addDialect(dialect);
+    } else {
+      templateEngine.addDialect(prefix, dialect);
+    }
+    if (invalidateConsumer == null) {
+      invalidateConsumer = vertx.eventBus().<String> consumer(FRAGMENT_CACHE_INVALIDATE_ADDRESS,
+          msg -> invalidateFragments(msg.body()));
+      closeHook = completion -> {
+        close();
+        completion.handle(Future.succeededFuture());
+      };
+      vertx.getOrCreateContext().addCloseHook(closeHook);
+    }
+    return this;
+  }
 
-      if (!acceptableLocales.isEmpty()) {
-        // this is the users preferred locale
-        locale = acceptableLocales.get(0);
-      }
+  /**
+   * Releases the resources of this engine: the listener for invalidations of the fragment cache is unregistered and
+   * the worker pools are closed. The engine must not be used afterwards
+   */
+  public synchronized void close() {
+    if (closeHook != null) {
+      vertx.getOrCreateContext().removeCloseHook(closeHook);
+      closeHook = null;
+    }
+    if (invalidateConsumer != null) {
+      invalidateConsumer.unregister();
+      invalidateConsumer = null;
+    }
+    if (workerExecutor != null) {
+      workerExecutor.close();
+      workerExecutor = null;
+    }
+    if (streamingExecutor != null) {
+      streamingExecutor.close();
+      streamingExecutor = null;
+    }
+  }
 
-      templateEngine.process(fileName, new WebIContext(data, locale), new Writer() {
-        @Override
-        public void write(final char[] cbuf, final int off, final int len) throws IOException {
-          buffer.appendString(new String(cbuf, off, len));
-        }
-
-        @Override
-        public void flush() throws IOException {
-          // not used
-        }
-
-        @Override
-        public void close() throws IOException {
-          // not used
-        }
-      });
-      handler.handle(Future.succeededFuture(buffer));
+  /**
+   * Removes fragments from the fragment cache
+   *
+   * @param key
+   *          the key of the fragment; a key ending with "*" removes all fragments starting with the key, null or an
+   *          empty key clears the cache
+   */
+  public void invalidateFragments(final String key) {
+    if (key == null || key.isEmpty()) {
+      fragmentCache.clear();
+    } else if (key.endsWith("*")) {
+      String prefix = key.substring(0, key.length() - 1);
+      fragmentCache.removeIf(k -> k.startsWith(prefix));
+    } else {
+      fragmentCache.remove(key);
     }
+  }
 
+  private static ExpiringLruCache<String, String> createFragmentCache(final long maxSize) {
+    // the cached Strings are held in memory with two bytes per char
+    return new ExpiringLruCache<>(maxSize, content -> 2L * content.length());
   }
 
-  private static class WebIContext implements IContext {
-    private final Map<String, Object> data;
-    private final java.util.Locale locale;
+  /**
+   * Get the total wall clock time in nanoseconds, which was spent processing templates on event loop threads, since
+   * this engine was created. This is the complete processing time of those renderings, not only the time, where a
+   * thread was waiting. With a worker pool defined, this should stay at 0
+   *
+   * @return the eventLoopProcessingTime
+   */
+  public long getEventLoopProcessingTime() {
+    return eventLoopProcessingTime.get();
+  }
 
-    private WebIContext(final Map<String, Object> data, final LanguageHeader locale) {
-      this.data = data;
-      this.locale = locale == null ? java.util.Locale.getDefault() : generate(locale);
-    }
+  /**
+   * Renders the given template. The underlying {@link TemplateEngine} of Thymeleaf is thread safe, so the rendering
+   * is not guarded by any lock and can run concurrently on all event loops. Everything which is specific to the
+   * current request - the variables and the locale - is kept inside the {@link WebIContext} of this call, which reads
+   * the variables from the data of the request without copying them, also if the template is processed on a worker.
+   * Before the template is processed, the sources of the template and of the fragments it used during its last
+   * rendering are loaded asynchronously, so that the processing itself doesn't need to wait for the file system. If a
+   * worker pool was defined, the processing is executed there. If the processing on an event loop needs a fragment,
+   * which was not prefetched, the fragment is loaded asynchronously and the template is processed again.
+   */
+  @Override
+  public void render(final RoutingContext context, final String templateDirectory, final String templateFileName,
+      final Handler<AsyncResult<Buffer>> handler) {
+    String fileName = templateDirectory + templateFileName;
+    WebIContext webContext = new WebIContext(context);
+    templateResolver.prefetch(fileName, dependencies.get(fileName), prefetched -> {
+      // if the prefetch failed, the processing reports the reason
+      if (workerExecutor == null) {
+        processOnEventLoop(fileName, webContext, 0, handler);
+      } else {
+        workerExecutor.executeBlocking(future -> future.handle(process(fileName, webContext)), false, handler);
+      }
+    });
+  }
 
-    private static java.util.Locale generate(final LanguageHeader locale) {
-      String variant;
-      String lang = locale.tag();
-      String country = locale.subtag();
-      return lang != null && country != null
-          ? new java.util.Locale(lang, country, (variant = locale.subtag(2)) == null ? "" : variant)
-          : (lang != null ? new java.util.Locale(lang) : java.util.Locale.getDefault());
+  private void processOnEventLoop(final String fileName, final IContext webContext, final int attempt,
+      final Handler<AsyncResult<Buffer>> handler) {
+    AsyncResult<Buffer> result = process(fileName, webContext);
+    SourceNotLoadedException missing = result.failed() ? SourceNotLoadedException.find(result.cause()) : null;
+    if (missing == null || attempt >= MAX_PREFETCH_ATTEMPTS) {
+      handler.handle(result);
+      return;
     }
+    templateResolver.prefetch(missing.getPath(), null, prefetched -> {
+      if (prefetched.failed()) {
+        handler.handle(Future.failedFuture(prefetched.cause()));
+      } else {
+        processOnEventLoop(fileName, webContext, attempt + 1, handler);
+      }
+    });
+  }
 
-    @Override
-    public java.util.Locale getLocale() {
-      return locale;
+  private AsyncResult<Buffer> process(final String fileName, final IContext webContext) {
+    boolean onEventLoop = Context.isOnEventLoopThread();
+    long start = System.nanoTime();
+    Utf8ByteBufWriter writer = new Utf8ByteBufWriter(Unpooled.buffer(sizeHints.getOrDefault(fileName,
+        INITIAL_BUFFER_SIZE)));
+    writer.setFragmentCache(fragmentCache);
+    templateResolver.startRecording();
+    try {
+      process(fileName, webContext, writer);
+      writer.close();
+    } catch (Exception e) {
+      return Future.failedFuture(e);
+    } finally {
+      dependencies.put(fileName, templateResolver.stopRecording());
+      if (onEventLoop) {
+        eventLoopProcessingTime.addAndGet(System.nanoTime() - start);
+      }
     }
+    ByteBuf result = writer.getTarget();
+    sizeHints.put(fileName, result.readableBytes());
+    return Future.succeededFuture(Buffer.buffer(result));
+  }
 
-    @Override
-    public boolean containsVariable(final String name) {
-      return data.containsKey(name);
+  /**
+   * Processes the template into the given writer, which receives the fragment captures of the
+   * {@link FragmentCacheDialect} during the processing
+   */
+  private void process(final String fileName, final IContext webContext, final Utf8ByteBufWriter writer) {
+    FragmentCaptureHandler.setWriter(writer);
+    try {
+      templateEngine.process(fileName, webContext, writer);
+    } finally {
+      FragmentCaptureHandler.setWriter(null);
     }
+  }
 
-    @Override
-    public Set<String> getVariableNames() {
-      return data.keySet();
-    }
+  /**
+   * Renders the given template and streams the output directly into the response of the given context, using chunked
+   * transfer encoding. The page is never held completely in memory and the first bytes reach the client while the rest
+   * of the page is still rendered. Because the writing has to wait, when the write queue of the response is full, the
+   * template is processed on a thread of a dedicated, bounded worker pool, see {@link #setStreamingPoolSize(int)}.
+   * If the rendering fails after the first chunk was sent, the response is already committed and the caller can only
+   * close the connection
+   *
+   * @param context
+   *          the current context, which contains the response to write into
+   * @param templateDirectory
+   *          the directory of the templates
+   * @param templateFileName
+   *          the name of the template to render
+   * @param contentType
+   *          the content type to be sent with the response
+   * @param handler
+   *          the handler to be informed, when the response was ended or rendering failed
+   */
+  public void renderChunked(final RoutingContext context, final String templateDirectory,
+      final String templateFileName, final String contentType, final Handler<AsyncResult<Void>> handler) {
+    String fileName = templateDirectory + templateFileName;
+    WebIContext webContext = new WebIContext(context);
+    HttpServerResponse response = context.response();
+
+    Handler<Future<Void>> blockingHandler = future -> {
+      try {
+        ChunkedResponseWriter writer = new ChunkedResponseWriter(response, contentType, DEFAULT_CHUNK_SIZE);
+        writer.setFragmentCache(fragmentCache);
+        process(fileName, webContext, writer);
+        writer.end();
+        future.complete();
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    };
+    getStreamingExecutor().executeBlocking(blockingHandler, false, handler);
+  }
 
-    @Override
-    public Object getVariable(final String name) {
-      return data.get(name);
+  /**
+   * Processes the given template with an empty context and discards the output. Used to parse templates and to warm up
+   * the engine, before the first request arrives. The sources of the used fragments are recorded like during a
+   * regular rendering
+   *
+   * @param fileName
+   *          the complete path of the template, including the template directory
+   * @return the time needed in nanoseconds
+   */
+  public long warmUp(final String fileName) {
+    long start = System.nanoTime();
+    Utf8ByteBufWriter writer = new Utf8ByteBufWriter(Unpooled.buffer(sizeHints.getOrDefault(fileName,
+        INITIAL_BUFFER_SIZE)));
+    writer.setFragmentCache(fragmentCache);
+    templateResolver.startRecording();
+    try {
+      process(fileName, new WebIContext(null, Collections.emptyMap(), Locale.getDefault()), writer);
+    } finally {
+      dependencies.put(fileName, templateResolver.stopRecording());
     }
+    return System.nanoTime() - start;
   }
 }
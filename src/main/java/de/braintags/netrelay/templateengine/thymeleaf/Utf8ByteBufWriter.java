@@ -0,0 +1,250 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import de.braintags.netrelay.cache.ExpiringLruCache;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A {@link Writer}, which encodes the written chars directly as UTF-8 into a {@link ByteBuf}. Other than a writer,
+ * which appends Strings to a Buffer, no temporary String or char array is created for the written content and every
+ * char is encoded exactly once.
+ * Surrogate pairs, which are split between two calls of write, are encoded correctly.
+ * The output between {@link #startCapture(String, long)} and {@link #endCapture()} is stored inside the fragment cache;
+ * these calls are made by the {@link FragmentCaptureHandler} for elements of the {@link FragmentCacheDialect}. The
+ * written content itself is never interpreted.
+ *
+ * @author Michael Remme
+ *
+ */
+public class Utf8ByteBufWriter extends Writer {
+  private static final byte REPLACEMENT = '?';
+
+  private ByteBuf target;
+  private char highSurrogate;
+  private ExpiringLruCache<String, String> fragmentCache;
+  private Deque<Capture> captures;
+
+  /**
+   * @param target
+   *          the buffer to write into
+   */
+  public Utf8ByteBufWriter(final ByteBuf target) {
+    this.target = target;
+  }
+
+  /**
+   * Get the buffer, where the content is written into
+   *
+   * @return the target buffer
+   */
+  public ByteBuf getTarget() {
+    return target;
+  }
+
+  /**
+   * Replaces the buffer, where the content is written into
+   *
+   * @param target
+   *          the new target
+   */
+  protected void setTarget(final ByteBuf target) {
+    if (captures != null) {
+      for (Capture capture : captures) {
+        capture.spill(this.target, target.writerIndex());
+      }
+    }
+    this.target = target;
+  }
+
+  /**
+   * Set the cache, where captured fragments are stored. If no cache is set, captured fragments are dropped
+   *
+   * @param fragmentCache
+   *          the cache for rendered fragments
+   */
+  public void setFragmentCache(final ExpiringLruCache<String, String> fragmentCache) {
+    this.fragmentCache = fragmentCache;
+  }
+
+  /**
+   * Starts to capture the following output as fragment. Captures can be nested
+   *
+   * @param key
+   *          the key, under which the fragment is stored
+   * @param ttl
+   *          the time to live of the fragment in milliseconds
+   */
+  public void startCapture(final String key, final long ttl) {
+    if (captures == null) {
+      captures = new ArrayDeque<>();
+    }
+    captures.push(new Capture(key, ttl, target.writerIndex()));
+  }
+
+  /**
+   * Ends the capture, which was started last, and stores the captured output inside the fragment cache. Without a
+   * started capture, the call is ignored
+   */
+  public void endCapture() {
+    if (captures != null && !captures.isEmpty()) {
+      Capture capture = captures.pop();
+      if (fragmentCache != null) {
+        capture.store(fragmentCache, target);
+      }
+    }
+  }
+
+  @Override
+  public void write(final int c) throws IOException {
+    encode((char) c);
+    afterWrite();
+  }
+
+  @Override
+  public void write(final char[] cbuf, final int off, final int len) throws IOException {
+    target.ensureWritable(len);
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      encode(cbuf[i]);
+    }
+    afterWrite();
+  }
+
+  @Override
+  public void write(final String str, final int off, final int len) throws IOException {
+    target.ensureWritable(len);
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      encode(str.charAt(i));
+    }
+    afterWrite();
+  }
+
+  @Override
+  public Writer append(final CharSequence csq) throws IOException {
+    return append(csq, 0, csq == null ? 4 : csq.length());
+  }
+
+  @Override
+  public Writer append(final CharSequence csq, final int start, final int end) throws IOException {
+    CharSequence seq = csq == null ? "null" : csq;
+    target.ensureWritable(end - start);
+    for (int i = start; i < end; i++) {
+      encode(seq.charAt(i));
+    }
+    afterWrite();
+    return this;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // nothing buffered
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (highSurrogate != 0) {
+      // a dangling high surrogate can't be encoded
+      highSurrogate = 0;
+      target.writeByte(REPLACEMENT);
+    }
+  }
+
+  /**
+   * Called after each write operation. Subclasses can use it to hand over the written content
+   *
+   * @throws IOException
+   */
+  protected void afterWrite() throws IOException {
+    // nothing to do by default
+  }
+
+  private void encode(final char c) {
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        target.writeByte(0xf0 | (codePoint >> 18));
+        target.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+        target.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+        target.writeByte(0x80 | (codePoint & 0x3f));
+        return;
+      }
+      target.writeByte(REPLACEMENT);
+    }
+    if (c < 0x80) {
+      target.writeByte(c);
+    } else if (c < 0x800) {
+      target.writeByte(0xc0 | (c >> 6));
+      target.writeByte(0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      target.writeByte(REPLACEMENT);
+    } else {
+      target.writeByte(0xe0 | (c >> 12));
+      target.writeByte(0x80 | ((c >> 6) & 0x3f));
+      target.writeByte(0x80 | (c & 0x3f));
+    }
+  }
+
+  /**
+   * A fragment, whose output is currently captured
+   */
+  private static class Capture {
+    private final String key;
+    private final long ttl;
+    private int start;
+    private ByteArrayOutputStream spilled;
+
+    Capture(final String key, final long ttl, final int start) {
+      this.key = key;
+      this.ttl = ttl;
+      this.start = start;
+    }
+
+    /**
+     * Keeps the captured bytes of a buffer, which is replaced
+     */
+    void spill(final ByteBuf buffer, final int newStart) {
+      if (spilled == null) {
+        spilled = new ByteArrayOutputStream();
+      }
+      int length = buffer.writerIndex() - start;
+      if (length > 0) {
+        byte[] bytes = new byte[length];
+        buffer.getBytes(start, bytes);
+        spilled.write(bytes, 0, length);
+      }
+      start = newStart;
+    }
+
+    void store(final ExpiringLruCache<String, String> cache, final ByteBuf buffer) {
+      String content = buffer.toString(start, buffer.writerIndex() - start, StandardCharsets.UTF_8);
+      if (spilled != null) {
+        content = new String(spilled.toByteArray(), StandardCharsets.UTF_8) + content;
+      }
+      cache.put(key, content, ttl);
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.thymeleaf.IEngineConfiguration;
+import org.thymeleaf.context.EngineContext;
+import org.thymeleaf.context.IContext;
+import org.thymeleaf.context.IEngineContext;
+import org.thymeleaf.context.IEngineContextFactory;
+import org.thymeleaf.context.StandardEngineContextFactory;
+import org.thymeleaf.engine.TemplateData;
+
+/**
+ * Creates the engine contexts of Thymeleaf. The {@link StandardEngineContextFactory} copies all variables of a context
+ * into the new engine context; for a {@link WebIContext} an engine context is created, which starts without variables
+ * and reads the variables of the WebIContext, which are not set locally by the template. So the rendering doesn't
+ * allocate anything in proportion to the data of the request. Other contexts are handled by the standard factory
+ *
+ * @author Michael Remme
+ *
+ */
+class WebEngineContextFactory implements IEngineContextFactory {
+  private final IEngineContextFactory standardFactory = new StandardEngineContextFactory();
+
+  @Override
+  public IEngineContext createEngineContext(final IEngineConfiguration configuration, final TemplateData templateData,
+      final Map<String, Object> templateResolutionAttributes, final IContext context) {
+    if (context instanceof WebIContext) {
+      return new ReadThroughEngineContext(configuration, templateData, templateResolutionAttributes,
+          (WebIContext) context);
+    }
+    return standardFactory.createEngineContext(configuration, templateData, templateResolutionAttributes, context);
+  }
+
+  /**
+   * An engine context, which keeps the variables set during the processing and reads all other variables from the
+   * underlying {@link WebIContext}
+   */
+  static class ReadThroughEngineContext extends EngineContext {
+    private final WebIContext webContext;
+
+    ReadThroughEngineContext(final IEngineConfiguration configuration, final TemplateData templateData,
+        final Map<String, Object> templateResolutionAttributes, final WebIContext webContext) {
+      super(configuration, templateData, templateResolutionAttributes, webContext.getLocale(),
+          Collections.emptyMap());
+      this.webContext = webContext;
+    }
+
+    @Override
+    public boolean containsVariable(final String name) {
+      return super.containsVariable(name) || webContext.containsVariable(name);
+    }
+
+    @Override
+    public Object getVariable(final String name) {
+      if (super.containsVariable(name)) {
+        return super.getVariable(name);
+      }
+      return webContext.getVariable(name);
+    }
+
+    /**
+     * The names are only requested by expressions like #vars, so they are merged on demand
+     */
+    @Override
+    public Set<String> getVariableNames() {
+      Set<String> names = new HashSet<>(webContext.getVariableNames());
+      names.addAll(super.getVariableNames());
+      return names;
+    }
+  }
+
+}
@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.thymeleaf.context.IContext;
+
+import io.vertx.ext.web.LanguageHeader;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * The {@link IContext} for rendering a template inside a request. The variables are read from the data of the
+ * {@link RoutingContext}; additionally the RoutingContext itself is available as variable {@value #CONTEXT_VARIABLE},
+ * if the data doesn't contain an entry with this name. The {@link WebEngineContextFactory} creates an engine context,
+ * which reads through to this context, so the variables are never copied. The request waits for the end of the
+ * rendering and nothing changes its data meanwhile, so a rendering on a worker reads the data directly as well; the
+ * hand over to the worker makes the data visible to the worker thread.
+ *
+ * @author Michael Remme
+ *
+ */
+class WebIContext implements IContext {
+  /**
+   * The name of the variable, by which the RoutingContext is available inside templates
+   */
+  static final String CONTEXT_VARIABLE = "context";
+
+  private final RoutingContext context;
+  private final Map<String, Object> data;
+  private final Locale locale;
+  private Set<String> variableNames;
+
+  /**
+   * Creates the context for the given request
+   *
+   * @param context
+   *          the current request
+   */
+  WebIContext(final RoutingContext context) {
+    this(context, context.data(), resolveLocale(context.acceptableLanguages()));
+  }
+
+  /**
+   * @param context
+   *          the RoutingContext, which is added as variable {@value #CONTEXT_VARIABLE}, or null
+   * @param data
+   *          the variables
+   * @param locale
+   *          the locale to be used for rendering
+   */
+  WebIContext(final RoutingContext context, final Map<String, Object> data, final Locale locale) {
+    this.context = context;
+    this.data = data;
+    this.locale = locale;
+  }
+
+  /**
+   * Resolves the locale of a request from the accepted languages. The first entry is the preferred locale of the
+   * user, if none is sent, the default locale is used
+   *
+   * @param acceptableLocales
+   *          the accepted languages of the request, sorted by preference
+   * @return the locale to be used for rendering
+   */
+  static Locale resolveLocale(final List<LanguageHeader> acceptableLocales) {
+    return acceptableLocales == null || acceptableLocales.isEmpty() ? Locale.getDefault()
+        : generate(acceptableLocales.get(0));
+  }
+
+  private static Locale generate(final LanguageHeader locale) {
+    String variant;
+    String lang = locale.tag();
+    String country = locale.subtag();
+    return lang != null && country != null
+        ? new Locale(lang, country, (variant = locale.subtag(2)) == null ? "" : variant)
+        : (lang != null ? new Locale(lang) : Locale.getDefault());
+  }
+
+  @Override
+  public Locale getLocale() {
+    return locale;
+  }
+
+  @Override
+  public boolean containsVariable(final String name) {
+    return data.containsKey(name) || isContextVariable(name);
+  }
+
+  @Override
+  public Set<String> getVariableNames() {
+    if (variableNames == null) {
+      variableNames = new VariableNames();
+    }
+    return variableNames;
+  }
+
+  @Override
+  public Object getVariable(final String name) {
+    Object value = data.get(name);
+    if (value == null && isContextVariable(name)) {
+      return context;
+    }
+    return value;
+  }
+
+  /**
+   * The RoutingContext is only added as variable, if the data don't contain the name already
+   */
+  private boolean isContextVariable(final String name) {
+    return context != null && CONTEXT_VARIABLE.equals(name) && !data.containsKey(CONTEXT_VARIABLE);
+  }
+
+  /**
+   * A view of the names of the data, which adds the name {@value #CONTEXT_VARIABLE}
+   */
+  private class VariableNames extends AbstractSet<String> {
+
+    @Override
+    public boolean contains(final Object name) {
+      return name instanceof String && containsVariable((String) name);
+    }
+
+    @Override
+    public int size() {
+      return data.size() + (isContextVariable(CONTEXT_VARIABLE) ? 1 : 0);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      Iterator<String> keys = data.keySet().iterator();
+      boolean addContext = isContextVariable(CONTEXT_VARIABLE);
+      return new Iterator<String>() {
+        private boolean contextReturned = !addContext;
+
+        @Override
+        public boolean hasNext() {
+          return keys.hasNext() || !contextReturned;
+        }
+
+        @Override
+        public String next() {
+          if (keys.hasNext()) {
+            return keys.next();
+          }
+          if (!contextReturned) {
+            contextReturned = true;
+            return CONTEXT_VARIABLE;
+          }
+          throw new NoSuchElementException();
+        }
+      };
+    }
+  }
+
+}
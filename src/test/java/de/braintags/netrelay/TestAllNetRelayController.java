@@ -16,8 +16,15 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import de.braintags.netrelay.cache.TExpiringLruCache;
+import de.braintags.netrelay.controller.querypool.TContextFieldValueResolver;
 import de.braintags.netrelay.controller.querypool.TQueryPoolController;
 import de.braintags.netrelay.controller.querypool.template.TQueryTemplate;
+import de.braintags.netrelay.templateengine.thymeleaf.TFragmentCache;
+import de.braintags.netrelay.templateengine.thymeleaf.TResourceTemplateResolver;
+import de.braintags.netrelay.templateengine.thymeleaf.TTemplateEngineConcurrency;
+import de.braintags.netrelay.templateengine.thymeleaf.TUtf8ByteBufWriter;
+import de.braintags.netrelay.templateengine.thymeleaf.TWebIContext;
 import de.braintags.netrelay.unit.TAuthenticationDatastore;
 import de.braintags.netrelay.unit.TAuthenticationDatastoreEncrypted;
 import de.braintags.netrelay.unit.TAuthenticationMongo;
@@ -46,7 +53,10 @@ import de.braintags.netrelay.unit.persistence.TPersistenceSuite;
     TPersistenceSuite.class, TAuthenticationMongo.class, TAuthenticationDatastore.class,
     TAuthenticationDatastoreEncrypted.class, TAuthorization.class, TRegistration.class, TPasswordLost.class,
     TDataTablesController.class, TMailController.class, TVirtualHostController.class, TProtocolController.class,
-    FinderManagerTestSuite.class, TQueryPoolController.class, TQueryTemplate.class })
+    FinderManagerTestSuite.class, TQueryPoolController.class, TQueryTemplate.class,
+    TTemplateEngineConcurrency.class, TUtf8ByteBufWriter.class,
+    TResourceTemplateResolver.class, TExpiringLruCache.class, TFragmentCache.class,
+    TWebIContext.class, TContextFieldValueResolver.class })
 
 public class TestAllNetRelayController {
   // -DBlockedThreadCheckInterval=10000000 -DWarningExceptionTime=10000000 -DtestTimeout=5
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ExpiringLruCache}
+ *
+ * @author Michael Remme
+ *
+ */
+public class TExpiringLruCache {
+  private static final io.vertx.core.logging.Logger LOGGER = io.vertx.core.logging.LoggerFactory
+      .getLogger(TExpiringLruCache.class);
+
+  private static final int KEYS = 20000;
+  private static final int OPERATIONS_PER_THREAD = 500000;
+
+  @Test
+  public void testLruEviction() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(2);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    // access a, so that b is the least recently used one
+    Assert.assertEquals("1", cache.get("a"));
+    cache.put("c", "3");
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals("1", cache.get("a"));
+    Assert.assertEquals("3", cache.get("c"));
+    Assert.assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  public void testWeight() {
+    ExpiringLruCache<String, byte[]> cache = new ExpiringLruCache<>(100, value -> value.length);
+    cache.put("a", new byte[60]);
+    cache.put("b", new byte[30]);
+    Assert.assertEquals(90, cache.getWeight());
+    cache.put("c", new byte[30]);
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals(60, cache.getWeight());
+    // a value, which is bigger than the cache, is not stored
+    cache.put("d", new byte[101]);
+    Assert.assertNull(cache.get("d"));
+    Assert.assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testExpiration() throws Exception {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10);
+    cache.put("a", "1", 50);
+    cache.put("b", "2");
+    Assert.assertEquals("1", cache.get("a"));
+    Thread.sleep(100);
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals("2", cache.get("b"));
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testRemoveIf() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10);
+    cache.put("nav:de", "1");
+    cache.put("nav:en", "2");
+    cache.put("footer", "3");
+    Assert.assertEquals(2, cache.removeIf(key -> key.startsWith("nav:")));
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals(1, cache.getWeight());
+  }
+
+  /**
+   * Reads and writes the cache from 1 and 4 threads at the same time. The weight must stay consistent with the stored
+   * entries and the cache must stay bounded; if the machine has enough cores, the throughput with 4 threads must be
+   * higher than with a single one
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testContention() throws Exception {
+    ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<>(KEYS / 2);
+    // warm up the JIT, so that the first measurement is not penalized
+    measureThroughput(cache, 1);
+    double single = measureThroughput(cache, 1);
+    double quad = measureThroughput(cache, 4);
+    LOGGER.info(String.format("cache throughput - 1 thread: %.0f/s, 4 threads: %.0f/s", single, quad));
+    Assert.assertEquals(cache.size(), cache.getWeight());
+    Assert.assertTrue("cache exceeds its maximum: " + cache.size(), cache.size() <= KEYS / 2 + 4);
+    if (Runtime.getRuntime().availableProcessors() >= 4) {
+      Assert.assertTrue("throughput does not scale with the number of threads: " + single + " / " + quad,
+          quad > single);
+    }
+  }
+
+  /**
+   * Executes {@value #OPERATIONS_PER_THREAD} operations with random keys on each of the given number of threads, where
+   * every tenth operation is a put
+   *
+   * @return the number of operations per second
+   */
+  private double measureThroughput(final ExpiringLruCache<Integer, String> cache, final int threads)
+      throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>();
+    AtomicLong failures = new AtomicLong();
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            Integer key = random.nextInt(KEYS);
+            if (i % 10 == 0) {
+              cache.put(key, key.toString());
+            } else {
+              String value = cache.get(key);
+              if (value != null && !value.equals(key.toString())) {
+                failures.incrementAndGet();
+              }
+            }
+          }
+        } catch (InterruptedException e) {
+          failures.incrementAndGet();
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long duration = System.nanoTime() - begin;
+    Assert.assertEquals(0, failures.get());
+    return (double) threads * OPERATIONS_PER_THREAD / duration * 1_000_000_000d;
+  }
+
+}
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.controller.querypool;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.braintags.netrelay.util.MockRoutingContext;
+import de.braintags.vertx.jomnigate.dataaccess.query.exception.VariableSyntaxException;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Unit test for {@link ContextFieldValueResolver} and {@link VariableReference}<br>
+ * <br>
+ * Copyright: Copyright (c) 18.10.2017 <br>
+ * Company: Braintags GmbH <br>
+ *
+ * @author sschmitt
+ */
+public class TContextFieldValueResolver {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TContextFieldValueResolver.class);
+
+  private static final String VARIABLE = "context:key";
+  private static final int RESOLUTIONS = 1_000_000;
+
+  private Vertx vertx;
+
+  @Before
+  public void setUp() {
+    vertx = Vertx.vertx();
+  }
+
+  @After
+  public void tearDown() {
+    vertx.close();
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    MockRoutingContext context = new MockRoutingContext(vertx, new URI("http://localhost/test.html"));
+    context.put("key", "value");
+    ContextFieldValueResolver resolver = new ContextFieldValueResolver(context, null);
+    Assert.assertEquals("value", resolver.resolve(VARIABLE));
+    Assert.assertNull(resolver.resolve("context:unknown"));
+  }
+
+  @Test(expected = VariableSyntaxException.class)
+  public void testUnknownLocation() throws Exception {
+    VariableReference.compile("unknown:key");
+  }
+
+  @Test(expected = VariableSyntaxException.class)
+  public void testMapperWithoutField() throws Exception {
+    VariableReference.compile("mapper:person");
+  }
+
+  /**
+   * Compares the resolution of a variable, which is parsed on every call, with a precompiled variable
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testPrecompiledPerformance() throws Exception {
+    MockRoutingContext context = new MockRoutingContext(vertx, new URI("http://localhost/test.html"));
+    context.put("key", "value");
+    Map<String, VariableReference> references = Collections.singletonMap(VARIABLE,
+        VariableReference.compile(VARIABLE));
+    ContextFieldValueResolver parsing = new ContextFieldValueResolver(context, null);
+    ContextFieldValueResolver compiled = new ContextFieldValueResolver(context, null, references);
+
+    // warm up both variants
+    measure(parsing, RESOLUTIONS / 10);
+    measure(compiled, RESOLUTIONS / 10);
+
+    long parsingTime = measure(parsing, RESOLUTIONS);
+    long compiledTime = measure(compiled, RESOLUTIONS);
+    LOGGER.info(String.format("%d resolutions - parsed on every call: %d ms, precompiled: %d ms", RESOLUTIONS,
+        parsingTime / 1_000_000, compiledTime / 1_000_000));
+  }
+
+  private long measure(ContextFieldValueResolver resolver, int count) throws VariableSyntaxException {
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      Assert.assertEquals("value", resolver.resolve(VARIABLE));
+    }
+    return System.nanoTime() - start;
+  }
+
+}
@@ -12,18 +12,43 @@
  */
 package de.braintags.netrelay.controller.querypool;
 
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import de.braintags.netrelay.controller.SessionController;
+import de.braintags.netrelay.controller.persistence.PersistenceController;
+import de.braintags.netrelay.controller.querypool.exceptions.InvalidSyntaxException;
 import de.braintags.netrelay.controller.querypool.mapper.Address;
 import de.braintags.netrelay.controller.querypool.mapper.Person;
+import de.braintags.netrelay.controller.querypool.template.QueryTemplate;
 import de.braintags.netrelay.init.Settings;
 import de.braintags.netrelay.routing.RouterDefinition;
 import de.braintags.netrelay.unit.NetRelayBaseConnectorTest;
+import de.braintags.netrelay.util.MockRoutingContext;
+import de.braintags.vertx.jomnigate.dataaccess.query.ISearchCondition;
+import de.braintags.vertx.jomnigate.mapping.IMapper;
 import de.braintags.vertx.jomnigate.testdatastore.DatastoreBaseTest;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.unit.Async;
@@ -48,6 +73,12 @@ public class TQueryPoolController extends NetRelayBaseConnectorTest {
    */
   private static final String TEST_RESOURCE_PATH = "src/test/resources/de/braintags/netrelay/controller/querypool/controller/";
 
+  private static final String METRICS_PATH = "/querypool/metrics";
+
+  private static final String HOSTNAME = "localhost";
+  private static final int PORT = 8080;
+  private static final int RELOAD_REQUESTS = 200;
+
   /**
    * Test a simple native query. The query should only return people under the age of 30
    *
@@ -296,6 +327,531 @@ public class TQueryPoolController extends NetRelayBaseConnectorTest {
     }, 200, "OK", null);
   }
 
+  /**
+   * Executes the same query concurrently with different values for its variable. Every response must contain only the
+   * record of its own request; the throughput is logged
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testDynamicQuery_concurrent(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    int personCount = 10;
+    int requestCount = 200;
+    List<Person> persons = new ArrayList<>();
+    for (int i = 0; i < personCount; i++) {
+      Person person = new Person();
+      person.firstname = "concurrent" + i;
+      DatastoreBaseTest.saveRecord(context, person);
+      persons.add(person);
+    }
+
+    HttpClient client = vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(20));
+    Async async = context.async(requestCount);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < requestCount; i++) {
+      Person person = persons.get(i % personCount);
+      client.getNow(PORT, HOSTNAME, "/queries/testDynamic_withRequestParameterVariable.html?param=" + person.firstname,
+          resp -> resp.bodyHandler(body -> {
+            String response = body.toString();
+            for (Person other : persons) {
+              context.assertEquals(other == person, response.contains("ID: " + other.id),
+                  "wrong result for " + person.firstname);
+            }
+            async.countDown();
+          }));
+    }
+    async.awaitSuccess(60000);
+    long duration = System.currentTimeMillis() - start;
+    logger.info(String.format("%d concurrent requests in %d ms", requestCount, duration));
+    client.close();
+  }
+
+  /**
+   * Test the JSON output of a query. The records must be written as JSON array into the response, with the fields of
+   * the json block of the template only
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testDynamicQuery_json(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    Person person = new Person();
+    person.firstname = "max";
+    person.lastname = "secretLastname";
+    DatastoreBaseTest.saveRecord(context, person);
+    Person secondPerson = new Person();
+    secondPerson.firstname = "max";
+    DatastoreBaseTest.saveRecord(context, secondPerson);
+
+    String requestPath = "/queries/testDynamic_json.html?" + QueryPoolController.FORMAT_PARAMETER_NAME + "="
+        + QueryPoolController.FORMAT_JSON;
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      String response = resp.content;
+      logger.debug(requestPath + ":\n" + response);
+      JsonArray records = new JsonArray(response);
+      context.assertEquals(2, records.size());
+      context.assertTrue(response.contains(String.valueOf(person.id)));
+      context.assertTrue(response.contains(String.valueOf(secondPerson.id)));
+      for (Object record : records) {
+        context.assertEquals(2, ((JsonObject) record).size(), "only the allowed fields must be written: " + record);
+        context.assertEquals("max", ((JsonObject) record).getString("firstname"));
+      }
+      context.assertFalse(response.contains("secretLastname"), "a field without permission was written");
+    }, 200, "OK", null);
+  }
+
+  /**
+   * A query template without json block must reject the JSON output
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testDynamicQuery_jsonNotEnabled(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    Person person = new Person();
+    person.firstname = "max";
+    DatastoreBaseTest.saveRecord(context, person);
+
+    String requestPath = "/queries/testDynamic_simpleQuery.html?" + QueryPoolController.FORMAT_PARAMETER_NAME + "="
+        + QueryPoolController.FORMAT_JSON;
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      context.assertFalse(resp.content.contains(String.valueOf(person.id)), "the record must not be written");
+    }, 403, "Forbidden", null);
+  }
+
+  /**
+   * Test the operation STREAM. The records are written as JSON array; a request of the template layer must be rejected,
+   * because it can't consume the stream
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testStream(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    Person person = new Person();
+    person.firstname = "stream";
+    DatastoreBaseTest.saveRecord(context, person);
+    Person secondPerson = new Person();
+    secondPerson.firstname = "stream";
+    DatastoreBaseTest.saveRecord(context, secondPerson);
+
+    String requestPath = "/queries/testStream.html";
+    testRequest(context, HttpMethod.GET,
+        requestPath + "?" + QueryPoolController.FORMAT_PARAMETER_NAME + "=" + QueryPoolController.FORMAT_JSON, null,
+        resp -> {
+          JsonArray records = new JsonArray(resp.content);
+          context.assertEquals(2, records.size());
+          context.assertTrue(resp.content.contains(String.valueOf(person.id)));
+          context.assertTrue(resp.content.contains(String.valueOf(secondPerson.id)));
+        }, 200, "OK", null);
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      logger.debug(requestPath + ":\n" + resp.content);
+    }, 400, "Bad Request", null);
+    String batchPath = "/queries/testDynamic_simpleQuery.html?" + QueryPoolController.BATCH_PARAMETER_NAME
+        + "=/queries/testStream";
+    testRequest(context, HttpMethod.GET, batchPath, null, resp -> {
+      context.assertFalse(resp.content.contains(String.valueOf(person.id)), "the stream must not be executed");
+    }, 200, "OK", null);
+  }
+
+  /**
+   * Test the result cache of a query. The second request must return the cached result, although the record was
+   * deleted in between. After the records of the mapper were reported as changed, the query must be executed again
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testDynamicQuery_cache(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    Person person = new Person();
+    person.firstname = "cached";
+    DatastoreBaseTest.saveRecord(context, person);
+
+    String requestPath = "/queries/testDynamic_cache.html?param=" + person.firstname;
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      context.assertTrue(resp.content.contains("ID: " + person.id));
+    }, 200, "OK", null);
+
+    DatastoreBaseTest.clearTable(context, Person.class);
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      context.assertTrue(resp.content.contains("ID: " + person.id), "The result must be taken from the cache");
+    }, 200, "OK", null);
+
+    netRelay.getVertx().eventBus().publish(PersistenceController.RECORDS_CHANGED_ADDRESS, Person.class.getName());
+    Thread.sleep(100);
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      context.assertFalse(resp.content.contains("ID: " + person.id), "The cached result must be invalidated");
+    }, 200, "OK", null);
+  }
+
+  /**
+   * Test the batch execution of queries. The query of the path and the query of the batch parameter are executed in
+   * one request and their results are stored under their own destinations
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testBatch(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    Person person = new Person();
+    person.firstname = "max";
+    DatastoreBaseTest.saveRecord(context, person);
+    Person secondPerson = new Person();
+    secondPerson.firstname = "max";
+    DatastoreBaseTest.saveRecord(context, secondPerson);
+
+    String requestPath = "/queries/testBatch_persons.html?" + QueryPoolController.BATCH_PARAMETER_NAME
+        + "=/queries/testBatch_count,/queries/doesNotExist";
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      String response = resp.content;
+      logger.debug(requestPath + ":\n" + response);
+      context.assertTrue(response.contains("Count: 2"), "the result of the batch query is missing");
+      context.assertTrue(response.contains("ID: " + person.id));
+      context.assertTrue(response.contains("ID: " + secondPerson.id));
+    }, 200, "OK", null);
+  }
+
+  /**
+   * Test the operation APPROX_COUNT. The first request executes the count; within the maximum staleness the same count
+   * is returned, although another record was saved
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testApproximateCount(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    Person person = new Person();
+    person.firstname = "max";
+    DatastoreBaseTest.saveRecord(context, person);
+
+    String requestPath = "/queries/testApproxCount.html";
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      context.assertTrue(resp.content.contains("Count: 1"), "wrong count: " + resp.content);
+    }, 200, "OK", null);
+
+    Person secondPerson = new Person();
+    secondPerson.firstname = "max";
+    DatastoreBaseTest.saveRecord(context, secondPerson);
+    testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+      context.assertTrue(resp.content.contains("Count: 1"), "the count must not be refreshed yet: " + resp.content);
+    }, 200, "OK", null);
+  }
+
+  /**
+   * Walks through all pages of a query with seek pagination, which is sorted by a date field with null values. Every
+   * record must be found exactly once and in the order of the dates, where null comes first
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testSeek(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    long now = System.currentTimeMillis();
+    Date[] birthdays = { new Date(now - 3000), null, new Date(now - 1000), null, new Date(now - 2000) };
+    Person[] persons = new Person[birthdays.length];
+    for (int i = 0; i < birthdays.length; i++) {
+      persons[i] = new Person();
+      persons[i].firstname = "seek";
+      persons[i].birthday = birthdays[i];
+      DatastoreBaseTest.saveRecord(context, persons[i]);
+    }
+    List<String> expected = Arrays.asList(String.valueOf(persons[1].id), String.valueOf(persons[3].id),
+        String.valueOf(persons[0].id), String.valueOf(persons[4].id), String.valueOf(persons[2].id));
+
+    Pattern idPattern = Pattern.compile("ID: ([^<]+)<");
+    Pattern nextPattern = Pattern.compile("Next: ([^<]+)<");
+    List<String> found = new ArrayList<>();
+    AtomicReference<String> next = new AtomicReference<>();
+    int pages = 0;
+    do {
+      String requestPath = "/queries/testSeek.html"
+          + (next.get() == null ? "" : "?" + QueryPoolController.AFTER_PARAMETER_NAME + "=" + next.get());
+      next.set(null);
+      testRequest(context, HttpMethod.GET, requestPath, null, resp -> {
+        logger.debug(requestPath + ":\n" + resp.content);
+        Matcher idMatcher = idPattern.matcher(resp.content);
+        while (idMatcher.find()) {
+          found.add(idMatcher.group(1));
+        }
+        Matcher nextMatcher = nextPattern.matcher(resp.content);
+        if (nextMatcher.find()) {
+          next.set(nextMatcher.group(1));
+        }
+      }, 200, "OK", null);
+      pages++;
+    } while (next.get() != null && pages < 10);
+    context.assertEquals(expected, found, "wrong records or order of the pages");
+    context.assertEquals(3, pages, "five records with two per page need three pages");
+  }
+
+  /**
+   * Test the values of a continuation token. Dates and null must be restored with their type; invalid values must be
+   * rejected
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testSeekTokenValues(final TestContext context) throws Exception {
+    Date date = new Date(1508320800123L);
+    context.assertEquals(date, QueryPlan.decodeValue(QueryPlan.encodeValue(date), "token"));
+    context.assertNull(QueryPlan.decodeValue(QueryPlan.encodeValue(null), "token"));
+    context.assertEquals(5L, QueryPlan.decodeValue(QueryPlan.encodeValue(5L), "token"));
+    context.assertEquals(5, QueryPlan.decodeValue(QueryPlan.encodeValue(5), "token"));
+    context.assertEquals(2.5, QueryPlan.decodeValue(QueryPlan.encodeValue(2.5), "token"));
+    context.assertEquals("a:b", QueryPlan.decodeValue(QueryPlan.encodeValue("a:b"), "token"));
+    context.assertEquals(Boolean.TRUE, QueryPlan.decodeValue(QueryPlan.encodeValue(true), "token"));
+    for (Object invalid : new Object[] { "t:yesterday", "x:1", "b:yes", "plain", 17 }) {
+      try {
+        QueryPlan.decodeValue(invalid, "token");
+        context.fail("invalid value was accepted: " + invalid);
+      } catch (InvalidSyntaxException e) {
+        // expected
+      }
+    }
+    try {
+      QueryPlan.encodeValue(new Object());
+      context.fail("unsupported type was accepted");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * The condition of a dynamic query is converted once, when the plan is created. Every query of the plan must get the
+   * same condition, whose variables are bound by the resolver of the execution
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testPlanConditionCompiledOnce(final TestContext context) throws Exception {
+    QueryTemplate queryTemplate = new ObjectMapper().readValue(new File(
+        "src/test/resources/de/braintags/netrelay/controller/querypool/querytemplate/queries/ValidDynamicQuery_ConditionFirst.json"),
+        QueryTemplate.class);
+    QueryPlan plan = new QueryPlan(netRelay.getDatastore(), Person.class, null,
+        queryTemplate.getDynamicQuery().getRootQueryPart(), Collections.emptyList(), false);
+    ISearchCondition condition = plan.createQuery().getSearchCondition();
+    context.assertNotNull(condition, "the query must have the condition of the template");
+    context.assertTrue(condition == plan.createQuery().getSearchCondition(),
+        "every query must get the condition, which was converted by the plan");
+  }
+
+  /**
+   * Compares the resolution of a mapper variable with a dotted path by the compiled {@link VariableReference} with the
+   * resolver, which was used before: it parsed the variable and looked up the mapper and the property of every level
+   * on each call. Both must return the same value; the times are logged
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testMapperVariablePerformance(final TestContext context) throws Exception {
+    String variable = "mapper:person.address.street";
+    int resolutions = 200_000;
+    Person person = new Person();
+    person.address = new Address();
+    person.address.street = "teststreet";
+    MockRoutingContext routingContext = new MockRoutingContext(vertx, new URI("http://localhost/test.html"));
+    routingContext.put("person", person);
+    ContextFieldValueResolver compiled = new ContextFieldValueResolver(routingContext, netRelay,
+        Collections.singletonMap(variable, VariableReference.compile(variable)));
+
+    // warm up both variants
+    for (int i = 0; i < resolutions / 10; i++) {
+      context.assertEquals("teststreet", resolveBaseline(routingContext, variable));
+      context.assertEquals("teststreet", compiled.resolve(variable));
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < resolutions; i++) {
+      context.assertEquals("teststreet", resolveBaseline(routingContext, variable));
+    }
+    long baselineTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < resolutions; i++) {
+      context.assertEquals("teststreet", compiled.resolve(variable));
+    }
+    long compiledTime = System.nanoTime() - start;
+    logger.info(String.format("%d resolutions of %s - baseline: %d ms, compiled: %d ms", resolutions, variable,
+        baselineTime / 1_000_000, compiledTime / 1_000_000));
+  }
+
+  /**
+   * The resolution of a mapper variable like the previous ContextFieldValueResolver did it
+   */
+  private Object resolveBaseline(final MockRoutingContext routingContext, final String variable) {
+    String variableName = variable.substring(variable.indexOf(':') + 1);
+    int i = variableName.indexOf('.');
+    return extractBaseline(variableName.substring(i + 1), routingContext.get(variableName.substring(0, i)));
+  }
+
+  private Object extractBaseline(final String path, final Object record) {
+    IMapper<?> mapper = netRelay.getDatastore().getMapperFactory().getMapper(record.getClass());
+    String fieldName = path;
+    int i = path.indexOf('.');
+    if (i > 0) {
+      fieldName = path.substring(0, i);
+    }
+    Object fieldValue = mapper.getField(fieldName).getPropertyAccessor().readData(record);
+    return fieldValue != null && i > 0 ? extractBaseline(path.substring(i + 1), fieldValue) : fieldValue;
+  }
+
+  /**
+   * Test the metrics endpoint. After a query was executed, its executions and latency must be reported
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testMetrics(final TestContext context) throws Exception {
+    DatastoreBaseTest.clearTable(context, Person.class);
+    Person person = new Person();
+    person.firstname = "max";
+    DatastoreBaseTest.saveRecord(context, person);
+    testRequest(context, HttpMethod.GET, "/queries/testDynamic_simpleQuery.html", 200, "OK");
+
+    testRequest(context, HttpMethod.GET, METRICS_PATH, null, resp -> {
+      JsonObject metrics = new JsonObject(resp.content).getJsonObject("/queries/testdynamic_simplequery");
+      context.assertNotNull(metrics, "no metrics for the query: " + resp.content);
+      context.assertTrue(metrics.getLong("executions") >= 1);
+      context.assertEquals(0L, metrics.getLong("errors"));
+      context.assertNotNull(metrics.getJsonArray("latency"));
+      context.assertNotNull(metrics.getJsonArray("size"));
+    }, 200, "OK", null);
+  }
+
+  /**
+   * Test the reload of queries. Resetting the routes replaces the controller, which must stop the watcher of the
+   * replaced controller; with reload disabled no watcher must be left
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testReloadQueries(final TestContext context) throws Exception {
+    RouterDefinition def = netRelay.getSettings().getRouterDefinitions()
+        .getNamedDefinition(QueryPoolController.class.getSimpleName());
+    Path directory = Files.createTempDirectory("querypool");
+    Path queryDirectory = Files.createDirectories(directory.resolve("queries"));
+    Files.copy(Paths.get(TEST_RESOURCE_PATH, "queries", "testDynamic_simpleQuery.json"),
+        queryDirectory.resolve("testDynamic_simpleQuery.json"));
+    String watcherName = "querypool-watcher-" + directory.getFileName();
+    try {
+      def.getHandlerProperties().put(QueryPoolController.QUERY_DIRECTORY_PROPERTY, directory.toString() + "/");
+      def.getHandlerProperties().put(QueryPoolController.RELOAD_PROPERTY, "true");
+      netRelay.resetRoutes();
+      netRelay.resetRoutes();
+      context.assertEquals(1, awaitThreads(watcherName, 1), "the watcher of the replaced controller must be stopped");
+      testRequest(context, HttpMethod.GET, "/queries/testDynamic_simpleQuery.html", 200, "OK");
+
+      def.getHandlerProperties().remove(QueryPoolController.RELOAD_PROPERTY);
+      netRelay.resetRoutes();
+      context.assertEquals(0, awaitThreads(watcherName, 0), "no watcher must be running without reload");
+    } finally {
+      def.getHandlerProperties().put(QueryPoolController.QUERY_DIRECTORY_PROPERTY, TEST_RESOURCE_PATH);
+      def.getHandlerProperties().remove(QueryPoolController.RELOAD_PROPERTY);
+      netRelay.resetRoutes();
+      netRelay.getVertx().fileSystem().deleteRecursiveBlocking(directory.toString(), true);
+    }
+  }
+
+  /**
+   * Measures the latency of requests, while the query they execute is reloaded continuously, and compares it with the
+   * latency without reloads
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testReloadLatency(final TestContext context) throws Exception {
+    RouterDefinition def = netRelay.getSettings().getRouterDefinitions()
+        .getNamedDefinition(QueryPoolController.class.getSimpleName());
+    Path directory = Files.createTempDirectory("querypool");
+    Path queryDirectory = Files.createDirectories(directory.resolve("queries"));
+    Path queryFile = queryDirectory.resolve("testDynamic_simpleQuery.json");
+    Files.copy(Paths.get(TEST_RESOURCE_PATH, "queries", "testDynamic_simpleQuery.json"), queryFile);
+    byte[] query = Files.readAllBytes(queryFile);
+    AtomicInteger writes = new AtomicInteger();
+    try {
+      def.getHandlerProperties().put(QueryPoolController.QUERY_DIRECTORY_PROPERTY, directory.toString() + "/");
+      def.getHandlerProperties().put(QueryPoolController.RELOAD_PROPERTY, "true");
+      netRelay.resetRoutes();
+      long[] idle = measureLatency(context, RELOAD_REQUESTS);
+
+      Thread writer = new Thread(() -> {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Files.write(queryFile, query);
+            writes.incrementAndGet();
+            Thread.sleep(5);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (Exception e) {
+            logger.error("", e);
+          }
+        }
+      });
+      writer.start();
+      long[] reloading;
+      try {
+        reloading = measureLatency(context, RELOAD_REQUESTS);
+      } finally {
+        writer.interrupt();
+        writer.join();
+      }
+      logger.info(String.format(
+          "request latency without reload: median %d us, max %d us; during %d reloads: median %d us, max %d us",
+          idle[RELOAD_REQUESTS / 2] / 1000, idle[RELOAD_REQUESTS - 1] / 1000, writes.get(),
+          reloading[RELOAD_REQUESTS / 2] / 1000, reloading[RELOAD_REQUESTS - 1] / 1000));
+    } finally {
+      def.getHandlerProperties().put(QueryPoolController.QUERY_DIRECTORY_PROPERTY, TEST_RESOURCE_PATH);
+      def.getHandlerProperties().remove(QueryPoolController.RELOAD_PROPERTY);
+      netRelay.resetRoutes();
+      netRelay.getVertx().fileSystem().deleteRecursiveBlocking(directory.toString(), true);
+    }
+  }
+
+  /**
+   * Executes the given number of requests one after the other
+   *
+   * @return the sorted latencies in nanoseconds
+   */
+  private long[] measureLatency(final TestContext context, final int requests) throws Exception {
+    long[] latencies = new long[requests];
+    for (int i = 0; i < requests; i++) {
+      long start = System.nanoTime();
+      testRequest(context, HttpMethod.GET, "/queries/testDynamic_simpleQuery.html", 200, "OK");
+      latencies[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(latencies);
+    return latencies;
+  }
+
+  /**
+   * Waits up to 5 seconds, until the number of running threads with the given name is the expected one
+   *
+   * @return the number of running threads with the given name
+   */
+  private static long awaitThreads(final String name, final long expected) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    long count;
+    while ((count = Thread.getAllStackTraces().keySet().stream().filter(t -> name.equals(t.getName())).count())
+        != expected && System.currentTimeMillis() < timeout) {
+      Thread.sleep(50);
+    }
+    return count;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -309,6 +865,7 @@ public class TQueryPoolController extends NetRelayBaseConnectorTest {
     RouterDefinition def = QueryPoolController.createDefaultRouterDefinition();
     def.setRoutes(new String[] { "/*" });
     def.getHandlerProperties().put(QueryPoolController.QUERY_DIRECTORY_PROPERTY, TEST_RESOURCE_PATH);
+    def.getHandlerProperties().put(QueryPoolController.METRICS_PATH_PROPERTY, METRICS_PATH);
     settings.getRouterDefinitions().addAfter(SessionController.class.getSimpleName(), def);
     settings.getMappingDefinitions().addMapperDefinition(Person.class);
   }
@@ -12,6 +12,8 @@
  */
 package de.braintags.netrelay.controller.querypool.mapper;
 
+import java.util.Date;
+
 import de.braintags.netrelay.controller.querypool.TQueryPoolController;
 import de.braintags.netrelay.model.AbstractRecord;
 import de.braintags.vertx.jomnigate.annotation.Entity;
@@ -35,6 +37,7 @@ public class Person extends AbstractRecord {
   public String zip;
   public int age;
   public double score;
+  public Date birthday;
   @Embedded
   public Address address;
 
@@ -207,4 +207,20 @@ public class TQueryTemplate {
     om.readValue(jsonFile, QueryTemplate.class);
   }
 
+  /**
+   * Test the parsing of an invalid JSON of a native query with seek pagination. The continuation token is a condition
+   * on the sort fields, which can't be combined with a native command
+   *
+   * @throws JsonParseException
+   * @throws JsonMappingException
+   * @throws IOException
+   */
+  @Test(expected = JsonMappingException.class)
+  public void testNativeQuery_invalidJson_Seek() throws JsonParseException, JsonMappingException, IOException {
+    File jsonFile = new File(TEST_RESOURCE_PATH + "InvalidNativeQuery_Seek.json");
+
+    ObjectMapper om = new ObjectMapper();
+    om.readValue(jsonFile, QueryTemplate.class);
+  }
+
 }
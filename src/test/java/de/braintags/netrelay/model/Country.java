@@ -21,6 +21,7 @@ import de.braintags.vertx.jomnigate.annotation.field.Embedded;
 @Entity
 public class Country extends AbstractRecord {
   public String name;
+  public long version;
 
   @Embedded
   public List<City> cities = new ArrayList<>();
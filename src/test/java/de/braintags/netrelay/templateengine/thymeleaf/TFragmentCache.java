@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.braintags.netrelay.util.MockRoutingContext;
+import io.vertx.core.Vertx;
+
+/**
+ * Unit test for the {@link FragmentCacheDialect}
+ *
+ * @author Michael Remme
+ *
+ */
+public class TFragmentCache {
+  private static final String TEMPLATE_DIRECTORY = "testTemplates/";
+  private static final String TEMPLATE = "fragmentCache.html";
+
+  private Vertx vertx;
+  private ThymeleafTemplateEngineImplBt engine;
+
+  @Before
+  public void setUp() {
+    vertx = Vertx.vertx();
+    engine = new ThymeleafTemplateEngineImplBt(vertx, false, TEMPLATE_DIRECTORY, true);
+    engine.addFragmentCacheDialect(FragmentCacheDialect.DEFAULT_PREFIX, new FragmentCacheDialect());
+  }
+
+  @After
+  public void tearDown() {
+    vertx.close();
+  }
+
+  @Test
+  public void testCachedFragment() throws Exception {
+    String first = render("first");
+    Assert.assertTrue(first, first.contains("cached: <span>first</span>"));
+    Assert.assertTrue(first, first.contains("current: <span>first</span>"));
+    Assert.assertFalse("capture instructions must not be written", first.contains("<?"));
+    Assert.assertFalse("attributes of the dialect must be removed", first.contains("fragment:"));
+
+    String second = render("second");
+    Assert.assertTrue(second, second.contains("cached: <span>first</span>"));
+    Assert.assertTrue(second, second.contains("current: <span>second</span>"));
+    Assert.assertEquals(1, engine.getFragmentCache().size());
+  }
+
+  /**
+   * Rendered content is never read as control data: chars, which were used as capture markers before, are written as
+   * they are and don't change the cache
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testControlCharsInContent() throws Exception {
+    String value = "\uFDD0999:box_injected\uFDD1<script>evil()</script>\uFDD2";
+    String first = render(value);
+    Assert.assertTrue(first, first.contains("current: <span>\uFDD0999:box_injected\uFDD1&lt;script&gt;evil()"));
+    Assert.assertTrue(first, first.contains("</html>"));
+    Assert.assertEquals(1, engine.getFragmentCache().size());
+    Assert.assertNull(engine.getFragmentCache().get("box_injected"));
+
+    // a single start marker doesn't swallow the rest of the page
+    String second = render("\uFDD0");
+    Assert.assertTrue(second, second.contains("current: <span>\uFDD0</span>"));
+    Assert.assertTrue(second, second.contains("</html>"));
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    render("first");
+    vertx.eventBus().publish(ThymeleafTemplateEngineImplBt.FRAGMENT_CACHE_INVALIDATE_ADDRESS, "box_*");
+    long timeout = System.currentTimeMillis() + 5000;
+    while (engine.getFragmentCache().size() > 0 && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    String second = render("second");
+    Assert.assertTrue(second, second.contains("cached: <span>second</span>"));
+  }
+
+  /**
+   * A closed engine doesn't listen for invalidations anymore
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testInvalidationAfterClose() throws Exception {
+    render("first");
+    engine.close();
+    vertx.eventBus().publish(ThymeleafTemplateEngineImplBt.FRAGMENT_CACHE_INVALIDATE_ADDRESS, "box_*");
+    Thread.sleep(200);
+    Assert.assertEquals(1, engine.getFragmentCache().size());
+  }
+
+  private String render(final String value) throws Exception {
+    MockRoutingContext context = new MockRoutingContext(vertx, new URI("http://localhost/" + TEMPLATE));
+    context.put("value", value);
+    CompletableFuture<String> result = new CompletableFuture<>();
+    engine.render(context, TEMPLATE_DIRECTORY, TEMPLATE, res -> {
+      if (res.failed()) {
+        result.completeExceptionally(res.cause());
+      } else {
+        result.complete(res.result().toString());
+      }
+    });
+    return result.get(10, TimeUnit.SECONDS);
+  }
+
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.braintags.netrelay.util.MockRoutingContext;
+import io.vertx.core.Vertx;
+
+/**
+ * Unit test for the source cache of {@link ResourceTemplateResolver}
+ *
+ * @author Michael Remme
+ *
+ */
+public class TResourceTemplateResolver {
+  private Vertx vertx;
+  private File  directory;
+
+  @Before
+  public void setUp() throws Exception {
+    vertx = Vertx.vertx();
+    directory = Files.createTempDirectory("templates").toFile();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    vertx.fileSystem().deleteRecursiveBlocking(directory.getAbsolutePath(), true);
+    vertx.close();
+  }
+
+  /**
+   * With caching enabled, the template is read once and an edited template is rendered after the check interval
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testModifiedTemplate() throws Exception {
+    File template = new File(directory, "page.html");
+    writeTemplate(template, "first version");
+
+    ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false,
+        directory.getAbsolutePath() + "/", true);
+    ResourceTemplateResolver resolver = engine.getTemplateResolver();
+    resolver.setCheckInterval(0);
+
+    Assert.assertTrue(render(engine).contains("first version"));
+    Assert.assertTrue(render(engine).contains("first version"));
+    Assert.assertEquals(1, resolver.getCacheMisses());
+
+    writeTemplate(template, "second version");
+    // make sure the modification time differs on file systems with a low resolution
+    Assert.assertTrue(template.setLastModified(template.lastModified() + 2000));
+    Assert.assertTrue(render(engine).contains("second version"));
+    Assert.assertEquals(2, resolver.getCacheMisses());
+  }
+
+  /**
+   * With caching disabled, the template is parsed on every rendering, but the source is read from the cache
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testSourceCacheWithoutTemplateCache() throws Exception {
+    writeTemplate(new File(directory, "page.html"), "content");
+    ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false,
+        directory.getAbsolutePath() + "/", false);
+    ResourceTemplateResolver resolver = engine.getTemplateResolver();
+    for (int i = 0; i < 5; i++) {
+      Assert.assertTrue(render(engine).contains("content"));
+    }
+    // the first resolution uses the source loaded by the prefetch, all following are served from the cache
+    Assert.assertEquals(1, resolver.getCacheMisses());
+    Assert.assertEquals(4, resolver.getCacheHits());
+  }
+
+  /**
+   * A source, which exceeds the size of the source cache, is not kept and read again on every rendering
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testSourceCacheSize() throws Exception {
+    writeTemplate(new File(directory, "page.html"), "content");
+    ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false,
+        directory.getAbsolutePath() + "/", false);
+    ResourceTemplateResolver resolver = engine.getTemplateResolver();
+    resolver.setSourceCacheSize(10);
+    for (int i = 0; i < 5; i++) {
+      Assert.assertTrue(render(engine).contains("content"));
+    }
+    Assert.assertEquals(5, resolver.getCacheMisses());
+    Assert.assertEquals(0, resolver.getCacheHits());
+  }
+
+  /**
+   * A fragment, which is unknown on the first rendering on an event loop, is loaded asynchronously and the template is
+   * processed again
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testFragmentOnEventLoop() throws Exception {
+    Files.write(new File(directory, "page.html").toPath(),
+        "<html><body><div th:replace=\"fragment :: box\"></div></body></html>".getBytes(StandardCharsets.UTF_8));
+    Files.write(new File(directory, "fragment.html").toPath(),
+        "<html><body><p th:fragment=\"box\">fragment content</p></body></html>".getBytes(StandardCharsets.UTF_8));
+    ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false,
+        directory.getAbsolutePath() + "/", true);
+    ResourceTemplateResolver resolver = engine.getTemplateResolver();
+
+    CompletableFuture<String> result = new CompletableFuture<>();
+    vertx.runOnContext(v -> render(engine, result));
+    Assert.assertTrue(result.get(10, TimeUnit.SECONDS).contains("fragment content"));
+    Assert.assertEquals(2, resolver.getCacheMisses());
+  }
+
+  private String render(final ThymeleafTemplateEngineImplBt engine) throws Exception {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    render(engine, result);
+    return result.get(10, TimeUnit.SECONDS);
+  }
+
+  private void render(final ThymeleafTemplateEngineImplBt engine, final CompletableFuture<String> result) {
+    try {
+      engine.render(new MockRoutingContext(vertx, new URI("http://localhost/page.html")),
+          directory.getAbsolutePath() + "/", "page.html", res -> {
+            if (res.failed()) {
+              result.completeExceptionally(res.cause());
+            } else {
+              result.complete(res.result().toString());
+            }
+          });
+    } catch (Exception e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  private static void writeTemplate(final File file, final String text) throws Exception {
+    Files.write(file.toPath(), ("<html><body><p>" + text + "</p></body></html>").getBytes(StandardCharsets.UTF_8));
+  }
+
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.braintags.netrelay.util.MockRoutingContext;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+
+/**
+ * Stress test for {@link ThymeleafTemplateEngineImplBt}, which renders the same template from a growing number of
+ * event loops at the same time and compares the throughput
+ *
+ * @author Michael Remme
+ *
+ */
+public class TTemplateEngineConcurrency {
+  private static final io.vertx.core.logging.Logger LOGGER = io.vertx.core.logging.LoggerFactory
+      .getLogger(TTemplateEngineConcurrency.class);
+
+  private static final String TEMPLATE_DIRECTORY = "testTemplates/";
+  private static final String TEMPLATE = "test.html";
+  private static final int RENDERS_PER_LOOP = 2000;
+
+  /**
+   * Renders the template concurrently from 1, 2 and 4 event loops. All renders must succeed; if the machine has enough
+   * cores, the throughput with 4 event loops must be higher than with a single one
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentRendering() throws Exception {
+    // warm up the JIT, so that the first measurement is not penalized
+    measureThroughput(1);
+    double single = measureThroughput(1);
+    double dual = measureThroughput(2);
+    double quad = measureThroughput(4);
+    LOGGER.info(String.format("render throughput - 1 loop: %.0f/s, 2 loops: %.0f/s, 4 loops: %.0f/s", single, dual,
+        quad));
+    if (Runtime.getRuntime().availableProcessors() >= 4) {
+      Assert.assertTrue("throughput does not scale with the number of event loops: " + single + " / " + quad,
+          quad > single);
+    }
+  }
+
+  /**
+   * Compares the time, which templates are processed on the event loops, with and without a worker pool
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testWorkerPool() throws Exception {
+    long[] processingTime = new long[1];
+    double eventLoop = measureThroughput(2, 0, processingTime);
+    long eventLoopProcessing = processingTime[0];
+    double workerPool = measureThroughput(2, 4, processingTime);
+    LOGGER.info(String.format(
+        "rendering on event loops: %.0f/s, processed on event loops %d ms - rendering on worker pool: %.0f/s, "
+            + "processed on event loops %d ms",
+        eventLoop, eventLoopProcessing / 1_000_000, workerPool, processingTime[0] / 1_000_000));
+    Assert.assertTrue(eventLoopProcessing > 0);
+    Assert.assertEquals(0, processingTime[0]);
+  }
+
+  private double measureThroughput(final int eventLoops) throws Exception {
+    return measureThroughput(eventLoops, 0, new long[1]);
+  }
+
+  /**
+   * Renders the template {@value #RENDERS_PER_LOOP} times on each of the given number of event loops
+   *
+   * @param eventLoops
+   *          the number of event loops to be used
+   * @param workerPoolSize
+   *          the size of the worker pool of the engine, 0 to render on the event loops
+   * @param processingTime
+   *          receives the time in nanoseconds, which templates were processed on the event loops
+   * @return the number of renders per second
+   * @throws Exception
+   */
+  private double measureThroughput(final int eventLoops, final int workerPoolSize, final long[] processingTime)
+      throws Exception {
+    Vertx vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(eventLoops));
+    try {
+      ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false, TEMPLATE_DIRECTORY, true);
+      engine.setWorkerPoolSize(workerPoolSize);
+      CountDownLatch latch = new CountDownLatch(eventLoops * RENDERS_PER_LOOP);
+      AtomicInteger rendered = new AtomicInteger();
+      AtomicReference<Throwable> failure = new AtomicReference<>();
+      URI uri = new URI("http://localhost:8080/" + TEMPLATE);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < eventLoops; i++) {
+        // every context created from a non vertx thread is bound to the next event loop
+        Context loopContext = vertx.getOrCreateContext();
+        loopContext.runOnContext(v -> {
+          try {
+            for (int r = 0; r < RENDERS_PER_LOOP; r++) {
+              engine.render(new MockRoutingContext(vertx, uri), TEMPLATE_DIRECTORY, TEMPLATE, res -> {
+                if (res.failed()) {
+                  failure.compareAndSet(null, res.cause());
+                } else if (res.result().length() > 0) {
+                  rendered.incrementAndGet();
+                }
+                latch.countDown();
+              });
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            while (latch.getCount() > 0) {
+              latch.countDown();
+            }
+          }
+        });
+      }
+      Assert.assertTrue("rendering timed out", latch.await(2, TimeUnit.MINUTES));
+      long duration = System.nanoTime() - start;
+
+      if (failure.get() != null) {
+        throw new AssertionError("rendering failed", failure.get());
+      }
+      Assert.assertEquals(eventLoops * RENDERS_PER_LOOP, rendered.get());
+      processingTime[0] = engine.getEventLoopProcessingTime();
+      return rendered.get() / (duration / 1_000_000_000d);
+    } finally {
+      vertx.close();
+    }
+  }
+
+}
@@ -0,0 +1,200 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.templateengine.thymeleaf;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.braintags.netrelay.util.MockRoutingContext;
+import io.vertx.core.Vertx;
+
+/**
+ * Unit test for {@link WebIContext}
+ *
+ * @author Michael Remme
+ *
+ */
+public class TWebIContext {
+  private static final io.vertx.core.logging.Logger LOGGER = io.vertx.core.logging.LoggerFactory
+      .getLogger(TWebIContext.class);
+
+  private static final String TEMPLATE_DIRECTORY = "testTemplates/";
+  private static final String TEMPLATE = "test.html";
+  private static final String READ_THROUGH_TEMPLATE = "readThrough.html";
+  private static final int RENDERS = 2000;
+
+  private Vertx vertx;
+
+  @Before
+  public void setUp() {
+    vertx = Vertx.vertx();
+  }
+
+  @After
+  public void tearDown() {
+    vertx.close();
+  }
+
+  @Test
+  public void testVariables() throws Exception {
+    MockRoutingContext context = new MockRoutingContext(vertx, new URI("http://localhost/" + TEMPLATE));
+    context.put("a", "valueA");
+    WebIContext webContext = new WebIContext(context, context.data(), Locale.GERMAN);
+    Assert.assertEquals("valueA", webContext.getVariable("a"));
+    Assert.assertSame(context, webContext.getVariable(WebIContext.CONTEXT_VARIABLE));
+    Assert.assertTrue(webContext.containsVariable(WebIContext.CONTEXT_VARIABLE));
+    Assert.assertFalse(webContext.containsVariable("b"));
+    Assert.assertEquals(new HashSet<>(java.util.Arrays.asList("a", WebIContext.CONTEXT_VARIABLE)), new HashSet<>(
+        webContext.getVariableNames()));
+
+    // an entry of the data with the name of the context variable has precedence
+    context.put(WebIContext.CONTEXT_VARIABLE, "data");
+    Assert.assertEquals("data", webContext.getVariable(WebIContext.CONTEXT_VARIABLE));
+    Assert.assertEquals(2, webContext.getVariableNames().size());
+  }
+
+  /**
+   * The engine context of Thymeleaf reads through to the data of the request instead of copying it: the data can't be
+   * iterated here, variables set by the template shadow the data
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testReadThroughEngineContext() throws Exception {
+    ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false, TEMPLATE_DIRECTORY, true);
+    Map<String, Object> data = new HashMap<String, Object>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Set<Map.Entry<String, Object>> entrySet() {
+        throw new UnsupportedOperationException("the data must not be copied");
+      }
+
+      @Override
+      public Set<String> keySet() {
+        throw new UnsupportedOperationException("the data must not be copied");
+      }
+    };
+    data.put("a", "valueA");
+    data.put("b", "valueB");
+    StringWriter writer = new StringWriter();
+    engine.getThymeleafTemplateEngine().process(TEMPLATE_DIRECTORY + READ_THROUGH_TEMPLATE,
+        new WebIContext(null, data, Locale.getDefault()), writer);
+    String result = writer.toString();
+    Assert.assertTrue(result, result.contains("<p>valueA</p>"));
+    Assert.assertTrue(result, result.contains("<p>local</p>"));
+    Assert.assertTrue(result, result.contains("<p>valueB</p>"));
+  }
+
+  /**
+   * The memory allocated by a rendering must not grow with the number of entries inside the data of the request
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testAllocationIndependentOfContextSize() throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false, TEMPLATE_DIRECTORY, true);
+
+    long small = measureAllocation(threadBean, engine, 10);
+    long large = measureAllocation(threadBean, engine, 10_000);
+    LOGGER.info(String.format("allocated bytes per rendering: %d with 10 entries, %d with 10000 entries", small,
+        large));
+    // a copy of 10000 entries would need far more than 100 KB per rendering
+    Assert.assertTrue("allocation grows with the context: " + small + " / " + large, large - small < 8 * 1024);
+  }
+
+  private long measureAllocation(final com.sun.management.ThreadMXBean threadBean,
+      final ThymeleafTemplateEngineImplBt engine, final int size) throws Exception {
+    MockRoutingContext context = new MockRoutingContext(vertx, new URI("http://localhost/" + TEMPLATE));
+    for (int i = 0; i < size; i++) {
+      context.put("entry" + i, "value" + i);
+    }
+    String template = TEMPLATE_DIRECTORY + TEMPLATE;
+    WebIContext webContext = new WebIContext(context);
+    // warm up, so that the template is parsed and cached
+    for (int i = 0; i < 100; i++) {
+      engine.getThymeleafTemplateEngine().process(template, webContext, new StringWriter());
+    }
+    long threadId = Thread.currentThread().getId();
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < RENDERS; i++) {
+      engine.getThymeleafTemplateEngine().process(template, webContext, new StringWriter());
+    }
+    return (threadBean.getThreadAllocatedBytes(threadId) - start) / RENDERS;
+  }
+
+  /**
+   * Compares the creation of a context by copying the data with the view of {@link WebIContext} and measures the
+   * rendering for contexts with 10, 100 and 1000 entries
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testContextSize() throws Exception {
+    ThymeleafTemplateEngineImplBt engine = new ThymeleafTemplateEngineImplBt(vertx, false, TEMPLATE_DIRECTORY, true);
+    for (int size : new int[] { 10, 100, 1000 }) {
+      MockRoutingContext context = new MockRoutingContext(vertx, new URI("http://localhost/" + TEMPLATE));
+      for (int i = 0; i < size; i++) {
+        context.put("entry" + i, "value" + i);
+      }
+
+      long start = System.nanoTime();
+      for (int i = 0; i < RENDERS; i++) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(WebIContext.CONTEXT_VARIABLE, context);
+        data.putAll(context.data());
+        Assert.assertNotNull(new WebIContext(null, data, Locale.getDefault()).getVariable("entry0"));
+      }
+      long copied = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < RENDERS; i++) {
+        Assert.assertNotNull(new WebIContext(context, context.data(), Locale.getDefault()).getVariable("entry0"));
+      }
+      long view = System.nanoTime() - start;
+
+      CountDownLatch latch = new CountDownLatch(RENDERS);
+      start = System.nanoTime();
+      for (int i = 0; i < RENDERS; i++) {
+        engine.render(context, TEMPLATE_DIRECTORY, TEMPLATE, res -> {
+          Assert.assertTrue(res.succeeded());
+          latch.countDown();
+        });
+      }
+      Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+      long render = System.nanoTime() - start;
+
+      LOGGER.info(String.format("%d entries - context by copy: %d us, context by view: %d us, %d renders: %d ms",
+          size, copied / 1000, view / 1000, RENDERS, render / 1_000_000));
+    }
+  }
+
+}
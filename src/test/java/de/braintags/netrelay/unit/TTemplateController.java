@@ -12,6 +12,8 @@
  */
 package de.braintags.netrelay.unit;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Test;
 
 import de.braintags.netrelay.controller.ThymeleafTemplateController;
@@ -97,6 +99,139 @@ public class TTemplateController extends NetRelayBaseConnectorTest {
     testRequest(context, HttpMethod.GET, "/index.html", 404, "Not Found");
   }
 
+  /**
+   * Render a template with streaming enabled, where the page is sent in chunks
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testIndexStreaming(TestContext context) throws Exception {
+    try {
+      setStreaming(true);
+      testRequest(context, HttpMethod.GET, "/index.html", null, resp -> {
+        context.assertTrue(resp.content.contains("inhalt der Index seite"), "wrong content: " + resp.content);
+      }, 200, "OK", null);
+    } finally {
+      setStreaming(false);
+    }
+  }
+
+  /**
+   * Render a non existing template with streaming enabled. Because nothing was sent yet, the error must still be
+   * reported with the status code
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testStreaming_TemplateDoesNotExist(TestContext context) throws Exception {
+    try {
+      setStreaming(true);
+      testRequest(context, HttpMethod.GET, "/doesNotExist.html", 500, "Internal Server Error");
+    } finally {
+      setStreaming(false);
+    }
+  }
+
+  /**
+   * With warm up enabled all templates are rendered during the initialization; skipped templates must not prevent the
+   * start of the controller
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testIndexWithWarmUp(TestContext context) throws Exception {
+    RouterDefinition def = netRelay.getSettings().getRouterDefinitions()
+        .getNamedDefinition(ThymeleafTemplateController.class.getSimpleName());
+    try {
+      def.getHandlerProperties().put(ThymeleafTemplateController.WARMUP_PROPERTY, "true");
+      def.getHandlerProperties().put(ThymeleafTemplateController.WARMUP_RENDERS_PROPERTY, "2");
+      def.setRoutes(null);
+      netRelay.resetRoutes();
+      testRequest(context, HttpMethod.GET, "/index.html", null, resp -> {
+        context.assertTrue(resp.content.contains("inhalt der Index seite"), "wrong content: " + resp.content);
+      }, 200, "OK", null);
+    } finally {
+      def.getHandlerProperties().remove(ThymeleafTemplateController.WARMUP_PROPERTY);
+      def.getHandlerProperties().remove(ThymeleafTemplateController.WARMUP_RENDERS_PROPERTY);
+      netRelay.resetRoutes();
+    }
+  }
+
+  /**
+   * With the page cache enabled, the second request for a page sends the ETag of the first response and must be
+   * answered with 304
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testPageCache(TestContext context) throws Exception {
+    RouterDefinition def = netRelay.getSettings().getRouterDefinitions()
+        .getNamedDefinition(ThymeleafTemplateController.class.getSimpleName());
+    try {
+      def.getHandlerProperties().put(ThymeleafTemplateController.PAGE_CACHE_PROPERTY, "true");
+      def.getHandlerProperties().put(ThymeleafTemplateController.PAGE_CACHE_PATHS_PROPERTY, "/index.html");
+      def.setRoutes(null);
+      netRelay.resetRoutes();
+      AtomicReference<String> etag = new AtomicReference<>();
+      testRequest(context, HttpMethod.GET, "/index.html", null, resp -> {
+        context.assertTrue(resp.content.contains("inhalt der Index seite"), "wrong content: " + resp.content);
+        etag.set(resp.headers.get("ETag"));
+      }, 200, "OK", null);
+      context.assertNotNull(etag.get(), "no ETag sent");
+      testRequest(context, HttpMethod.GET, "/index.html", null, resp -> {
+        context.assertTrue(resp.content.contains("inhalt der Index seite"), "wrong content: " + resp.content);
+        context.assertEquals(etag.get(), resp.headers.get("ETag"));
+      }, 200, "OK", null);
+      testRequest(context, HttpMethod.GET, "/index.html", req -> {
+        req.headers().set("If-None-Match", etag.get());
+      }, null, 304, "Not Modified", null);
+    } finally {
+      def.getHandlerProperties().remove(ThymeleafTemplateController.PAGE_CACHE_PROPERTY);
+      def.getHandlerProperties().remove(ThymeleafTemplateController.PAGE_CACHE_PATHS_PROPERTY);
+      netRelay.resetRoutes();
+    }
+  }
+
+  /**
+   * Only the pages, which are defined for the page cache, are cached; a cached page is not streamed, even if streaming
+   * is enabled
+   *
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testPageCachePaths(TestContext context) throws Exception {
+    RouterDefinition def = netRelay.getSettings().getRouterDefinitions()
+        .getNamedDefinition(ThymeleafTemplateController.class.getSimpleName());
+    try {
+      def.getHandlerProperties().put(ThymeleafTemplateController.PAGE_CACHE_PROPERTY, "true");
+      def.getHandlerProperties().put(ThymeleafTemplateController.PAGE_CACHE_PATHS_PROPERTY, "/cached/*");
+      def.getHandlerProperties().put(ThymeleafTemplateController.STREAMING_PROPERTY, "true");
+      def.setRoutes(null);
+      netRelay.resetRoutes();
+      testRequest(context, HttpMethod.GET, "/index.html", null, resp -> {
+        context.assertTrue(resp.content.contains("inhalt der Index seite"), "wrong content: " + resp.content);
+        context.assertNull(resp.headers.get("ETag"), "page must not be cached");
+      }, 200, "OK", null);
+
+      def.getHandlerProperties().put(ThymeleafTemplateController.PAGE_CACHE_PATHS_PROPERTY, "/cached/*, /index.html");
+      netRelay.resetRoutes();
+      testRequest(context, HttpMethod.GET, "/index.html", null, resp -> {
+        context.assertTrue(resp.content.contains("inhalt der Index seite"), "wrong content: " + resp.content);
+        context.assertNotNull(resp.headers.get("ETag"), "page must be cached");
+      }, 200, "OK", null);
+    } finally {
+      def.getHandlerProperties().remove(ThymeleafTemplateController.PAGE_CACHE_PROPERTY);
+      def.getHandlerProperties().remove(ThymeleafTemplateController.PAGE_CACHE_PATHS_PROPERTY);
+      def.getHandlerProperties().remove(ThymeleafTemplateController.STREAMING_PROPERTY);
+      netRelay.resetRoutes();
+    }
+  }
+
   @Test
   public void testRedirect(TestContext context) throws Exception {
     resetRoutes(false);
@@ -113,6 +248,14 @@ public class TTemplateController extends NetRelayBaseConnectorTest {
     super.initTest(context);
   }
 
+  private void setStreaming(boolean streaming) throws Exception {
+    RouterDefinition def = netRelay.getSettings().getRouterDefinitions()
+        .getNamedDefinition(ThymeleafTemplateController.class.getSimpleName());
+    def.getHandlerProperties().put(ThymeleafTemplateController.STREAMING_PROPERTY, String.valueOf(streaming));
+    def.setRoutes(null);
+    netRelay.resetRoutes();
+  }
+
   private void resetRoutes(boolean multiPath) throws Exception {
     resetRoutes(multiPath, null);
     netRelay.resetRoutes();
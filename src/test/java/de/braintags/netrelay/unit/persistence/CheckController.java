@@ -20,6 +20,7 @@ import io.vertx.ext.web.RoutingContext;
 public class CheckController extends AbstractController {
   static Throwable error;
   static String checkMapperName;
+  static Object checkedObject;
 
   /*
    * (non-Javadoc)
@@ -33,6 +34,7 @@ public class CheckController extends AbstractController {
       error = new IllegalArgumentException("did not find an instance of " + checkMapperName + " in the context");
       context.fail(error);
     } else {
+      checkedObject = o;
       context.next();
     }
   }
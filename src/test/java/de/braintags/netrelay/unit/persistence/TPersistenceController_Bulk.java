@@ -0,0 +1,286 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.unit.persistence;
+
+import org.junit.Test;
+
+import de.braintags.netrelay.controller.SessionController;
+import de.braintags.netrelay.controller.persistence.BulkAction;
+import de.braintags.netrelay.controller.persistence.PersistenceController;
+import de.braintags.netrelay.impl.NetRelayExt_FileBasedSettings;
+import de.braintags.netrelay.init.Settings;
+import de.braintags.netrelay.mapper.SimpleNetRelayMapper;
+import de.braintags.netrelay.model.Country;
+import de.braintags.netrelay.routing.RouterDefinition;
+import de.braintags.netrelay.unit.AbstractPersistenceControllerTest;
+import de.braintags.netrelay.util.MultipartUtil;
+import de.braintags.vertx.jomnigate.dataaccess.query.IQuery;
+import de.braintags.vertx.jomnigate.dataaccess.query.ISearchCondition;
+import de.braintags.vertx.jomnigate.testdatastore.DatastoreBaseTest;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestContext;
+
+/**
+ * Tests the bulk mode of the {@link PersistenceController}
+ *
+ * @author Michael Remme
+ *
+ */
+public class TPersistenceController_Bulk extends AbstractPersistenceControllerTest {
+  private static final io.vertx.core.logging.Logger LOGGER = io.vertx.core.logging.LoggerFactory
+      .getLogger(TPersistenceController_Bulk.class);
+  private static final String BULK_URL = "/products/bulk.html";
+  private static final int MAX_RECORDS = 5;
+
+  @Test
+  public void testBulkInsertByForm(final TestContext context) throws Exception {
+    try {
+      CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+      String url = String.format(BULK_URL + "?action=INSERT&entity=%s&bulk=true",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      MultipartUtil mu = new MultipartUtil();
+      for (int i = 0; i < 3; i++) {
+        mu.addFormField(NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME + "." + i + ".name", "bulkForm" + i);
+        mu.addFormField(NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME + "." + i + ".age", String.valueOf(20 + i));
+      }
+      testRequest(context, HttpMethod.POST, url, req -> {
+        mu.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 200, "OK", null);
+    } catch (Exception e) {
+      context.fail(e);
+    }
+    for (int i = 0; i < 3; i++) {
+      context.assertNotNull(findByName(context, "bulkForm" + i), "record " + i + " was not saved");
+    }
+  }
+
+  @Test
+  public void testBulkInsertByJson(final TestContext context) throws Exception {
+    try {
+      CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+      String url = String.format(BULK_URL + "?action=INSERT&entity=%s&bulk=true",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      JsonArray records = new JsonArray();
+      for (int i = 0; i < 3; i++) {
+        records.add(new JsonObject().put("name", "bulkJson" + i).put("age", 30 + i));
+      }
+      Buffer body = Buffer.buffer(records.encode());
+      testRequest(context, HttpMethod.POST, url, req -> {
+        req.putHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+        req.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length()));
+        req.write(body);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 200, "OK", null);
+    } catch (Exception e) {
+      context.fail(e);
+    }
+    for (int i = 0; i < 3; i++) {
+      context.assertNotNull(findByName(context, "bulkJson" + i), "record " + i + " was not saved");
+    }
+  }
+
+  /**
+   * An id, which matches no record, must be reported as failure, the existing record as success
+   * 
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testBulkDeleteMissingRecord(final TestContext context) throws Exception {
+    SimpleNetRelayMapper existing = new SimpleNetRelayMapper();
+    existing.name = "bulkDeleteExisting";
+    Object existingId = DatastoreBaseTest.saveRecord(context, existing).writeResult.iterator().next().getId();
+    SimpleNetRelayMapper deleted = new SimpleNetRelayMapper();
+    deleted.name = "bulkDeleteDeleted";
+    Object deletedId = DatastoreBaseTest.saveRecord(context, deleted).writeResult.iterator().next().getId();
+    try {
+      CheckController.checkMapperName = PersistenceController.BULK_RESULTS_KEY;
+      String url = String.format(BULK_URL + "?action=DELETE&entity=%s&bulk=true",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      bulkRequest(context, url, new JsonArray().add(new JsonObject().put("id", String.valueOf(deletedId))), 200, "OK");
+      context.assertTrue(getResult(0).getBoolean(BulkAction.SUCCESS), "the record was not deleted");
+
+      JsonArray records = new JsonArray().add(new JsonObject().put("id", String.valueOf(existingId)))
+          .add(new JsonObject().put("id", String.valueOf(deletedId)));
+      bulkRequest(context, url, records, 200, "OK");
+      context.assertTrue(getResult(0).getBoolean(BulkAction.SUCCESS), "the existing record was not deleted");
+      context.assertFalse(getResult(1).getBoolean(BulkAction.SUCCESS), "a missing record was reported as deleted");
+      context.assertNotNull(getResult(1).getString(BulkAction.ERROR));
+    } catch (Exception e) {
+      context.fail(e);
+    }
+    context.assertNull(findByName(context, "bulkDeleteExisting"), "the existing record was not deleted");
+  }
+
+  /**
+   * An unknown action must fail the request
+   * 
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testBulkUnknownAction(final TestContext context) throws Exception {
+    try {
+      CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+      String url = String.format(BULK_URL + "?action=UNKNOWN&entity=%s&bulk=true",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      bulkRequest(context, url, new JsonArray().add(new JsonObject().put("name", "bulkUnknown")), 500,
+          "Internal Server Error");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+    context.assertNull(findByName(context, "bulkUnknown"), "record of an unknown action was saved");
+  }
+
+  /**
+   * A request with more records than allowed must fail without saving any record
+   * 
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testBulkMaxRecords(final TestContext context) throws Exception {
+    try {
+      CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+      String url = String.format(BULK_URL + "?action=INSERT&entity=%s&bulk=true",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      JsonArray records = new JsonArray();
+      for (int i = 0; i <= MAX_RECORDS; i++) {
+        records.add(new JsonObject().put("name", "bulkMax" + i));
+      }
+      bulkRequest(context, url, records, 500, "Internal Server Error");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+    context.assertNull(findByName(context, "bulkMax0"), "a record of a too large request was saved");
+  }
+
+  /**
+   * The maximum number of records must be checked for form fields as well
+   * 
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testBulkMaxRecordsByForm(final TestContext context) throws Exception {
+    try {
+      CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+      String url = String.format(BULK_URL + "?action=INSERT&entity=%s&bulk=true",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      MultipartUtil mu = new MultipartUtil();
+      for (int i = 0; i <= MAX_RECORDS; i++) {
+        mu.addFormField(NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME + "." + i + ".name", "bulkMaxForm" + i);
+      }
+      testRequest(context, HttpMethod.POST, url, req -> {
+        mu.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 500, "Internal Server Error", null);
+    } catch (Exception e) {
+      context.fail(e);
+    }
+    context.assertNull(findByName(context, "bulkMaxForm0"), "a record of a too large request was saved");
+  }
+
+  /**
+   * A bulk UPDATE must check the version of each record: the record with the current version is saved with an increased
+   * version, the records with an outdated or a missing version are reported as failures and not modified
+   * 
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testBulkUpdateWithVersion(final TestContext context) throws Exception {
+    Country current = initCountry(context);
+    Country outdated = initCountry(context);
+    Country missing = initCountry(context);
+    try {
+      CheckController.checkMapperName = PersistenceController.BULK_RESULTS_KEY;
+      String url = String.format(BULK_URL + "?action=UPDATE&entity=%s&bulk=true", Country.class.getSimpleName());
+      JsonArray records = new JsonArray()
+          .add(new JsonObject().put("id", String.valueOf(current.id)).put("version", current.version)
+              .put("name", "bulkCurrent"))
+          .add(new JsonObject().put("id", String.valueOf(outdated.id)).put("version", outdated.version + 1)
+              .put("name", "bulkOutdated"))
+          .add(new JsonObject().put("id", String.valueOf(missing.id)).put("name", "bulkMissing"));
+      bulkRequest(context, url, records, 200, "OK");
+      context.assertTrue(getResult(0).getBoolean(BulkAction.SUCCESS), "the current record was not updated");
+      context.assertFalse(getResult(1).getBoolean(BulkAction.SUCCESS), "an outdated record was updated");
+      context.assertFalse(getResult(2).getBoolean(BulkAction.SUCCESS), "a record without version was updated");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+    Country saved = DatastoreBaseTest.findRecordByID(context, Country.class, current.id);
+    context.assertEquals("bulkCurrent", saved.name, "name not modified");
+    context.assertEquals(current.version + 1, saved.version, "version was not increased");
+    context.assertEquals(1, saved.cities.size(), "cities were removed");
+    for (Country country : new Country[] { outdated, missing }) {
+      saved = DatastoreBaseTest.findRecordByID(context, Country.class, country.id);
+      context.assertEquals(country.name, saved.name, "name was modified");
+      context.assertEquals(country.version, saved.version, "version was modified");
+    }
+  }
+
+  private void bulkRequest(final TestContext context, final String url, final JsonArray records, final int status,
+      final String statusMessage) throws Exception {
+    CheckController.checkedObject = null;
+    Buffer body = Buffer.buffer(records.encode());
+    testRequest(context, HttpMethod.POST, url, req -> {
+      req.putHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+      req.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length()));
+      req.write(body);
+    }, resp -> {
+      LOGGER.info("RESPONSE: " + resp.content);
+    }, status, statusMessage, null);
+  }
+
+  private JsonObject getResult(final int index) {
+    return ((JsonArray) CheckController.checkedObject).getJsonObject(index);
+  }
+
+  private SimpleNetRelayMapper findByName(final TestContext context, final String name) {
+    IQuery<SimpleNetRelayMapper> query = netRelay.getDatastore().createQuery(SimpleNetRelayMapper.class);
+    query.setSearchCondition(ISearchCondition.isEqual("name", name));
+    return (SimpleNetRelayMapper) DatastoreBaseTest.findFirst(context, query);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.braintags.netrelay.NetRelayBaseTest#modifySettings(de.braintags.netrelay.init.Settings)
+   */
+  @Override
+  public void modifySettings(final TestContext context, final Settings settings) {
+    super.modifySettings(context, settings);
+    RouterDefinition persistenceDefinition = PersistenceController.createDefaultRouterDefinition();
+    persistenceDefinition.setRoutes(new String[] { BULK_URL });
+    persistenceDefinition.getHandlerProperties().put(PersistenceController.BULK_CHUNK_SIZE_PROP, "2");
+    persistenceDefinition.getHandlerProperties().put(PersistenceController.BULK_MAX_RECORDS_PROP,
+        String.valueOf(MAX_RECORDS));
+    persistenceDefinition.getHandlerProperties().put(PersistenceController.VERSION_FIELD_PROP, "version");
+    settings.getRouterDefinitions().addAfter(SessionController.class.getSimpleName(), persistenceDefinition);
+    setPersistenceDef(persistenceDefinition);
+
+    RouterDefinition rd = new RouterDefinition();
+    rd.setController(CheckController.class);
+    settings.getRouterDefinitions().addAfter(PersistenceController.class.getSimpleName(), rd);
+  }
+
+}
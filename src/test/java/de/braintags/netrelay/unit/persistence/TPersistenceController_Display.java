@@ -16,6 +16,7 @@ import org.junit.Test;
 
 import de.braintags.netrelay.controller.Action;
 import de.braintags.netrelay.controller.SessionController;
+import de.braintags.netrelay.controller.persistence.DisplayAction;
 import de.braintags.netrelay.controller.persistence.PersistenceController;
 import de.braintags.netrelay.impl.NetRelayExt_FileBasedSettings;
 import de.braintags.netrelay.init.Settings;
@@ -87,6 +88,54 @@ public class TPersistenceController_Display extends AbstractPersistenceControlle
     }
   }
 
+  /**
+   * Two records of the same mapper are displayed one after the other. They share one plan, so the ids of every request
+   * must be bound to the query of the plan
+   * 
+   * @param context
+   */
+  @Test
+  public void testDisplaySingleRecord_sharedPlan(TestContext context) {
+    CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+    SimpleNetRelayMapper first = new SimpleNetRelayMapper();
+    first.name = "first record of shared plan";
+    DatastoreBaseTest.saveRecord(context, first);
+    SimpleNetRelayMapper second = new SimpleNetRelayMapper();
+    second.name = "second record of shared plan";
+    DatastoreBaseTest.saveRecord(context, second);
+
+    try {
+      for (SimpleNetRelayMapper record : new SimpleNetRelayMapper[] { first, second, first }) {
+        String url = String.format("/products/%s/DISPLAY/detail.html", createReferenceAsCapturePart(context, record));
+        testRequest(context, HttpMethod.POST, url, null, resp -> {
+          LOGGER.info("RESPONSE: " + resp.content);
+          context.assertTrue(resp.content.toString().contains(record.name), "Expected name not found");
+        }, 200, "OK", null);
+      }
+    } catch (Exception e) {
+      context.fail(e);
+    }
+  }
+
+  /**
+   * The key of a plan depends on the mapper, the names of the id fields and the orderBy, but not on the values of the
+   * ids
+   * 
+   * @param context
+   */
+  @Test
+  public void testPlanKey(TestContext context) {
+    String key = DisplayAction.createPlanKey("Person(id:1)", null);
+    context.assertEquals(key, DisplayAction.createPlanKey("Person(id:2)", null));
+    context.assertNotEquals(key, DisplayAction.createPlanKey("Person(name:1)", null));
+    context.assertNotEquals(key, DisplayAction.createPlanKey("Person(id:1)", "name asc"));
+    context.assertNotEquals(key, DisplayAction.createPlanKey("Country(id:1)", null));
+    context.assertNotEquals(key, DisplayAction.createPlanKey("Person", null));
+    context.assertEquals(DisplayAction.createPlanKey("Person(id:1,name:x)", null),
+        DisplayAction.createPlanKey("Person(id:22,name:y)", null));
+    context.assertNotEquals(DisplayAction.createPlanKey("Person(id:1,name:x)", null), key);
+  }
+
   // weitere Tests: Feld "Name" als Parameter; mehrere Felder als Parameter
 
   @Test
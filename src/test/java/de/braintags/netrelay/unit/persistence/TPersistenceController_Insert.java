@@ -47,6 +47,7 @@ public class TPersistenceController_Insert extends AbstractPersistenceController
       .getLogger(TPersistenceController_Insert.class);
   private static final String INSERT_CUSTOMER_URL = "/customer/insertCustomer.html";
   private static final String INSERT_CITY_URL = "/country/insertCity.html";
+  private static final String UPLOAD_DIRECTORY = "webroot/images/productImages";
 
   @Test
   public void testInsertSubSubObject(final TestContext context) throws Exception {
@@ -187,6 +188,79 @@ public class TPersistenceController_Insert extends AbstractPersistenceController
     }
   }
 
+  /**
+   * The file is moved asynchronously into the upload directory under a unique name
+   * 
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testInsertWithFileMoved(final TestContext context) throws Exception {
+    try {
+      CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+      String url = String.format("/products/insert3.html?action=INSERT&entity=%s",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      MultipartUtil mu = new MultipartUtil();
+      addFields(mu);
+      mu.addFilePart(NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME + ".fileName", "asyncfirst.dat",
+          "application/octet-stream", TestUtils.randomBuffer(50));
+
+      testRequest(context, HttpMethod.POST, url, req -> {
+        mu.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+        context.assertTrue(resp.content.toString().contains("asyncfirst"), "Expected filename not found in response");
+      }, 200, "OK", null);
+      context.assertEquals(1, countUploads("asyncfirst"), "file was not moved into the upload directory");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+  }
+
+  /**
+   * If the record can't be created, the moved files must be removed again
+   * 
+   * @param context
+   * @throws Exception
+   */
+  @Test
+  public void testInsertWithFileFailedSave(final TestContext context) throws Exception {
+    try {
+      CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
+      String url = String.format("/products/insert3.html?action=INSERT&entity=%s",
+          NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME);
+      MultipartUtil mu = new MultipartUtil();
+      mu.addFormField(NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME + ".name", "orphanName");
+      mu.addFormField(NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME + ".age", "notANumber");
+      mu.addFilePart(NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME + ".fileName", "orphancheck.dat",
+          "application/octet-stream", TestUtils.randomBuffer(50));
+
+      testRequest(context, HttpMethod.POST, url, req -> {
+        mu.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 500, "Internal Server Error", null);
+      // the deletion is asynchronous
+      long end = System.currentTimeMillis() + 5000;
+      while (countUploads("orphancheck") > 0 && System.currentTimeMillis() < end) {
+        Thread.sleep(50);
+      }
+      context.assertEquals(0, countUploads("orphancheck"), "uploaded file was not removed");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+  }
+
+  private int countUploads(final String namePart) {
+    int count = 0;
+    for (String file : vertx.fileSystem().readDirBlocking(UPLOAD_DIRECTORY)) {
+      if (file.contains(namePart)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   @Test
   public void testInsertAsCapture(final TestContext context) throws Exception {
     try {
@@ -230,7 +304,7 @@ public class TPersistenceController_Insert extends AbstractPersistenceController
     persistenceDefinition.setRoutes(new String[] { "/products/:entity/:action/insert.html", "/products/insert2.html",
         "/products/insert3.html", INSERT_CUSTOMER_URL, INSERT_CITY_URL });
     persistenceDefinition.getHandlerProperties().put(PersistenceController.UPLOAD_DIRECTORY_PROP,
-        "webroot/images/productImages");
+        UPLOAD_DIRECTORY);
     settings.getRouterDefinitions().addAfter(SessionController.class.getSimpleName(), persistenceDefinition);
     setPersistenceDef(persistenceDefinition);
 
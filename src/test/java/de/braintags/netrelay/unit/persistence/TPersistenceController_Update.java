@@ -114,6 +114,7 @@ public class TPersistenceController_Update extends AbstractPersistenceController
       String url = String.format(UPDATE_CITY_URL + "?action=UPDATE&entity=%s", entityDef);
 
       MultipartUtil mu = new MultipartUtil();
+      mu.addFormField("Country.version", String.valueOf(tmpCountry.version));
       mu.addFormField("Country.cities.streets.name", street);
       testRequest(context, HttpMethod.POST, url, req -> {
         mu.finish(req);
@@ -139,6 +140,123 @@ public class TPersistenceController_Update extends AbstractPersistenceController
     context.assertTrue(found, "streetname was not modified");
   }
 
+  @Test
+  public void testUpdateSubSubRecordWithVersion(final TestContext context) {
+    CheckController.checkMapperName = Country.class.getSimpleName();
+    IMapper mapper = netRelay.getDatastore().getMapperFactory().getMapper(Country.class);
+    IMapper cityMapper = netRelay.getDatastore().getMapperFactory().getMapper(City.class);
+    IMapper streetMapper = netRelay.getDatastore().getMapperFactory().getMapper(Street.class);
+    Country tmpCountry = initCountry(context);
+    City city = tmpCountry.cities.get(0);
+    String originalStreet = city.streets.get(0).name;
+
+    try {
+      String entityDef = RecordContractor.generateEntityReference(mapper, tmpCountry);
+      entityDef += ".cities" + RecordContractor.createIdReference(cityMapper, city);
+      entityDef += ".streets" + RecordContractor.createIdReference(streetMapper, city.streets.get(0));
+      String url = String.format(UPDATE_CITY_URL + "?action=UPDATE&entity=%s", entityDef);
+
+      // an outdated version must not overwrite the record
+      MultipartUtil outdated = new MultipartUtil();
+      outdated.addFormField("Country.version", String.valueOf(tmpCountry.version + 1));
+      outdated.addFormField("Country.cities.streets.name", "outdated street");
+      testRequest(context, HttpMethod.POST, url, req -> {
+        outdated.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 500, "Internal Server Error", null);
+      Country savedCountry = DatastoreBaseTest.findRecordByID(context, Country.class, tmpCountry.id);
+      context.assertEquals(originalStreet, savedCountry.cities.get(0).streets.get(0).name, "street was modified");
+      context.assertEquals(tmpCountry.version, savedCountry.version, "version was modified");
+
+      MultipartUtil current = new MultipartUtil();
+      current.addFormField("Country.version", String.valueOf(tmpCountry.version));
+      current.addFormField("Country.cities.streets.name", "current street");
+      testRequest(context, HttpMethod.POST, url, req -> {
+        current.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 200, "OK", null);
+      savedCountry = DatastoreBaseTest.findRecordByID(context, Country.class, tmpCountry.id);
+      context.assertEquals("current street", savedCountry.cities.get(0).streets.get(0).name, "street not modified");
+      context.assertEquals(tmpCountry.version + 1, savedCountry.version, "version was not increased");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+  }
+
+  @Test
+  public void testUpdateSubSubRecordWithoutVersion(final TestContext context) {
+    CheckController.checkMapperName = Country.class.getSimpleName();
+    IMapper mapper = netRelay.getDatastore().getMapperFactory().getMapper(Country.class);
+    IMapper cityMapper = netRelay.getDatastore().getMapperFactory().getMapper(City.class);
+    IMapper streetMapper = netRelay.getDatastore().getMapperFactory().getMapper(Street.class);
+    Country tmpCountry = initCountry(context);
+    City city = tmpCountry.cities.get(0);
+    String originalStreet = city.streets.get(0).name;
+
+    try {
+      String entityDef = RecordContractor.generateEntityReference(mapper, tmpCountry);
+      entityDef += ".cities" + RecordContractor.createIdReference(cityMapper, city);
+      entityDef += ".streets" + RecordContractor.createIdReference(streetMapper, city.streets.get(0));
+      String url = String.format(UPDATE_CITY_URL + "?action=UPDATE&entity=%s", entityDef);
+
+      // an update without the version must be rejected
+      MultipartUtil mu = new MultipartUtil();
+      mu.addFormField("Country.cities.streets.name", "street without version");
+      testRequest(context, HttpMethod.POST, url, req -> {
+        mu.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 500, "Internal Server Error", null);
+      Country savedCountry = DatastoreBaseTest.findRecordByID(context, Country.class, tmpCountry.id);
+      context.assertEquals(originalStreet, savedCountry.cities.get(0).streets.get(0).name, "street was modified");
+      context.assertEquals(tmpCountry.version, savedCountry.version, "version was modified");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+  }
+
+  @Test
+  public void testUpdateRecordWithVersion(final TestContext context) {
+    CheckController.checkMapperName = Country.class.getSimpleName();
+    IMapper mapper = netRelay.getDatastore().getMapperFactory().getMapper(Country.class);
+    Country tmpCountry = initCountry(context);
+
+    try {
+      String entityDef = RecordContractor.generateEntityReference(mapper, tmpCountry);
+      String url = String.format(UPDATE_CITY_URL + "?action=UPDATE&entity=%s", entityDef);
+
+      // an outdated version must not overwrite the record
+      MultipartUtil outdated = new MultipartUtil();
+      outdated.addFormField("Country.version", String.valueOf(tmpCountry.version + 1));
+      outdated.addFormField("Country.name", "outdated name");
+      testRequest(context, HttpMethod.POST, url, req -> {
+        outdated.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 500, "Internal Server Error", null);
+      Country savedCountry = DatastoreBaseTest.findRecordByID(context, Country.class, tmpCountry.id);
+      context.assertEquals(tmpCountry.name, savedCountry.name, "name was modified");
+      context.assertEquals(tmpCountry.version, savedCountry.version, "version was modified");
+
+      MultipartUtil current = new MultipartUtil();
+      current.addFormField("Country.version", String.valueOf(tmpCountry.version));
+      current.addFormField("Country.name", "current name");
+      testRequest(context, HttpMethod.POST, url, req -> {
+        current.finish(req);
+      }, resp -> {
+        LOGGER.info("RESPONSE: " + resp.content);
+      }, 200, "OK", null);
+      savedCountry = DatastoreBaseTest.findRecordByID(context, Country.class, tmpCountry.id);
+      context.assertEquals("current name", savedCountry.name, "name not modified");
+      context.assertEquals(tmpCountry.version + 1, savedCountry.version, "version was not increased");
+      context.assertEquals(1, savedCountry.cities.size(), "cities were removed");
+    } catch (Exception e) {
+      context.fail(e);
+    }
+  }
+
   @Test
   public void testUpdate(final TestContext context) {
     CheckController.checkMapperName = NetRelayExt_FileBasedSettings.SIMPLEMAPPER_NAME;
@@ -233,6 +351,7 @@ public class TPersistenceController_Update extends AbstractPersistenceController
         UPDATE_CUSTOMER_URL, UPDATE_CITY_URL });
     persistenceDefinition.getHandlerProperties().put(PersistenceController.UPLOAD_DIRECTORY_PROP,
         "webroot/images/productImages");
+    persistenceDefinition.getHandlerProperties().put(PersistenceController.VERSION_FIELD_PROP, "version");
     settings.getRouterDefinitions().addAfter(SessionController.class.getSimpleName(), persistenceDefinition);
     setPersistenceDef(persistenceDefinition);
 
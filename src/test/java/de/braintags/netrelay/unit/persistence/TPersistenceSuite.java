@@ -24,7 +24,8 @@ import org.junit.runners.Suite.SuiteClasses;
  */
 @RunWith(Suite.class)
 @SuiteClasses({ TPersistenceController_Display.class, TPersistenceController_Insert.class,
-    TPersistenceController_Delete.class, TPersistenceController_Update.class, TPersistenceController_None.class })
+    TPersistenceController_Delete.class, TPersistenceController_Update.class, TPersistenceController_None.class,
+    TPersistenceController_Bulk.class, TRecordContractor.class })
 public class TPersistenceSuite {
 
 }
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * NetRelay-Controller
+ * %%
+ * Copyright (C) 2017 Braintags GmbH
+ * %%
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * #L%
+ */
+package de.braintags.netrelay.unit.persistence;
+
+import java.util.Collection;
+
+import org.junit.Test;
+
+import de.braintags.netrelay.controller.AbstractCaptureController.CaptureMap;
+import de.braintags.netrelay.controller.persistence.DeleteParameter;
+import de.braintags.netrelay.controller.persistence.InsertParameter;
+import de.braintags.netrelay.controller.persistence.PersistenceController;
+import de.braintags.netrelay.controller.persistence.RecordContractor;
+import de.braintags.netrelay.model.City;
+import de.braintags.netrelay.model.Country;
+import de.braintags.netrelay.model.Street;
+import de.braintags.netrelay.unit.AbstractPersistenceControllerTest;
+import de.braintags.vertx.jomnigate.mapping.IMapper;
+import de.braintags.vertx.jomnigate.mapping.IMapperFactory;
+import de.braintags.vertx.jomnigate.mapping.IProperty;
+import io.vertx.ext.unit.TestContext;
+
+/**
+ * Tests the resolution of subobjects by {@link RecordContractor} and measures it for entity definitions with two
+ * embedded levels, like Country(id:1).cities(id:city5).streets(id:street5), against the former resolution, which
+ * resolved the id fields for each member of a collection
+ *
+ * @author Michael Remme
+ *
+ */
+public class TRecordContractor extends AbstractPersistenceControllerTest {
+  private static final io.vertx.core.logging.Logger LOGGER = io.vertx.core.logging.LoggerFactory
+      .getLogger(TRecordContractor.class);
+
+  private static final int CITIES = 300;
+  private static final int STREETS = 300;
+  private static final int ITERATIONS = 1000;
+  private static final int ROUNDS = 5;
+
+  @Test
+  public void testResolveNestedPath(final TestContext context) {
+    IMapperFactory mapperFactory = netRelay.getDatastore().getMapperFactory();
+    Country country = createCountry();
+    City city = country.cities.get(CITIES - 1);
+    Street street = city.streets.get(STREETS - 1);
+    CaptureMap map = createCaptureMap("Country(id:1).cities(id:" + city.id + ").streets(id:" + street.id + ")");
+
+    InsertParameter ip = RecordContractor.resolveUpdateParameter(mapperFactory, country, map);
+    context.assertTrue(street == ip.getUpdateObject(), "wrong street resolved");
+    context.assertTrue(city.streets == ip.getParentCollection(), "wrong parent collection");
+
+    DeleteParameter dp = RecordContractor.resolveDeleteParameter(mapperFactory, country, map);
+    context.assertTrue(street == dp.getDeleteObject(), "wrong street resolved");
+
+    ip = RecordContractor.resolveInsertParameter(mapperFactory, country,
+        createCaptureMap("Country(id:1).cities(id:" + city.id + ").streets"));
+    context.assertTrue(city.streets == ip.getParentCollection(), "wrong parent collection");
+  }
+
+  @Test
+  public void testResolveNestedPathPerformance(final TestContext context) {
+    IMapperFactory mapperFactory = netRelay.getDatastore().getMapperFactory();
+    Country country = createCountry();
+    String[] entities = new String[ITERATIONS];
+    CaptureMap[] maps = new CaptureMap[ITERATIONS];
+    for (int i = 0; i < ITERATIONS; i++) {
+      City city = country.cities.get(i % CITIES);
+      Street street = city.streets.get((i * 7) % STREETS);
+      entities[i] = "Country(id:1).cities(id:" + city.id + ").streets(id:" + street.id + ")";
+      maps[i] = createCaptureMap(entities[i]);
+    }
+    for (int i = 0; i < ITERATIONS; i++) {
+      context.assertTrue(resolveBaseline(mapperFactory, country, entities[i]) == RecordContractor
+          .resolveUpdateParameter(mapperFactory, country, maps[i]).getUpdateObject(), "different street resolved");
+    }
+
+    long baseline = Long.MAX_VALUE;
+    long current = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (String entity : entities) {
+        context.assertNotNull(resolveBaseline(mapperFactory, country, entity));
+      }
+      baseline = Math.min(baseline, System.nanoTime() - start);
+      start = System.nanoTime();
+      for (CaptureMap map : maps) {
+        context.assertNotNull(RecordContractor.resolveUpdateParameter(mapperFactory, country, map).getUpdateObject());
+      }
+      current = Math.min(current, System.nanoTime() - start);
+    }
+    LOGGER.info(String.format(
+        "%d resolutions of a path with two embedded levels, %d cities and %d streets: before %d ms, after %d ms",
+        ITERATIONS, CITIES, STREETS, baseline / 1_000_000, current / 1_000_000));
+  }
+
+  /**
+   * The former resolution of a subobject, which resolved the id field of the mapper for each member of a collection;
+   * used as baseline of the performance test
+   */
+  @SuppressWarnings("rawtypes")
+  private Object resolveBaseline(final IMapperFactory mapperFactory, final Object mainObject, final String entity) {
+    Object parent = mainObject;
+    String[] references = entity.split("\\.");
+    for (int i = 1; i < references.length; i++) {
+      String reference = references[i];
+      String fieldName = reference.substring(0, reference.indexOf('('));
+      String[] idDef = reference.substring(reference.indexOf('(') + 1, reference.indexOf(')')).split(":");
+      IProperty field = mapperFactory.getMapper(parent.getClass()).getField(fieldName);
+      IMapper subMapper = mapperFactory.getMapper(field.getSubClass());
+      Object found = null;
+      for (Object member : (Collection<?>) field.getPropertyAccessor().readData(parent)) {
+        IProperty idField = subMapper.getField(idDef[0]);
+        Object value = idField.getPropertyAccessor().readData(member);
+        if (value != null && String.valueOf(value).equals(idDef[1])) {
+          found = member;
+          break;
+        }
+      }
+      parent = found;
+    }
+    return parent;
+  }
+
+  private CaptureMap createCaptureMap(final String entity) {
+    CaptureMap map = new CaptureMap();
+    map.put(PersistenceController.MAPPER_CAPTURE_KEY, entity);
+    return map;
+  }
+
+  private Country createCountry() {
+    Country country = new Country();
+    country.id = "1";
+    country.name = "Germany";
+    for (int i = 0; i < CITIES; i++) {
+      City city = new City();
+      city.id = "city" + i;
+      city.name = "city " + i;
+      for (int k = 0; k < STREETS; k++) {
+        Street street = new Street("street " + k);
+        street.id = "street" + k;
+        city.streets.add(street);
+      }
+      country.cities.add(city);
+    }
+    return country;
+  }
+
+}